@@ -1,16 +1,24 @@
 package sim;
 
 import java.awt.EventQueue;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.swing.JOptionPane;
 import javax.swing.UIManager;
 
 import sim.control.GuiState;
 import sim.control.ResourceManager;
+import sim.control.TrajectoryReplay;
 import sim.gui.GUIBoard;
 import sim.gui.MallFrame;
 import sim.model.Mall;
+import sim.util.trajectory.TrajectoryReader;
 import sim.util.video.AviRecorder;
 import sim.util.video.VideoRecorder;
 
@@ -81,8 +89,13 @@ public class MallSim {
 	}
 
 	public static void runSimulation() {
+		// Poprzednia symulacja musi zostać zatrzymana przed wczytaniem nowej
+		// (agenci obu symulacji korzystają z tego samego AgentStore).
+		stopSimulation();
+
 		Mall mall = ResourceManager.loadShoppingMall(GuiState.currentResourcePath);
 		simulation.setMall(mall);
+		frame.getSummaryTable().setRegistry(simulation.getMetrics());
 		simulation.configureLogFile();
 
 		frame.setMall(simulation.getMall());
@@ -91,14 +104,8 @@ public class MallSim {
 
 		videoRecorder.setSource(frame);
 
-		frame.getSummaryTable().clear();
-
 		simulation.addObserver(frame.getBoard());
 
-		if (simThread != null) {
-			simThread.stop();
-		}
-
 		simThread = new Thread(simulation);
 
 		simThread.start();
@@ -107,6 +114,98 @@ public class MallSim {
 			simThread.suspend();
 	}
 
+	private static void stopSimulation() {
+		frame.stopReplay();
+
+		if (simThread != null) {
+			simThread.stop();
+			simThread = null;
+		}
+	}
+
+	/**
+	 * Odtwarza zapisane trajektorie agentów (symulacja jest zatrzymywana).
+	 * 
+	 * @param recording
+	 *            plik zapisany przez
+	 *            {@link sim.util.trajectory.TrajectoryWriter}
+	 * @return <code>false</code>, gdy nie udało się wczytać zapisu lub mapy
+	 */
+	public static boolean openReplay(Path recording) {
+		TrajectoryReader reader;
+		try {
+			reader = new TrajectoryReader(recording);
+		} catch (IOException e) {
+			LOGGER.severe("Could not open recording: " + e.getMessage());
+			JOptionPane.showMessageDialog(null, "Could not open recording!",
+					"Error", JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
+
+		Path mapPath = findMap(reader.getMapName(), recording);
+		if (mapPath == null) {
+			File file = frame.chooseMallFile();
+			mapPath = (file != null) ? file.toPath() : null;
+		}
+
+		stopSimulation();
+
+		Mall mall = (mapPath != null) ? ResourceManager
+				.loadShoppingMall(mapPath) : null;
+		TrajectoryReplay replay = null;
+		if (mall != null) {
+			// Agenci rozmieszczani są jedynie przez odtwarzanie.
+			mall.getBoard().reset();
+
+			try {
+				replay = new TrajectoryReplay(reader, mall.getBoard());
+			} catch (IllegalArgumentException e) {
+				LOGGER.severe(e.getMessage());
+			}
+		}
+
+		if (replay == null) {
+			try {
+				reader.close();
+			} catch (IOException e) {
+			}
+			JOptionPane.showMessageDialog(null,
+					"Could not load the mall of the recording!", "Error",
+					JOptionPane.ERROR_MESSAGE);
+			return false;
+		}
+
+		frame.setMall(mall);
+		frame.startReplay(replay);
+		frame.revalidate();
+		frame.repaint();
+
+		return true;
+	}
+
+	/**
+	 * Wyszukuje mapę o danej nazwie w katalogu zapisu, w katalogu ostatnio
+	 * wczytanej mapy oraz w katalogu z mapami.
+	 */
+	private static Path findMap(String mapName, Path recording) {
+		Path resources = GuiState.currentResourcePath;
+		if (!Files.isDirectory(resources))
+			resources = resources.getParent();
+
+		Path[] dirs = { recording.toAbsolutePath().getParent(), resources,
+				Paths.get("resources", "malls") };
+		for (Path dir : dirs) {
+			if (dir == null)
+				continue;
+
+			Path p = dir.resolve(mapName);
+			if (Files.isRegularFile(p))
+				return p;
+		}
+
+		return null;
+	}
+
 	synchronized public static void setThreadState(boolean _isSuspended) {
 		isSuspended = _isSuspended;
 
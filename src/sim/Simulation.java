@@ -1,53 +1,81 @@
 package sim;
 
 import java.awt.Point;
-import java.io.BufferedWriter;
-import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Observable;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
+import sim.analytics.AnalyticsPipeline;
+import sim.analytics.BoardSnapshot;
+import sim.analytics.StepAssessment;
+import sim.control.GridlockDetector;
 import sim.control.GuiState;
-import sim.control.TacticalWorker;
-import sim.gui.SummaryTable;
-import sim.gui.SummaryTable.Param;
+import sim.control.RouteService;
+import sim.control.StripedUpdate;
+import sim.control.SubStepScheduler;
+import sim.control.SynchronousUpdate;
+import sim.control.TimingWheel;
+import sim.metrics.Counter;
+import sim.metrics.Gauge;
+import sim.metrics.MetricsRegistry;
+import sim.metrics.StreamingAverage;
 import sim.model.Agent;
 import sim.model.Agent.MovementBehavior;
+import sim.model.AgentStore;
 import sim.model.Board;
 import sim.model.Mall;
-import sim.model.algo.Ped4.LaneDirection;
+import sim.model.algo.Tactical;
+import sim.model.helpers.AtomicBitSet;
 import sim.model.helpers.Direction;
 import sim.model.helpers.Rand;
-import sim.util.WriterUtils;
+import sim.util.RunLogFormat;
+import sim.util.RunLogFormat.ColumnType;
+import sim.util.RunLogWriter;
+import sim.util.trajectory.TrajectoryWriter;
 import sim.util.video.VideoRecorder;
 
-import com.google.common.collect.Iterables;
-
 public class Simulation extends Observable implements Runnable {
 
 	/**
-	 * Number of threads used to compute path (in tactical part).
+	 * Sposób przemieszczania agentów w obrębie podkroku.
 	 */
-	public static final int NUM_TACTICAL_THREADS = 4;
+	public static enum UpdateMode {
+		/**
+		 * Agenci przemieszczani są kolejno (w kolejności wierszowej), każdy
+		 * ruch od razu zmienia planszę.
+		 */
+		SEQUENTIAL,
+
+		/**
+		 * Agenci równolegle proponują ruchy, a następnie konflikty są
+		 * rozstrzygane i wszystkie ruchy zatwierdzane jednocześnie (patrz
+		 * {@link SynchronousUpdate}).
+		 */
+		SYNCHRONOUS,
+
+		/**
+		 * Agenci przemieszczani są po kolei w kolejności wierszowej (planszę
+		 * przegląda się w każdym podkroku), lecz niesąsiadujące poziome pasy
+		 * planszy przetwarzane są równolegle (patrz {@link StripedUpdate}).
+		 */
+		STRIPED
+	}
 
 	/**
-	 * Maxmial number of steps in a single simulation.
+	 * Default maxmial number of steps in a single simulation.
 	 */
-	private final int STEPS = 5000;
+	public static final int STEPS = 5000;
 
 	/**
 	 * Interval (= number of simulation steps) between appearance of a next
@@ -66,23 +94,151 @@ public class Simulation extends Observable implements Runnable {
 	 */
 	private final int MAX_DISTANCE_FROM_TARGET = 2;
 
+	private Mall mall = new Mall();
+	private VideoRecorder videoRecorder;
+
 	/**
-	 * Width of an assessment frame is ~10m. (Its height depends corridor's
-	 * breadth)
+	 * Assessment results (read e.g. by the summary table).
 	 */
-	private final int ASSESSMENT_FRAME_WIDTH = 15;
+	private final MetricsRegistry metrics = new MetricsRegistry();
+
+	private final Gauge percOfFieldsAsLanes = metrics
+			.gauge("% of fields as lanes");
+	private final Gauge lanesCoherence = metrics.gauge("lanes' coherence");
+	private final Gauge lostAgents = metrics.gauge("lost");
+	private final Gauge avgDistance = metrics.gauge("avg distance");
+	private final Gauge stepGridlocks = metrics.gauge("gridlocks");
+	private final StreamingAverage avgPercOfFieldsAsLanes = metrics
+			.average("% of fields as lanes (avg)");
+	private final StreamingAverage avgLanesCoherence = metrics
+			.average("lanes' coherence (avg)");
+	private final StreamingAverage avgLost = metrics.average("lost (avg)");
+	private final StreamingAverage avgAvgDistance = metrics
+			.average("avg distance (avg)");
+	private final StreamingAverage avgGridlocks = metrics
+			.average("gridlocks (avg)");
+	private final Counter totalGridlocks = metrics
+			.counter("gridlocks (total)");
+	private final Counter assessedSteps = metrics.counter("assessed steps");
 
-	private Mall mall = new Mall();
-	private VideoRecorder videoRecorder;
+	/**
+	 * Number of steps to be performed by {@link #run()}.
+	 */
+	private int steps = STEPS;
+
+	/**
+	 * Whether to pause between steps for {@link GuiState#animationSpeed} ms.
+	 */
+	private boolean animated = true;
 
 	private int stepCounter = 0;
 
-	private BlockingQueue<Agent> agentsToCompute = new LinkedBlockingQueue<>(1);
+	/**
+	 * Niewykorzystane punkty ruchu agentów (indeksowane identyfikatorem
+	 * agenta).
+	 */
+	private int[] movementPointsLeft = new int[0];
+
+	/**
+	 * Agenci, którzy zostali już rozpatrzeni w danym podkroku (indeksowani
+	 * identyfikatorem agenta).
+	 */
+	private final AtomicBitSet moved = new AtomicBitSet(0);
+
+	private UpdateMode updateMode = UpdateMode.SEQUENTIAL;
+
+	/**
+	 * Updater for the {@link UpdateMode#SYNCHRONOUS} mode (created on demand).
+	 */
+	private SynchronousUpdate synchronousUpdate = null;
+
+	/**
+	 * Updater for the {@link UpdateMode#STRIPED} mode (created on demand).
+	 */
+	private StripedUpdate stripedUpdate = null;
+
+	/**
+	 * Agenci, którzy w bieżącym kroku mogą jeszcze wykonać ruch (tryb
+	 * sekwencyjny).
+	 */
+	private final SubStepScheduler scheduler = new SubStepScheduler();
+
+	/**
+	 * Agenci odczekujący (np. w sklepie) - do czasu wybudzenia nie biorą
+	 * udziału w ruchu.
+	 */
+	private final TimingWheel holdWheel = new TimingWheel();
+
+	/**
+	 * Wykrywa i rozładowuje zatory (cykle i długie łańcuchy zablokowanych
+	 * agentów).
+	 */
+	private final GridlockDetector gridlockDetector = new GridlockDetector();
+
+	/**
+	 * Oceny stanu symulacji (wykonywane równolegle z kolejnymi krokami).
+	 */
+	private final AnalyticsPipeline analytics = new AnalyticsPipeline();
+
+	/**
+	 * Agenci wykonujący ruch w danym podkroku (tryb synchroniczny).
+	 */
+	private Agent[] activeAgents = new Agent[0];
+
+	/**
+	 * Computes routes of agents in the background.
+	 */
+	private final RouteService routeService = new RouteService();
+
+	/**
+	 * Czy trasy wyznaczane są z pól odległości (patrz
+	 * {@link #setDistanceFieldRouting(boolean)})?
+	 */
+	private boolean distanceFieldRouting = false;
+
+	/**
+	 * Routes being computed - until they are ready agents walk straight
+	 * towards their targets.
+	 */
+	private final Map<Agent, Future<List<Point>>> pendingRoutes = new LinkedHashMap<>();
 
 	// Aktualny stan "puli" nowych agentów.
 	private double newAgentLevel = 0.0;
 
-	private BufferedWriter logWriter = null;
+	/**
+	 * Kolumny logu przebiegu (poza numerem kroku).
+	 */
+	private static final String[] LOG_COLUMNS = { "% of fields as lanes",
+			"lanes coherence", "lost", "avg dist", "gridlocks" };
+	private static final ColumnType[] LOG_COLUMN_TYPES = { ColumnType.FLOAT64,
+			ColumnType.INT32, ColumnType.INT32, ColumnType.FLOAT64,
+			ColumnType.INT32 };
+
+	/**
+	 * Path of the run log written by {@link #run()} (<code>null</code> - no
+	 * log).
+	 */
+	private Path logFile = null;
+
+	/**
+	 * Run log of the current run (written from the analytics thread).
+	 */
+	private volatile RunLogWriter runLog = null;
+
+	/**
+	 * Kierunki pasów z ostatniej oceny, jeszcze nie przeniesione na planszę
+	 * (ustawiane w wątku analiz, przenoszone w wątku symulacji - patrz
+	 * {@link #applyLaneDirections()}).
+	 */
+	private final AtomicReference<byte[]> pendingLaneDirections = new AtomicReference<>();
+
+	/**
+	 * Path of the trajectory recording written by {@link #run()}
+	 * (<code>null</code> - trajectories are not recorded).
+	 */
+	private Path trajectoryFile = null;
+
+	private TrajectoryWriter trajectories = null;
 
 	private final static Logger LOGGER = Logger
 			.getLogger(Logger.GLOBAL_LOGGER_NAME);
@@ -90,29 +246,128 @@ public class Simulation extends Observable implements Runnable {
 	public Simulation(VideoRecorder videoRecorder) {
 		super();
 		this.videoRecorder = videoRecorder;
+
+		analytics.addListener(new AnalyticsPipeline.Listener() {
+
+			@Override
+			public void stepAssessed(StepAssessment assessment) {
+				recordAssessment(assessment);
+			}
+		});
 	}
 
 	public void configureLogFile() {
-		if (logWriter != null) {
+		try {
+			Files.createDirectories(Paths.get("logs"));
+		} catch (IOException e) {
+			LOGGER.severe("Could not create log directory.");
+		}
+
+		configureLogFile(Paths.get("logs", System.currentTimeMillis()
+				+ ".runlog"));
+	}
+
+	/**
+	 * Sets the file of the binary run log (see {@link RunLogFormat}) with the
+	 * assessment results. The file is created when the simulation starts.
+	 * 
+	 * @param logFile
+	 *            path of the log file
+	 */
+	public void configureLogFile(Path logFile) {
+		this.logFile = logFile;
+	}
+
+	/**
+	 * Creates the run log (the header describes the current run).
+	 */
+	private void openRunLog() {
+		closeRunLog();
+
+		if (logFile == null)
+			return;
+
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("map", String.valueOf(mall.getName()));
+		params.put("seed", Long.toString(Rand.seed));
+		params.put("steps", Integer.toString(steps));
+		params.put("mode", updateMode.name());
+		params.put("order", getSchedulingOrder().name());
+		params.put("assess-every", Integer.toString(getAnalyticsInterval()));
+		params.put("started", Long.toString(System.currentTimeMillis()));
+
+		try {
+			runLog = new RunLogWriter(logFile, params, LOG_COLUMNS,
+					LOG_COLUMN_TYPES);
+		} catch (IOException e) {
+			LOGGER.severe("Could not open log file for writing: "
+					+ e.getMessage());
+		}
+	}
+
+	private void closeRunLog() {
+		RunLogWriter log = runLog;
+		runLog = null;
+
+		if (log != null) {
 			try {
-				logWriter.close();
+				log.close();
 			} catch (IOException e) {
+				LOGGER.severe("Could not write log file: " + e.getMessage());
 			}
 		}
+	}
+
+	/**
+	 * Sets the file to which positions, directions and states of all agents
+	 * are recorded after each step (see {@link TrajectoryWriter}).
+	 * 
+	 * @param trajectoryFile
+	 *            path of the recording (<code>null</code> - no recording)
+	 */
+	public void setTrajectoryFile(Path trajectoryFile) {
+		this.trajectoryFile = trajectoryFile;
+	}
+
+	private void openTrajectories() {
+		closeTrajectories();
+
+		if (trajectoryFile == null)
+			return;
 
 		try {
-			Files.createDirectories(Paths.get("logs"));
-			
-			File logFile = new File("./logs/" + System.currentTimeMillis() + ".csv");
-			Charset charset = Charset.forName("US-ASCII");
+			trajectories = new TrajectoryWriter(trajectoryFile,
+					mall.getName(), mall.getBoard(), Rand.seed);
+		} catch (IOException e) {
+			LOGGER.severe("Could not open trajectory file for writing: "
+					+ e.getMessage());
+		}
+	}
 
-			logWriter = Files.newBufferedWriter(logFile.toPath(), charset);
-			logWriter
-					.write("\"% of fields as lanes\";\"lanes coherence\";\"lost\";\"avg dist\"\r\n");
+	private void recordTrajectories() {
+		if (trajectories == null)
+			return;
+
+		try {
+			trajectories.record(mall.getBoard(), stepCounter);
 		} catch (IOException e) {
-			LOGGER.severe("Could not open log file for writing.");
+			LOGGER.severe("Could not record trajectories: " + e.getMessage());
+			closeTrajectories();
 		}
+	}
 
+	private void closeTrajectories() {
+		TrajectoryWriter writer = trajectories;
+		trajectories = null;
+
+		if (writer != null) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				LOGGER.severe("Could not write trajectory file: "
+						+ e.getMessage());
+			}
+		}
 	}
 
 	public Mall getMall() {
@@ -123,6 +378,79 @@ public class Simulation extends Observable implements Runnable {
 		this.mall = mall;
 	}
 
+	public MetricsRegistry getMetrics() {
+		return metrics;
+	}
+
+	public int getSteps() {
+		return steps;
+	}
+
+	public void setSteps(int steps) {
+		this.steps = steps;
+	}
+
+	/**
+	 * @param animated
+	 *            <code>false</code> to run steps as fast as possible (no
+	 *            pauses between steps)
+	 */
+	public void setAnimated(boolean animated) {
+		this.animated = animated;
+	}
+
+	public UpdateMode getUpdateMode() {
+		return updateMode;
+	}
+
+	public void setUpdateMode(UpdateMode updateMode) {
+		this.updateMode = updateMode;
+	}
+
+	public SubStepScheduler.Order getSchedulingOrder() {
+		return scheduler.getOrder();
+	}
+
+	/**
+	 * Ustala kolejność, w jakiej agenci wykonują ruch w trybie
+	 * {@link UpdateMode#SEQUENTIAL}.
+	 */
+	public void setSchedulingOrder(SubStepScheduler.Order order) {
+		scheduler.setOrder(order);
+	}
+
+	public boolean isDistanceFieldRouting() {
+		return distanceFieldRouting;
+	}
+
+	/**
+	 * Ustala, czy trasy do wyjść wyznaczane są z pól odległości (patrz
+	 * {@link sim.model.algo.DistanceField}) zamiast przeszukiwania A*.
+	 * Domyślnie wyłączone - trasy z pól odległości są najkrótsze i skupiają
+	 * agentów w innych korytarzach niż trasy A*, co zmienia wyniki
+	 * symulacji.
+	 */
+	public void setDistanceFieldRouting(boolean distanceFieldRouting) {
+		this.distanceFieldRouting = distanceFieldRouting;
+	}
+
+	public int getAnalyticsInterval() {
+		return analytics.getInterval();
+	}
+
+	/**
+	 * @param interval
+	 *            co ile kroków oceniany jest stan symulacji (i zapisywany
+	 *            wiersz logu)
+	 */
+	public void setAnalyticsInterval(int interval) {
+		analytics.setInterval(interval);
+	}
+
+	public int getStepCounter() {
+		return stepCounter;
+	}
+
 	/**
 	 * Sprawdza, czy agenci dotarli do celu (jeśli tak - uaktualnia cele).
 	 * 
@@ -132,32 +460,29 @@ public class Simulation extends Observable implements Runnable {
 		int targetsReached = 0;
 
 		// Sprawdzanie, czy cel został osiągnięty.
+		Board board = mall.getBoard();
 		Point curr = new Point();
 		Agent agent;
-		for (int y = 0; y < mall.getBoard().getHeight(); y++) {
-			for (int x = 0; x < mall.getBoard().getWidth(); x++) {
-				curr.setLocation(x, y);
-				agent = mall.getBoard().getCell(curr).getAgent();
-
-				if (agent == null)
-					continue;
-
-				if (agent.getTargetCount() > 0) {
-					if (agent.getTarget().equals(curr)) {
-						reachTarget(agent);
-					} else {
-						double dist = agent.getTarget().distance(curr);
-						if (dist < MAX_DISTANCE_FROM_TARGET) {
-							// TODO: metoda probabilistyczna
-							if (Rand.nextDouble() < 1 / (dist * dist)) {
-								reachTarget(agent);
-							}
+		for (int i = board.nextOccupied(0); i >= 0; i = board
+				.nextOccupied(i + 1)) {
+			curr.setLocation(i % board.getWidth(), i / board.getWidth());
+			agent = board.getAgent(curr);
+
+			if (agent.getTargetCount() > 0) {
+				if (agent.getTarget().equals(curr)) {
+					reachTarget(agent);
+				} else {
+					double dist = agent.getTarget().distance(curr);
+					if (dist < MAX_DISTANCE_FROM_TARGET) {
+						// TODO: metoda probabilistyczna
+						if (Rand.nextDouble(agent) < 1 / (dist * dist)) {
+							reachTarget(agent);
 						}
 					}
-				} else {
-					// target count == 0
-					targetsReached++;
 				}
+			} else {
+				// target count == 0
+				targetsReached++;
 			}
 		}
 
@@ -180,18 +505,24 @@ public class Simulation extends Observable implements Runnable {
 	 * Prepare all agents on the mall.getBoard() for the next step.
 	 */
 	private void prepareAgentsForNextStep() {
+		Board board = mall.getBoard();
 		Point p = new Point();
-		for (int y = 0; y < mall.getBoard().getHeight(); y++) {
-			for (int x = 0; x < mall.getBoard().getWidth(); x++) {
-				p.setLocation(x, y);
-				Agent agent = mall.getBoard().getCell(p).getAgent();
-
-				if (agent != null && agent.getTargetCount() > 0) {
-					if (!agent.getTarget().equals(p))
-						mall.getBoard().getCell(p).getAlgorithm()
-								.prepare(mall.getBoard(), agent);
-				}
+		for (int i = board.nextOccupied(0); i >= 0; i = board
+				.nextOccupied(i + 1)) {
+			p.setLocation(i % board.getWidth(), i / board.getWidth());
+			Agent agent = board.getAgent(p);
+
+			// Agent odczekuje (w kole czasowym) - nie przygotowuje ruchu,
+			// dopóki nie zostanie wybudzony. Przygotowanie (Ped4) zmienia
+			// kierunek agenta i może przesunąć go na sąsiedni pas, więc
+			// wyniki różnią się od przygotowywania również agentów
+			// odczekujących.
+			if (agent.getHoldTime() > 0)
+				continue;
 
+			if (agent.getTargetCount() > 0) {
+				if (!agent.getTarget().equals(p))
+					board.getAlgorithm(p).prepare(board, agent);
 			}
 		}
 
@@ -199,64 +530,245 @@ public class Simulation extends Observable implements Runnable {
 		this.notifyObservers();
 	}
 
-	private Map<Agent, Integer> computeMovementPointsLeft() {
+	private int[] computeMovementPointsLeft() {
+		Board board = mall.getBoard();
 		Point p = new Point();
-		Map<Agent, Integer> speedPointsLeft = new WeakHashMap<Agent, Integer>();
-		for (int y = 0; y < mall.getBoard().getHeight(); y++) {
-			for (int x = 0; x < mall.getBoard().getWidth(); x++) {
-				p.setLocation(x, y);
-				Agent agent = mall.getBoard().getCell(p).getAgent();
-
-				if (agent != null)
-					speedPointsLeft.put(agent, agent.getvMax());
+
+		if (movementPointsLeft.length < Agent.getIdCount())
+			movementPointsLeft = Arrays.copyOf(movementPointsLeft,
+					Math.max(Agent.getIdCount(), 2 * movementPointsLeft.length));
+		moved.ensureCapacity(Agent.getIdCount());
+
+		for (int i = board.nextOccupied(0); i >= 0; i = board
+				.nextOccupied(i + 1)) {
+			p.setLocation(i % board.getWidth(), i / board.getWidth());
+			Agent agent = board.getAgent(p);
+
+			movementPointsLeft[agent.getId()] = agent.getvMax();
+		}
+
+		return movementPointsLeft;
+	}
+
+	private void moveAgents(final int[] speedPointsLeft) {
+		// Pasy zwalniają sloty równolegle - kolejność zwolnień nie może
+		// wpływać na identyfikatory (a więc i strumienie losowe) nowych
+		// agentów.
+		AgentStore.getInstance().setLowestFirst(
+				updateMode == UpdateMode.STRIPED);
+
+		if (updateMode == UpdateMode.SYNCHRONOUS) {
+			moveAgentsSynchronously(speedPointsLeft);
+			return;
+		}
+
+		Board board = mall.getBoard();
+
+		if (updateMode == UpdateMode.STRIPED) {
+			if (stripedUpdate == null)
+				stripedUpdate = new StripedUpdate();
+			stripedUpdate.rebalance(board);
+
+			for (int step = 0; step < Agent.V_MAX; step++) {
+				final long tick = getTick(step);
+				wakeHeldAgents(tick);
+
+				moved.clear();
+				stripedUpdate.update(board, new StripedUpdate.StripeStep() {
+
+					@Override
+					public void run(int fromIndex, int toIndex) {
+						moveAgents(fromIndex, toIndex, speedPointsLeft, tick);
+					}
+				});
 			}
+		} else {
+			Point p = new Point();
+
+			scheduler.reset(board);
+			for (int step = 0; step < Agent.V_MAX; step++) {
+				long tick = getTick(step);
+				wakeHeldAgents(tick);
+
+				int nActive = scheduler.nextSubStep(board, speedPointsLeft,
+						step);
+
+				if (scheduler.getOrder() == SubStepScheduler.Order.SCAN) {
+					// Zbiór zajętych pól zmienia się w trakcie ruchu -
+					// kolejność jak przy przeglądaniu planszy wierszami.
+					for (int i = board.nextOccupied(0); i >= 0 && nActive > 0; i = board
+							.nextOccupied(i + 1)) {
+						p.setLocation(i % board.getWidth(), i / board.getWidth());
+						Agent a = board.getAgent(p);
+
+						if (!scheduler.isPending(a))
+							continue;
+
+						// Agent, który osiągnął cel, może jeszcze zostać
+						// rozpatrzony na innym polu.
+						if (moveAgent(board, a, p, speedPointsLeft, tick)) {
+							scheduler.markDone(a);
+							nActive--;
+						}
+					}
+				} else {
+					for (int i = 0; i < nActive; i++) {
+						Agent a = scheduler.getAgent(i);
+
+						// Agent mógł opuścić planszę w tym podkroku.
+						if (a.getDead())
+							continue;
+
+						p.setLocation(a.getX(), a.getY());
+						moveAgent(board, a, p, speedPointsLeft, tick);
+					}
+				}
+			}
+		}
+
+		this.setChanged();
+		this.notifyObservers();
+	}
+
+	/**
+	 * Przemieszcza (o jedno pole) agentów z pól o indeksach z przedziału
+	 * <code>[fromIndex, toIndex)</code>.
+	 */
+	private void moveAgents(int fromIndex, int toIndex, int[] speedPointsLeft,
+			long tick) {
+		Board board = mall.getBoard();
+		Point p = new Point();
+
+		// Zbiór zajętych pól zmienia się w trakcie ruchu - kolejność jak
+		// przy przeglądaniu planszy wierszami.
+		for (int i = board.nextOccupied(fromIndex); i >= 0 && i < toIndex; i = board
+				.nextOccupied(i + 1)) {
+			p.setLocation(i % board.getWidth(), i / board.getWidth());
+			Agent a = board.getAgent(p);
+
+			if (moved.get(a.getId()))
+				continue;
+
+			if (moveAgent(board, a, p, speedPointsLeft, tick))
+				moved.set(a.getId());
+		}
+	}
+
+	/**
+	 * Przemieszcza agenta stojącego na polu <code>p</code> o jedno pole.
+	 * 
+	 * @param tick
+	 *            numer podkroku (patrz {@link #getTick(int)})
+	 * @return <code>false</code>, gdy agent w tym podkroku nie był
+	 *         rozpatrywany (odczekuje lub osiągnął swój cel)
+	 */
+	private boolean moveAgent(Board board, Agent a, Point p,
+			int[] speedPointsLeft, long tick) {
+		if (a.getHoldTime() > 0)
+			return false;
+
+		// Agent osiągnął swój końcowy cel.
+		if (a.getTargetCount() == 0 || a.getTarget().equals(p))
+			return false;
+
+		if (speedPointsLeft[a.getId()] > 0) {
+			// XXX: w przyszłości można tu dodać model
+			// probabilistyczny (aby uzyskać w miarę
+			// równomierny rozkład wykonanych kroków w
+			// czasie)
+
+			board.getAlgorithm(p).nextIterationStep(board, a, speedPointsLeft);
+			board.getFeature(a.getX(), a.getY()).performAction(a);
+
+			speedPointsLeft[a.getId()]--;
+			holdIfNeeded(a, tick);
 		}
 
-		return speedPointsLeft;
+		return true;
+	}
+
+	/**
+	 * Numer podkroku liczony od początku symulacji.
+	 */
+	private long getTick(int subStep) {
+		return (long) stepCounter * Agent.V_MAX + subStep;
+	}
+
+	/**
+	 * Jeśli agent zatrzymał się (np. w sklepie), umieszcza go w kole
+	 * czasowym - zostanie wybudzony po upływie czasu oczekiwania (liczonego
+	 * w podkrokach).
+	 */
+	private void holdIfNeeded(Agent a, long tick) {
+		if (!a.getDead() && a.getHoldTime() > 0)
+			holdWheel.schedule(a, tick + a.getHoldTime() + 1);
+	}
+
+	/**
+	 * Wybudza agentów, których czas oczekiwania upływa w podkroku
+	 * <code>tick</code>.
+	 */
+	private void wakeHeldAgents(long tick) {
+		int n = holdWheel.advanceTo(tick);
+		for (int i = 0; i < n; i++) {
+			Agent a = holdWheel.getWoken(i);
+			if (a.getDead())
+				continue;
+
+			a.setHoldTime(0);
+			if (updateMode == UpdateMode.SEQUENTIAL)
+				scheduler.add(a);
+		}
 	}
 
-	private void moveAgents(Map<Agent, Integer> speedPointsLeft) {
+	private void moveAgentsSynchronously(int[] speedPointsLeft) {
+		Board board = mall.getBoard();
 		Point p = new Point();
-		Set<Agent> moved = new HashSet<Agent>();
+
+		if (synchronousUpdate == null)
+			synchronousUpdate = new SynchronousUpdate();
 
 		for (int step = 0; step < Agent.V_MAX; step++) {
-			moved.clear();
-			for (int y = 0; y < mall.getBoard().getHeight(); y++) {
-				for (int x = 0; x < mall.getBoard().getWidth(); x++) {
-					p.setLocation(x, y);
-					Agent a = mall.getBoard().getCell(p).getAgent();
-
-					if (a == null || moved.contains(a))
-						continue;
-
-					if (a.getHoldTime() > 0) {
-						a.decrementHoldTime();
-						continue;
-					}
+			long tick = getTick(step);
+			wakeHeldAgents(tick);
 
-					// Agent osiągnął swój końcowy cel.
-					if (a.getTargetCount() == 0 || a.getTarget().equals(p))
-						continue;
+			if (activeAgents.length < board.countAgents())
+				activeAgents = new Agent[Math.max(board.countAgents(),
+						2 * activeAgents.length)];
 
-					moved.add(a);
+			int nActive = 0;
+			for (int i = board.nextOccupied(0); i >= 0; i = board
+					.nextOccupied(i + 1)) {
+				p.setLocation(i % board.getWidth(), i / board.getWidth());
+				Agent a = board.getAgent(p);
 
-					if (speedPointsLeft.get(a) > 0) {
-						// XXX: w przyszłości można tu dodać model
-						// probabilistyczny (aby uzyskać w miarę
-						// równomierny rozkład wykonanych kroków w
-						// czasie)
+				if (a.getHoldTime() > 0)
+					continue;
 
-						mall.getBoard()
-								.getCell(p)
-								.getAlgorithm()
-								.nextIterationStep(mall.getBoard(), a,
-										speedPointsLeft);
-						mall.getBoard().getCell(a.getPosition()).getFeature()
-								.performAction(a);
+				// Agent osiągnął swój końcowy cel.
+				if (a.getTargetCount() == 0 || a.getTarget().equals(p))
+					continue;
 
-						speedPointsLeft.put(a, speedPointsLeft.get(a) - 1);
-					}
-				}
+				if (speedPointsLeft[a.getId()] > 0)
+					activeAgents[nActive++] = a;
+			}
+
+			if (nActive == 0)
+				break;
+
+			synchronousUpdate.update(board, activeAgents, nActive,
+					speedPointsLeft, step);
+
+			for (int i = 0; i < nActive; i++) {
+				Agent a = activeAgents[i];
+				activeAgents[i] = null;
+
+				if (a.getDead())
+					continue;
+
+				board.getFeature(a.getX(), a.getY()).performAction(a);
+				speedPointsLeft[a.getId()]--;
+				holdIfNeeded(a, tick);
 			}
 		}
 
@@ -274,7 +786,20 @@ public class Simulation extends Observable implements Runnable {
 		// Ilość agentów, którzy osiągnęli swój cel.
 		int targetsReached = 0;
 
+		// Liczba zatorów rozładowanych od ostatniej oceny.
+		int gridlocks = 0;
+
 		prepareBoardForNextStep();
+		holdWheel.clear();
+
+		// Oceny przerwanego wcześniej przebiegu nie mogą trafić do metryk
+		// ani logu tego przebiegu.
+		analytics.reset();
+		pendingLaneDirections.set(null);
+
+		metrics.reset();
+		openRunLog();
+		openTrajectories();
 
 		// ResourceManager.randomize(board, board.getHeight() * board.getWidth()
 		// / 50);
@@ -284,30 +809,51 @@ public class Simulation extends Observable implements Runnable {
 		int nAgentsBegin = mall.getBoard().countAgents();
 		nTotalAgents += nAgentsBegin;
 
-		for (stepCounter = 0; stepCounter < STEPS; stepCounter++) {
-			if (stepCounter % videoRecorder.getSimFramesPerAviFrame() == 0)
+		for (stepCounter = 0; stepCounter < steps; stepCounter++) {
+			if (videoRecorder != null
+					&& stepCounter % videoRecorder.getSimFramesPerAviFrame() == 0)
 				videoRecorder.recordFrame();
 
+			Rand.setStep(stepCounter);
+
+			applyLaneDirections();
+			applyComputedRoutes();
+
 			generateAgents();
 
 			targetsReached = computeTargetReached();
 
-			try {
-				Thread.sleep(GuiState.animationSpeed);
-			} catch (InterruptedException e) {
+			if (animated) {
+				try {
+					Thread.sleep(GuiState.animationSpeed);
+				} catch (InterruptedException e) {
+				}
 			}
 
+			gridlockDetector.begin(mall.getBoard());
 			prepareAgentsForNextStep();
 
-			Map<Agent, Integer> speedPointsLeft = computeMovementPointsLeft();
+			int[] speedPointsLeft = computeMovementPointsLeft();
 			moveAgents(speedPointsLeft);
 
 			clearAgentsOnExits();
 
-			assessPed4();
-			assessSocialDistances();
+			gridlocks += gridlockDetector.resolve(mall.getBoard());
+
+			recordTrajectories();
+
+			if (analytics.isDue(stepCounter)) {
+				analytics.publish(BoardSnapshot.capture(mall.getBoard(),
+						stepCounter, gridlocks));
+				gridlocks = 0;
+			}
 		}
 
+		analytics.flush();
+		applyLaneDirections();
+		closeRunLog();
+		closeTrajectories();
+
 		nAgentSuccesses += targetsReached;
 
 		System.out.println(String.format("Sukcesy agentów:\t %d / %d\t (%d%%)",
@@ -315,208 +861,195 @@ public class Simulation extends Observable implements Runnable {
 						/ nTotalAgents));
 	}
 
-	private void assessSocialDistances() {
-		Board board = mall.getBoard();
-		Point p = new Point();
-		SummaryTable summary = MallSim.getFrame().getSummaryTable();
-
-		int lost = 0;
-		double avgWalkingDistance = 0.0;
-		int nAgents = 0;
-
-		for (int x = 0; x < board.getWidth(); x++) {
-			for (int y = 0; y < board.getHeight(); y++) {
-				p.setLocation(x, y);
-
-				Agent a = board.getCell(p).getAgent();
-				if (a == null) {
-					continue;
-				}
+	private void assessSocialDistances(StepAssessment assessment) {
+		int lost = assessment.getLost();
+		double avgWalkingDistance = assessment.getAvgWalkingDistance();
 
-				nAgents++;
-
-				if (a.isLost())
-					lost++;
-
-				if (a.getFieldsMoved() < a.getInitialDistanceToTarget()
-						|| a.getInitialDistanceToTarget() == 0.0) {
-					avgWalkingDistance += 1.0;
-				} else {
-					Double d = a.getFieldsMoved()
-							/ (double) a.getInitialDistanceToTarget();
-
-					avgWalkingDistance += (d.isInfinite() || d.isNaN()) ? 1.0
-							: d;
-				}
-			}
-		}
-
-		avgWalkingDistance /= (double) nAgents;
-
-		summary.setParamValue(Param.LOST, lost);
-		summary.setParamValue(Param.AVG_DISTANCE, avgWalkingDistance);
+		lostAgents.set(lost);
+		avgLost.add(lost);
+		avgDistance.set(avgWalkingDistance);
+		avgAvgDistance.add(avgWalkingDistance);
+	}
 
-		summary.nextSample();
+	/**
+	 * Zapisuje liczbę zatorów wykrytych od poprzedniej oceny (patrz
+	 * {@link GridlockDetector}).
+	 */
+	private void assessGridlocks(StepAssessment assessment) {
+		int gridlocks = assessment.getGridlocks();
 
-		try {
-			if (logWriter != null)
-				logWriter.write(String.format("%d;%s\r\n", lost,
-						WriterUtils.decimalFormat.format(avgWalkingDistance)));
-		} catch (IOException e) {
-		}
+		stepGridlocks.set(gridlocks);
+		avgGridlocks.add(gridlocks);
+		totalGridlocks.add(gridlocks);
 	}
 
 	private void prepareBoardForNextStep() {
-		Point p = new Point();
-		for (int y = 0; y < mall.getBoard().getHeight(); y++) {
-			for (int x = 0; x < mall.getBoard().getWidth(); x++) {
-				p.setLocation(x, y);
-				mall.getBoard().getCell(p).clearVisitsCounter();
-			}
-		}
+		mall.getBoard().clearVisitsCounters();
 	}
 
-	private void assessPed4() {
-		Board board = mall.getBoard();
-		Point p = new Point();
-		SummaryTable summary = MallSim.getFrame().getSummaryTable();
-
-		// TODO: enum map (ile kratek danego typu)
-
-		int left = 0;
-		int right = 0;
-		int none = 0;
-
-		for (int x = 0; x < board.getWidth(); x++) {
-			for (int y = 0; y < board.getHeight(); y++) {
-				p.setLocation(x, y);
-
-				LaneDirection dir = assessRow(y, x);
-
-				switch (dir) {
-				case EAST:
-					right++;
-					break;
-				case WEST:
-					left++;
-					break;
-				case NONE:
-					none++;
-					break;
-				default:
-					break;
-				}
-
-				board.getCell(p).setLaneDirection(dir);
-			}
-		}
+	/**
+	 * Przenosi na planszę kierunki pasów z ostatniej oceny (w wątku
+	 * symulacji - plansza nie jest modyfikowana przez wątek analiz).
+	 */
+	private void applyLaneDirections() {
+		byte[] laneDirections = pendingLaneDirections.getAndSet(null);
+		if (laneDirections != null)
+			mall.getBoard().setLaneDirections(laneDirections);
+	}
 
-		double all = left + right + none;
-		double perc = (all == 0) ? 100.0 : (all - none) / all * 100.0;
-
-		summary.setParamValue(Param.PERC_OF_FIELDS_AS_LANES, perc);
-
-		// Coherence - miara spójnosci alejek (niespójnosc pojawia sie, gdy
-		// jeden pas otoczony jest dwoma innymi o przeciwnym kierunku (EWE albo
-		// WEW).
-		Point p0 = new Point();
-		Point p2 = new Point();
-		int coherence = 0;
-		for (int x = 0; x < board.getWidth(); x++) {
-			for (int y = 1; y < board.getHeight() - 1; y++) {
-				p0.setLocation(x, y - 1);
-				p.setLocation(x, y);
-				p2.setLocation(x, y + 1);
-
-				LaneDirection dir1 = board.getCell(p0).getLaneDirection();
-				LaneDirection dir2 = board.getCell(p).getLaneDirection();
-				LaneDirection dir3 = board.getCell(p2).getLaneDirection();
-
-				if (dir1.isDirection() && dir2.isDirection()
-						&& dir2.isDirection() && dir1 == dir3 && dir1 != dir2)
-					coherence--;
-			}
-		}
-		summary.setParamValue(Param.LANES_COHERENCE, coherence);
+	/**
+	 * Zapisuje wyniki ocen kroku (wywoływana w wątku analiz, w kolejności
+	 * kroków).
+	 */
+	private void recordAssessment(StepAssessment assessment) {
+		pendingLaneDirections.set(assessment.getLaneDirections());
+
+		assessPed4(assessment);
+		assessSocialDistances(assessment);
+		assessGridlocks(assessment);
+
+		assessedSteps.increment();
+
+		RunLogWriter log = runLog;
+		if (log != null)
+			log.append(assessment.getStep(),
+					assessment.getPercentOfFieldsAsLanes(),
+					assessment.getLanesCoherence(), assessment.getLost(),
+					assessment.getAvgWalkingDistance(),
+					assessment.getGridlocks());
+	}
 
-		summary.nextSample();
+	private void assessPed4(StepAssessment assessment) {
+		double perc = assessment.getPercentOfFieldsAsLanes();
+		int coherence = assessment.getLanesCoherence();
 
-		try {
-			if (logWriter != null)
-				logWriter.write(String.format("%s;%d;",
-						WriterUtils.decimalFormat.format(perc), coherence));
-		} catch (IOException e) {
-		}
+		percOfFieldsAsLanes.set(perc);
+		avgPercOfFieldsAsLanes.add(perc);
+		lanesCoherence.set(coherence);
+		avgLanesCoherence.add(coherence);
 	}
 
 	private void clearAgentsOnExits() {
 		Board board = mall.getBoard();
 		Point p = new Point();
 		Agent agent = null;
-		for (int x = 0; x < board.getWidth(); x++) {
-			for (int y = 0; y < board.getHeight(); y++) {
-				p.setLocation(x, y);
-				agent = board.getCell(p).getAgent();
-
-				boolean isAgentOnExit = false;// board.getCell(p).getFeature()
-												// instanceof Spawner && agent
-												// != null &&
-												// agent.getTargetCount() == 0;
-				boolean isAgentNearExit = agent != null
-						&& agent.getTargetCount() == 0;
-				if (isAgentOnExit || isAgentNearExit) {
-					board.setAgent(null, p);
-				}
+		for (int i = board.nextOccupied(0); i >= 0; i = board
+				.nextOccupied(i + 1)) {
+			p.setLocation(i % board.getWidth(), i / board.getWidth());
+			agent = board.getAgent(p);
+
+			boolean isAgentOnExit = false;// board.getFeature(p)
+											// instanceof Spawner && agent
+											// != null &&
+											// agent.getTargetCount() == 0;
+			boolean isAgentNearExit = agent.getTargetCount() == 0;
+			if (isAgentOnExit || isAgentNearExit) {
+				board.setAgent(null, p);
+				agent.release();
 			}
 		}
 	}
 
 	private void computePaths() {
-		BlockingQueue<Agent> agentsToCompute = new LinkedBlockingQueue<>(5);
-		List<TacticalWorker> threads = new ArrayList<>(NUM_TACTICAL_THREADS);
-
-		for (int i = 0; i < NUM_TACTICAL_THREADS; i++) {
-			TacticalWorker t = new TacticalWorker(agentsToCompute,
-					mall.getBoard());
-			threads.add(t);
-			t.start();
-		}
+		pendingRoutes.clear();
 
 		if (mall.getBoard().countAgents() == 0) {
 			mall.getBoard().setAgent(new Agent(MovementBehavior.DYNAMIC),
 					new Point(2, 2));
 		}
 
-		Point p = new Point();
-		for (int y = 0; y < mall.getBoard().getHeight(); y++) {
-			for (int x = 0; x < mall.getBoard().getWidth(); x++) {
-				p.setLocation(x, y);
-				Agent a = mall.getBoard().getCell(p).getAgent();
-				if (a != null) {
-					try {
-						agentsToCompute.put(a);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-			}
-		}
-
-		for (TacticalWorker t : threads) {
-			t.setStopped();
+		for (Point p : mall.getBoard().getOccupiedPositions()) {
+			computePaths(mall.getBoard().getAgent(p));
 		}
 	}
 
+	/**
+	 * Picks agent's targets and sets its route. Routes which need to be
+	 * searched for are requested from the route service - until the route is
+	 * computed the agent walks straight towards the targets.
+	 * 
+	 * @param agent
+	 */
 	private void computePaths(Agent agent) {
-		try {
-			agentsToCompute.put(agent);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		Board board = mall.getBoard();
+		Point[] targets = Tactical.pickTargets(board, agent);
+
+		agent.clearTargets();
+
+		if (distanceFieldRouting
+				&& Tactical.isCoveredByDistanceFields(board,
+						agent.getPosition(), targets)) {
+			List<Point> route = Tactical.computePaths(board,
+					agent.getPosition(), Tactical.nlaMoore, targets, true);
+			if (!route.isEmpty()) {
+				for (Point target : route)
+					agent.addTarget(target);
+
+				Point p = agent.getPosition();
+				Point t = agent.getTarget();
+				agent.setInitialDistanceToTarget(Math.abs(p.x - t.x)
+						+ Math.abs(p.y - t.y));
+				return;
+			}
 		}
 
-		TacticalWorker t = new TacticalWorker(agentsToCompute, mall.getBoard());
-		t.start();
-		t.setStopped();
+		for (Point target : targets)
+			agent.addTarget(target);
+
+		pendingRoutes.put(agent,
+				routeService.requestRoute(board, agent.getPosition(), targets,
+						distanceFieldRouting));
+	}
+
+	/**
+	 * Replaces provisional targets of agents with the routes requested during
+	 * the previous step.
+	 * <p>
+	 * The routes are always applied exactly one step after being requested
+	 * (waiting for the service if needed), so the results do not depend on
+	 * the speed nor the number of the route workers.
+	 */
+	private void applyComputedRoutes() {
+		Board board = mall.getBoard();
+
+		for (Iterator<Map.Entry<Agent, Future<List<Point>>>> it = pendingRoutes
+				.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<Agent, Future<List<Point>>> entry = it.next();
+			it.remove();
+
+			Agent agent = entry.getKey();
+			List<Point> route;
+			try {
+				route = entry.getValue().get();
+			} catch (InterruptedException | ExecutionException e) {
+				LOGGER.severe("Could not compute route: " + e.getMessage());
+				continue;
+			}
+
+			// Agent opuścił już planszę lub nie istnieje ścieżka do celu.
+			boolean isOnBoard = !agent.getDead()
+					&& board.getAgent(agent.getPosition()) == agent;
+			if (!isOnBoard || agent.getTargetCount() == 0 || route.isEmpty())
+				continue;
+
+			// Agent mógł się przemieścić w trakcie wyznaczania trasy - pomiń
+			// punkty poprzedzające najbliższy z nich.
+			Point p = agent.getPosition();
+			int nearest = 0;
+			for (int i = 1; i < route.size(); i++) {
+				if (p.distanceSq(route.get(i)) < p.distanceSq(route
+						.get(nearest)))
+					nearest = i;
+			}
+
+			agent.clearTargets();
+			for (Point target : route.subList(nearest, route.size()))
+				agent.addTarget(target);
+
+			Point t = agent.getTarget();
+			agent.setInitialDistanceToTarget(Math.abs(p.x - t.x)
+					+ Math.abs(p.y - t.y));
+		}
 	}
 
 	private void generateAgents() {
@@ -534,9 +1067,9 @@ public class Simulation extends Observable implements Runnable {
 			List<Point> ioPoints = board.getIoPoints();
 
 			// Select an empty field.
-			Collections.shuffle(ioPoints);
+			Rand.shuffle(ioPoints);
 			for (Point p : ioPoints) {
-				if (board.getCell(p).getAgent() == null) {
+				if (board.getAgent(p) == null) {
 					Agent agent = new Agent(MovementBehavior.AVERAGE);
 					board.setAgent(agent, p);
 					computePaths(agent);
@@ -575,89 +1108,17 @@ public class Simulation extends Observable implements Runnable {
 			b.setAgent(new Agent(agents[i]), new Point(i + 2, 1));
 		}
 
-		assessRow(1, 1);
-	}
-
-	private LaneDirection assessRow(int rowIndex, int columnIndex) {
-		int sumOfDirections = 0;
-		int nAgents = 0; // number of agents
-		List<Direction> groupDirections = new ArrayList<>();
-		LinkedList<Integer> groupSizes = new LinkedList<>();
-
-		Point p = new Point();
-
-		int startCol = Math.max(0, columnIndex - ASSESSMENT_FRAME_WIDTH / 2);
-		int endCol = Math.min(mall.getBoard().getWidth(), startCol
-				+ ASSESSMENT_FRAME_WIDTH);
-
-		for (int colInx = startCol; colInx < endCol; colInx++) {
-			p.setLocation(colInx, rowIndex);
-			Agent agent = mall.getBoard().getCell(p).getAgent();
-
-			if (agent == null)
-				continue;
-
-			nAgents++;
-
-			sumOfDirections += agent.getDirection().getVec().x;
-
-			Direction lastGroupDirection = Iterables.getLast(groupDirections,
-					null);
-			boolean isSameDirection = lastGroupDirection == agent
-					.getDirection();
-			boolean bothVertical = lastGroupDirection == null ? false
-					: lastGroupDirection.isVertical()
-							&& agent.getDirection().isVertical();
-			if (!(isSameDirection || bothVertical)) {
-				// start new group
-				groupDirections.add(agent.getDirection());
-				groupSizes.add(0);
-			}
-
-			Integer size = groupSizes.getLast();
-			groupSizes.removeLast();
-			groupSizes.addLast(size + 1);
-		}
-
-		double dominantDirection = sumOfDirections / (double) nAgents;
-
-		double avgGroupSize = 0;
-		for (Integer s : groupSizes)
-			avgGroupSize += s;
-		avgGroupSize /= groupSizes.size();
-
-		double varWest = 0.0;
-		double varEast = 0.0;
-		for (int i = 0; i < groupSizes.size(); i++) {
-			int s = groupSizes.get(i);
-			if (groupDirections.get(i) == Direction.W)
-				varWest += (s - avgGroupSize) * (s - avgGroupSize);
-			else if (groupDirections.get(i) == Direction.E)
-				varEast += (s - avgGroupSize) * (s - avgGroupSize);
-		}
-
-		double density = nAgents / (double) ASSESSMENT_FRAME_WIDTH;
-
-		boolean hasDirection = (density < 0.6)
-				&& (Math.abs(dominantDirection) > 0.6);
-
-		if (groupSizes.isEmpty())
-			return LaneDirection.EMPTY;
-
-		if (hasDirection) {
-			return (dominantDirection > 0.0) ? LaneDirection.EAST
-					: LaneDirection.WEST;
-		} else {
-			return LaneDirection.NONE;
-		}
+		analytics.publish(BoardSnapshot.capture(b, stepCounter, 0));
 	}
 
 	public void finish() {
-		if (logWriter != null) {
-			try {
-				logWriter.close();
-			} catch (IOException e) {
-			}
-		}
+		routeService.shutdown();
+		if (synchronousUpdate != null)
+			synchronousUpdate.shutdown();
+		if (stripedUpdate != null)
+			stripedUpdate.shutdown();
+		analytics.shutdown();
+		closeRunLog();
+		closeTrajectories();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,242 @@
+package sim.analytics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Oceny stanu symulacji wykonywane w osobnym wątku, równolegle z kolejnymi
+ * krokami.
+ * <p>
+ * Wątek symulacji co {@link #getInterval()} kroków publikuje obraz planszy
+ * ({@link BoardSnapshot}), który trafia do ograniczonej kolejki (gdy oceny
+ * nie nadążają, publikowanie wstrzymuje symulację). Jedyny wątek analiz
+ * ocenia obrazy w kolejności kroków i przekazuje wyniki
+ * ({@link StepAssessment}) słuchaczom - również w kolejności kroków.
+ * <p>
+ * Przed kolejnym przebiegiem należy wywołać {@link #reset()} - obrazy i
+ * wyniki poprzedniego przebiegu (np. przerwanego) są wówczas pomijane.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class AnalyticsPipeline {
+
+	/**
+	 * Odbiorca wyników (wywoływany w wątku analiz).
+	 */
+	public static interface Listener {
+		public void stepAssessed(StepAssessment assessment);
+	}
+
+	/**
+	 * Domyślna pojemność kolejki obrazów.
+	 */
+	public static final int DEFAULT_CAPACITY = 16;
+
+	private final static Logger LOGGER = Logger
+			.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	/**
+	 * Znacznik końca pracy wątku analiz.
+	 */
+	private static final Object POISON = new Object();
+
+	/**
+	 * Obraz planszy wraz z numerem przebiegu, w którym został opublikowany.
+	 */
+	private static class Entry {
+		final BoardSnapshot snapshot;
+		final long run;
+
+		Entry(BoardSnapshot snapshot, long run) {
+			this.snapshot = snapshot;
+			this.run = run;
+		}
+	}
+
+	private final BlockingQueue<Object> queue;
+
+	private final LaneAssessment lanes = new LaneAssessment();
+	private final SocialDistanceAssessment socialDistances = new SocialDistanceAssessment();
+
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	private final Thread worker;
+
+	private volatile int interval = 1;
+
+	// Liczba opublikowanych i ocenionych obrazów (chronione przez this).
+	private long published = 0;
+	private long processed = 0;
+
+	/**
+	 * Numer bieżącego przebiegu (chroniony przez this).
+	 */
+	private long run = 0;
+
+	public AnalyticsPipeline() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            maksymalna liczba obrazów oczekujących na ocenę
+	 */
+	public AnalyticsPipeline(int capacity) {
+		queue = new ArrayBlockingQueue<>(capacity);
+
+		worker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				process();
+			}
+		}, "analytics");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @param interval
+	 *            co ile kroków symulacji wykonywane są oceny
+	 */
+	public void setInterval(int interval) {
+		if (interval < 1)
+			throw new IllegalArgumentException("Interval must be positive");
+
+		this.interval = interval;
+	}
+
+	/**
+	 * Czy w danym kroku należy opublikować obraz planszy?
+	 */
+	public boolean isDue(int step) {
+		return step % interval == 0;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Przekazuje obraz planszy do oceny (czeka, gdy kolejka jest pełna).
+	 *
+	 * @param snapshot
+	 */
+	public void publish(BoardSnapshot snapshot) {
+		Entry entry;
+		synchronized (this) {
+			published++;
+			entry = new Entry(snapshot, run);
+		}
+
+		try {
+			queue.put(entry);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			synchronized (this) {
+				published--;
+			}
+		}
+	}
+
+	/**
+	 * Rozpoczyna nowy przebieg: pomija obrazy oczekujące na ocenę, a wyniki
+	 * obrazu ocenianego w tej chwili nie trafią do słuchaczy. Po powrocie
+	 * słuchacze nie otrzymają już wyników poprzedniego przebiegu.
+	 */
+	public synchronized void reset() {
+		run++;
+		queue.clear();
+		published = processed;
+		notifyAll();
+	}
+
+	/**
+	 * Czeka, aż wszystkie opublikowane obrazy zostaną ocenione.
+	 */
+	public synchronized void flush() {
+		while (processed < published && worker.isAlive()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void process() {
+		while (true) {
+			Object item;
+			try {
+				item = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			if (item == POISON)
+				break;
+
+			Entry entry = (Entry) item;
+			BoardSnapshot snapshot = entry.snapshot;
+			StepAssessment assessment = null;
+			try {
+				lanes.assess(snapshot);
+				socialDistances.assess(snapshot);
+
+				assessment = new StepAssessment(snapshot, lanes,
+						socialDistances);
+			} catch (RuntimeException e) {
+				LOGGER.severe("Could not assess step " + snapshot.getStep()
+						+ ": " + e);
+			}
+
+			// Wyniki przekazywane są pod blokadą, więc reset() czeka na
+			// zakończenie ich obsługi.
+			synchronized (this) {
+				if (entry.run != run)
+					continue;
+
+				if (assessment != null) {
+					try {
+						for (Listener listener : listeners)
+							listener.stepAssessed(assessment);
+					} catch (RuntimeException e) {
+						LOGGER.severe("Could not record step "
+								+ snapshot.getStep() + ": " + e);
+					}
+				}
+
+				processed++;
+				notifyAll();
+			}
+		}
+
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Ocenia pozostałe obrazy i kończy pracę wątku analiz.
+	 */
+	public void shutdown() {
+		flush();
+
+		try {
+			queue.put(POISON);
+			worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		lanes.shutdown();
+	}
+}
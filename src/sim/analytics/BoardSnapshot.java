@@ -0,0 +1,111 @@
+package sim.analytics;
+
+import sim.model.Agent;
+import sim.model.Board;
+
+/**
+ * Niezmienny obraz stanu planszy po danym kroku symulacji - położenia i
+ * kierunki agentów oraz dane potrzebne do oceny ich tras.
+ * <p>
+ * Obraz wykonywany jest w wątku symulacji (kopiowane są jedynie dane
+ * agentów), a oceniany w wątku analiz (patrz {@link AnalyticsPipeline}),
+ * równolegle z kolejnymi krokami.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class BoardSnapshot {
+
+	private final int step;
+	private final int width;
+	private final int height;
+
+	/**
+	 * Liczba zatorów rozładowanych w danym kroku.
+	 */
+	private final int gridlocks;
+
+	// Dane agentów w kolejności wierszowej pól.
+	final int nAgents;
+	final int[] cells;
+	final byte[] directions;
+	final boolean[] lost;
+	final int[] fieldsMoved;
+	final double[] initialDistances;
+
+	/**
+	 * Pozycja pierwszego agenta z danego wiersza (ostatni element - liczba
+	 * agentów).
+	 */
+	final int[] rowStarts;
+
+	private BoardSnapshot(Board board, int step, int gridlocks) {
+		this.step = step;
+		this.width = board.getWidth();
+		this.height = board.getHeight();
+		this.gridlocks = gridlocks;
+
+		nAgents = board.countAgents();
+		cells = new int[nAgents];
+		directions = new byte[nAgents];
+		lost = new boolean[nAgents];
+		fieldsMoved = new int[nAgents];
+		initialDistances = new double[nAgents];
+		rowStarts = new int[height + 1];
+
+		int k = 0;
+		int y = 0;
+		for (int i = board.nextOccupied(0); i >= 0; i = board
+				.nextOccupied(i + 1)) {
+			Agent a = board.getAgent(i % width, i / width);
+
+			while (y <= i / width)
+				rowStarts[y++] = k;
+
+			cells[k] = i;
+			directions[k] = (byte) a.getDirection().ordinal();
+			lost[k] = a.isLost();
+			fieldsMoved[k] = a.getFieldsMoved();
+			initialDistances[k] = a.getInitialDistanceToTarget();
+			k++;
+		}
+
+		assert (k == nAgents);
+
+		while (y <= height)
+			rowStarts[y++] = k;
+	}
+
+	/**
+	 * Wykonuje obraz planszy (w wątku symulacji).
+	 *
+	 * @param board
+	 * @param step
+	 *            numer kroku symulacji
+	 * @param gridlocks
+	 *            liczba zatorów rozładowanych w danym kroku
+	 */
+	public static BoardSnapshot capture(Board board, int step, int gridlocks) {
+		return new BoardSnapshot(board, step, gridlocks);
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getGridlocks() {
+		return gridlocks;
+	}
+
+	public int countAgents() {
+		return nAgents;
+	}
+}
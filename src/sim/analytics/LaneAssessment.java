@@ -0,0 +1,286 @@
+package sim.analytics;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import sim.model.algo.Ped4.LaneDirection;
+
+/**
+ * Ocena tworzenia się pasów ruchu (alejek) w modelu Ped4.
+ * <p>
+ * Każde pole klasyfikowane jest na podstawie agentów w poziomej ramce o
+ * szerokości {@link #FRAME_WIDTH} pól: pas ma kierunek, gdy zagęszczenie w
+ * ramce jest niewielkie, a przeważająca część agentów idzie w tę samą stronę
+ * (wschód lub zachód). Liczba agentów i suma ich poziomych kierunków w ramce
+ * wyznaczane są z sum prefiksowych obliczanych raz dla całego wiersza, więc
+ * ocena całej planszy zajmuje czas O(W * H). Wiersze przetwarzane są
+ * równolegle - wynik nie zależy od liczby wątków.
+ * <p>
+ * Ocena wykonywana jest na obrazie planszy ({@link BoardSnapshot}), więc
+ * może przebiegać równolegle z kolejnymi krokami symulacji.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class LaneAssessment {
+
+	/**
+	 * Szerokość ramki (~10m). Jej wysokość zależy od szerokości korytarza.
+	 */
+	public static final int FRAME_WIDTH = 15;
+
+	/**
+	 * Minimalna liczba wierszy przetwarzana przez jedno zadanie.
+	 */
+	private static final int ROWS_PER_TASK = 16;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * Pozioma składowa kierunków (indeksowana numerem porządkowym
+	 * kierunku).
+	 */
+	private static final int[] DX = { 0, 1, 0, -1 };
+
+	private static final LaneDirection[] LANE_DIRECTIONS = LaneDirection
+			.values();
+
+	private static final ThreadLocal<RowScratch> scratch = new ThreadLocal<RowScratch>() {
+		@Override
+		protected RowScratch initialValue() {
+			return new RowScratch();
+		}
+	};
+
+	/**
+	 * Sumy prefiksowe wiersza: liczba agentów i suma ich poziomych kierunków
+	 * na polach <code>[0, x)</code>.
+	 */
+	private static class RowScratch {
+		int[] counts = new int[1];
+		int[] sums = new int[1];
+
+		void ensureCapacity(int width) {
+			if (counts.length < width + 1) {
+				counts = new int[width + 1];
+				sums = new int[width + 1];
+			}
+		}
+	}
+
+	// Wyniki dla poszczególnych wierszy.
+	private int[] rowLanes = new int[0];
+	private int[] rowNone = new int[0];
+	private int[] rowCoherence = new int[0];
+
+	private BoardSnapshot snapshot;
+
+	/**
+	 * Numery porządkowe {@link LaneDirection} wyznaczone dla pól planszy
+	 * (nowa tablica w każdej ocenie).
+	 */
+	private byte[] laneDirections = new byte[0];
+
+	private double percentOfFieldsAsLanes = 100.0;
+	private int coherence = 0;
+
+	/**
+	 * Creates an assessment with one worker per available processor.
+	 */
+	public LaneAssessment() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public LaneAssessment(int parallelism) {
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Wyznacza kierunki pasów dla wszystkich pól planszy oraz miary
+	 * opisujące pasy.
+	 *
+	 * @param snapshot
+	 */
+	public void assess(BoardSnapshot snapshot) {
+		this.snapshot = snapshot;
+
+		int height = snapshot.getHeight();
+		laneDirections = new byte[snapshot.getWidth() * height];
+		if (rowLanes.length < height) {
+			rowLanes = new int[height];
+			rowNone = new int[height];
+			rowCoherence = new int[height];
+		}
+
+		// Spójność wymaga kierunków z sąsiednich wierszy - dwie fazy.
+		pool.invoke(new RowTask(0, height, false));
+		pool.invoke(new RowTask(0, height, true));
+
+		int lanes = 0;
+		int none = 0;
+		coherence = 0;
+		for (int y = 0; y < height; y++) {
+			lanes += rowLanes[y];
+			none += rowNone[y];
+			coherence += rowCoherence[y];
+		}
+
+		double all = lanes + none;
+		percentOfFieldsAsLanes = (all == 0) ? 100.0 : (all - none) / all
+				* 100.0;
+
+		this.snapshot = null;
+	}
+
+	/**
+	 * Zwraca kierunki pasów wyznaczone w ostatniej ocenie (tablica nie jest
+	 * później modyfikowana).
+	 *
+	 * @return numery porządkowe {@link LaneDirection} (indeksowane numerem
+	 *         pola)
+	 */
+	public byte[] getLaneDirections() {
+		return laneDirections;
+	}
+
+	/**
+	 * @return procent pól (z agentami w ramce), na których wykształcił się
+	 *         pas ruchu
+	 */
+	public double getPercentOfFieldsAsLanes() {
+		return percentOfFieldsAsLanes;
+	}
+
+	/**
+	 * Miara spójności pasów - niespójność pojawia się, gdy pas otoczony jest
+	 * dwoma innymi o przeciwnym kierunku (EWE albo WEW).
+	 *
+	 * @return liczba (ze znakiem minus) niespójnych pól
+	 */
+	public int getCoherence() {
+		return coherence;
+	}
+
+	private class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final boolean isCoherencePhase;
+
+		RowTask(int from, int to, boolean isCoherencePhase) {
+			this.from = from;
+			this.to = to;
+			this.isCoherencePhase = isCoherencePhase;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= ROWS_PER_TASK) {
+				for (int y = from; y < to; y++) {
+					if (isCoherencePhase)
+						rowCoherence[y] = assessCoherence(y);
+					else
+						assessRow(y);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new RowTask(from, mid, isCoherencePhase),
+						new RowTask(mid, to, isCoherencePhase));
+			}
+		}
+	}
+
+	private void assessRow(int y) {
+		int width = snapshot.getWidth();
+
+		RowScratch s = scratch.get();
+		s.ensureCapacity(width);
+		int[] counts = s.counts;
+		int[] sums = s.sums;
+
+		// Najpierw liczba agentów i kierunek na każdym polu, następnie sumy.
+		for (int x = 0; x <= width; x++) {
+			counts[x] = 0;
+			sums[x] = 0;
+		}
+		for (int k = snapshot.rowStarts[y]; k < snapshot.rowStarts[y + 1]; k++) {
+			int x = snapshot.cells[k] - y * width;
+			counts[x + 1] = 1;
+			sums[x + 1] = DX[snapshot.directions[k]];
+		}
+		for (int x = 1; x <= width; x++) {
+			counts[x] += counts[x - 1];
+			sums[x] += sums[x - 1];
+		}
+
+		int lanes = 0;
+		int none = 0;
+		for (int x = 0; x < width; x++) {
+			int startCol = Math.max(0, x - FRAME_WIDTH / 2);
+			int endCol = Math.min(width, startCol + FRAME_WIDTH);
+
+			LaneDirection dir = classify(counts[endCol] - counts[startCol],
+					sums[endCol] - sums[startCol]);
+
+			if (dir == LaneDirection.NONE)
+				none++;
+			else if (dir.isDirection())
+				lanes++;
+
+			laneDirections[y * width + x] = (byte) dir.ordinal();
+		}
+
+		rowLanes[y] = lanes;
+		rowNone[y] = none;
+	}
+
+	/**
+	 * @param nAgents
+	 *            liczba agentów w ramce
+	 * @param sumOfDirections
+	 *            suma poziomych składowych kierunków agentów w ramce
+	 */
+	private static LaneDirection classify(int nAgents, int sumOfDirections) {
+		// Brak agentów w ramce.
+		if (nAgents == 0)
+			return LaneDirection.EMPTY;
+
+		double dominantDirection = sumOfDirections / (double) nAgents;
+		double density = nAgents / (double) FRAME_WIDTH;
+
+		boolean hasDirection = (density < 0.6)
+				&& (Math.abs(dominantDirection) > 0.6);
+
+		if (hasDirection) {
+			return (dominantDirection > 0.0) ? LaneDirection.EAST
+					: LaneDirection.WEST;
+		} else {
+			return LaneDirection.NONE;
+		}
+	}
+
+	private int assessCoherence(int y) {
+		int width = snapshot.getWidth();
+		if (y == 0 || y == snapshot.getHeight() - 1)
+			return 0;
+
+		int result = 0;
+		for (int x = 0; x < width; x++) {
+			LaneDirection dir1 = LANE_DIRECTIONS[laneDirections[(y - 1)
+					* width + x]];
+			LaneDirection dir2 = LANE_DIRECTIONS[laneDirections[y * width + x]];
+			LaneDirection dir3 = LANE_DIRECTIONS[laneDirections[(y + 1)
+					* width + x]];
+
+			if (dir1.isDirection() && dir2.isDirection() && dir1 == dir3
+					&& dir1 != dir2)
+				result--;
+		}
+		return result;
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+}
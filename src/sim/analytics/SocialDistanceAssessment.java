@@ -0,0 +1,53 @@
+package sim.analytics;
+
+/**
+ * Ocena tras agentów: liczba agentów, którzy się zgubili (wielokrotnie
+ * odwiedzają te same pola), oraz średni stosunek przebytej drogi do
+ * odległości od celu.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class SocialDistanceAssessment {
+
+	private int lost = 0;
+	private double avgWalkingDistance = 0.0;
+
+	public void assess(BoardSnapshot snapshot) {
+		lost = 0;
+		avgWalkingDistance = 0.0;
+
+		for (int k = 0; k < snapshot.nAgents; k++) {
+			if (snapshot.lost[k])
+				lost++;
+
+			int fieldsMoved = snapshot.fieldsMoved[k];
+			double initialDistance = snapshot.initialDistances[k];
+
+			if (fieldsMoved < initialDistance || initialDistance == 0.0) {
+				avgWalkingDistance += 1.0;
+			} else {
+				Double d = fieldsMoved / initialDistance;
+
+				avgWalkingDistance += (d.isInfinite() || d.isNaN()) ? 1.0 : d;
+			}
+		}
+
+		avgWalkingDistance /= (double) snapshot.nAgents;
+	}
+
+	/**
+	 * @return liczba zgubionych agentów
+	 */
+	public int getLost() {
+		return lost;
+	}
+
+	/**
+	 * @return średni stosunek przebytej drogi do początkowej odległości od
+	 *         celu
+	 */
+	public double getAvgWalkingDistance() {
+		return avgWalkingDistance;
+	}
+}
@@ -0,0 +1,64 @@
+package sim.analytics;
+
+/**
+ * Wyniki ocen wykonanych dla danego kroku symulacji.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class StepAssessment {
+
+	private final int step;
+	private final double percentOfFieldsAsLanes;
+	private final int lanesCoherence;
+	private final int lost;
+	private final double avgWalkingDistance;
+	private final int gridlocks;
+	private final byte[] laneDirections;
+
+	StepAssessment(BoardSnapshot snapshot, LaneAssessment lanes,
+			SocialDistanceAssessment socialDistances) {
+		step = snapshot.getStep();
+		percentOfFieldsAsLanes = lanes.getPercentOfFieldsAsLanes();
+		lanesCoherence = lanes.getCoherence();
+		lost = socialDistances.getLost();
+		avgWalkingDistance = socialDistances.getAvgWalkingDistance();
+		gridlocks = snapshot.getGridlocks();
+		laneDirections = lanes.getLaneDirections();
+	}
+
+	/**
+	 * @return numer kroku, którego dotyczą wyniki
+	 */
+	public int getStep() {
+		return step;
+	}
+
+	public double getPercentOfFieldsAsLanes() {
+		return percentOfFieldsAsLanes;
+	}
+
+	public int getLanesCoherence() {
+		return lanesCoherence;
+	}
+
+	public int getLost() {
+		return lost;
+	}
+
+	public double getAvgWalkingDistance() {
+		return avgWalkingDistance;
+	}
+
+	public int getGridlocks() {
+		return gridlocks;
+	}
+
+	/**
+	 * @return numery porządkowe kierunków pasów (indeksowane numerem pola;
+	 *         tablicy nie należy modyfikować)
+	 */
+	public byte[] getLaneDirections() {
+		return laneDirections;
+	}
+}
@@ -0,0 +1,166 @@
+package sim.cli;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import sim.Simulation;
+import sim.Simulation.UpdateMode;
+import sim.control.ResourceManager;
+import sim.control.SubStepScheduler;
+import sim.model.Mall;
+import sim.model.helpers.Rand;
+import sim.util.trajectory.TrajectoryWriter;
+
+/**
+ * Headless entry point: runs a single simulation without GUI, animation
+ * pauses nor video recording and writes the assessment results to a binary
+ * run log (see {@link RunLogExport} for the conversion to CSV). Optionally
+ * the trajectories of agents are recorded (see {@link TrajectoryWriter}).
+ * Routes are searched with A* unless <code>-routing fields</code> is given
+ * (routes to exits then follow the precomputed distance fields).
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java sim.cli.BatchRunner &lt;mall_map.bmp&gt; [-steps N] [-seed S] [-out run.log]
+ *                           [-mode sequential|synchronous|striped]
+ *                           [-order scan|random] [-assess-every K]
+ *                           [-record run.traj] [-routing astar|fields]
+ * </pre>
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class BatchRunner {
+
+	private final static Logger LOGGER = Logger
+			.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		LOGGER.setLevel(Level.SEVERE);
+
+		if (args.length < 1) {
+			printUsage();
+			System.exit(1);
+		}
+
+		Path mapPath = Paths.get(args[0]).toAbsolutePath();
+		int steps = Simulation.STEPS;
+		long seed = Rand.seed;
+		Path logPath = null;
+		UpdateMode mode = UpdateMode.SEQUENTIAL;
+		SubStepScheduler.Order order = SubStepScheduler.Order.SCAN;
+		int assessEvery = 1;
+		Path trajectoryPath = null;
+		boolean distanceFieldRouting = false;
+
+		try {
+			for (int i = 1; i < args.length; i++) {
+				switch (args[i]) {
+				case "-steps":
+					steps = Integer.parseInt(args[++i]);
+					break;
+				case "-seed":
+					seed = Long.parseLong(args[++i]);
+					break;
+				case "-out":
+					logPath = Paths.get(args[++i]);
+					break;
+				case "-mode":
+					mode = UpdateMode.valueOf(args[++i].toUpperCase());
+					break;
+				case "-routing":
+					distanceFieldRouting = parseRouting(args[++i]);
+					break;
+				case "-order":
+					order = SubStepScheduler.Order.valueOf(args[++i]
+							.toUpperCase());
+					break;
+				case "-assess-every":
+					assessEvery = Integer.parseInt(args[++i]);
+					if (assessEvery < 1)
+						throw new IllegalArgumentException(
+								"Assessment interval must be positive");
+					break;
+				case "-record":
+					trajectoryPath = Paths.get(args[++i]);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option: "
+							+ args[i]);
+				}
+			}
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			System.err.println(e.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+
+		Rand.seed = seed;
+		Rand.reseed();
+
+		Mall mall = ResourceManager.loadShoppingMall(mapPath);
+		if (mall == null) {
+			System.err.println("Could not load mall: " + mapPath);
+			System.exit(2);
+		}
+
+		Simulation simulation = new Simulation(null);
+		simulation.setMall(mall);
+		simulation.setSteps(steps);
+		simulation.setAnimated(false);
+		simulation.setUpdateMode(mode);
+		simulation.setSchedulingOrder(order);
+		simulation.setDistanceFieldRouting(distanceFieldRouting);
+		simulation.setAnalyticsInterval(assessEvery);
+
+		if (logPath == null) {
+			simulation.configureLogFile();
+		} else {
+			try {
+				if (logPath.toAbsolutePath().getParent() != null)
+					Files.createDirectories(logPath.toAbsolutePath()
+							.getParent());
+			} catch (IOException e) {
+				System.err.println("Could not create directory for: "
+						+ logPath);
+				System.exit(2);
+			}
+			simulation.configureLogFile(logPath);
+		}
+
+		simulation.setTrajectoryFile(trajectoryPath);
+
+		long start = System.nanoTime();
+		simulation.run();
+		long elapsed = System.nanoTime() - start;
+
+		simulation.finish();
+
+		System.out.println(String.format("%d steps in %.2f s (%.1f steps/s)",
+				steps, elapsed / 1e9, steps / (elapsed / 1e9)));
+
+		System.exit(0);
+	}
+
+	private static boolean parseRouting(String routing) {
+		switch (routing) {
+		case "astar":
+			return false;
+		case "fields":
+			return true;
+		default:
+			throw new IllegalArgumentException("Unknown routing: " + routing);
+		}
+	}
+
+	private static void printUsage() {
+		System.err
+				.println("Usage: BatchRunner <mall_map.bmp> [-steps N] [-seed S] [-out run.log] [-mode sequential|synchronous|striped] [-order scan|random] [-assess-every K] [-record run.traj] [-routing astar|fields]");
+	}
+}
@@ -0,0 +1,116 @@
+package sim.cli;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import sim.util.RunLogFormat.ColumnType;
+import sim.util.RunLogReader;
+import sim.util.WriterUtils;
+
+/**
+ * Converts a binary run log (see {@link sim.util.RunLogFormat}) to CSV.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java sim.cli.RunLogExport &lt;run.log&gt; [out.csv] [-params]
+ * </pre>
+ *
+ * Without <code>out.csv</code> the CSV is written to the standard output.
+ * <code>-params</code> prints the run parameters from the log header
+ * instead.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class RunLogExport {
+
+	public static void main(String[] args) {
+		String input = null;
+		String output = null;
+		boolean printParams = false;
+
+		for (String arg : args) {
+			if (arg.equals("-params"))
+				printParams = true;
+			else if (input == null)
+				input = arg;
+			else if (output == null)
+				output = arg;
+			else {
+				printUsage();
+				System.exit(1);
+			}
+		}
+
+		if (input == null) {
+			printUsage();
+			System.exit(1);
+		}
+
+		try (RunLogReader reader = new RunLogReader(Paths.get(input))) {
+			Charset charset = Charset.forName("US-ASCII");
+			Writer writer = (output == null) ? new BufferedWriter(
+					new OutputStreamWriter(System.out, charset)) : Files
+					.newBufferedWriter(Paths.get(output), charset);
+
+			try {
+				if (printParams)
+					writeParams(reader, writer);
+				else
+					writeCsv(reader, writer);
+			} finally {
+				if (output == null)
+					writer.flush();
+				else
+					writer.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Could not export " + input + ": "
+					+ e.getMessage());
+			System.exit(2);
+		}
+	}
+
+	private static void writeParams(RunLogReader reader, Writer writer)
+			throws IOException {
+		for (Map.Entry<String, String> e : reader.getParams().entrySet())
+			writer.write(e.getKey() + "=" + e.getValue() + "\n");
+	}
+
+	/**
+	 * Writes the rows in the format of the former CSV log.
+	 */
+	private static void writeCsv(RunLogReader reader, Writer writer)
+			throws IOException {
+		StringBuilder sb = new StringBuilder("\"step\"");
+		for (String name : reader.getColumnNames())
+			sb.append(";\"").append(name).append('"');
+		writer.write(sb.append("\r\n").toString());
+
+		while (reader.next()) {
+			sb.setLength(0);
+			sb.append(reader.getStep());
+			for (int i = 0; i < reader.getColumnCount(); i++) {
+				sb.append(';');
+				if (reader.getColumnType(i) == ColumnType.INT32)
+					sb.append((int) reader.getValue(i));
+				else
+					sb.append(WriterUtils.decimalFormat.format(reader
+							.getValue(i)));
+			}
+			writer.write(sb.append("\r\n").toString());
+		}
+	}
+
+	private static void printUsage() {
+		System.err
+				.println("Usage: RunLogExport <run.log> [out.csv] [-params]");
+	}
+}
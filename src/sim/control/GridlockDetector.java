@@ -0,0 +1,379 @@
+package sim.control;
+
+import java.util.Arrays;
+
+import sim.model.Agent;
+import sim.model.Board;
+import sim.model.helpers.Direction;
+
+/**
+ * Wykrywanie i rozładowywanie zatorów (ang. gridlock).
+ * <p>
+ * Po każdym kroku budowany jest graf "agent chce wejść na pole agenta B":
+ * wierzchołkami są agenci, którzy w co najmniej {@link #STALL_STEPS} kolejnych
+ * próbach ruchu nie zmienili pozycji, a krawędź prowadzi do takiego agenta
+ * stojącego na polu, na które agent ostatnio próbował wejść (wyznaczonym
+ * przez algorytm ruchu - patrz {@link Agent#getWantedCell()}). Z każdego
+ * wierzchołka wychodzi co najwyżej jedna krawędź, więc graf składa się z
+ * cykli oraz prowadzących do nich lub do "czoła" (agenta zablokowanego przez
+ * ścianę lub nie utkniętego agenta) łańcuchów.
+ * <ul>
+ * <li>cykl (np. dwóch agentów idących naprzeciw siebie) - wszyscy agenci
+ * przesuwani są jednocześnie o jedno pole wzdłuż cyklu (dla dwóch agentów -
+ * zamiana miejscami);</li>
+ * <li>łańcuch złożony z co najmniej {@link #MIN_CHAIN_LENGTH} agentów - agent
+ * na czele obraca się w stronę wolnego pola obok (bliższego jego celowi).</li>
+ * </ul>
+ * Wynik nie zależy od losowania ani od trybu aktualizacji.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class GridlockDetector {
+
+	/**
+	 * Liczba kroków bez zmiany pozycji, po której agent uznawany jest za
+	 * utkniętego.
+	 */
+	public static final int STALL_STEPS = 3;
+
+	/**
+	 * Minimalna długość łańcucha, po której rozładowywany jest zator.
+	 */
+	public static final int MIN_CHAIN_LENGTH = 5;
+
+	private static final int NOT_VISITED = 0;
+	private static final int IN_CYCLE = -1;
+
+	/**
+	 * Indeks pola zajmowanego przez agenta na początku kroku (indeksowane
+	 * identyfikatorem agenta).
+	 */
+	private int[] startCells = new int[0];
+
+	/**
+	 * Indeks pola, na które agent ostatnio próbował wejść ze swojej obecnej
+	 * pozycji (<code>-1</code> - brak; indeksowane identyfikatorem agenta).
+	 */
+	private int[] wantedCells = new int[0];
+
+	/**
+	 * Utknięci agenci (w kolejności wierszowej).
+	 */
+	private Agent[] nodes = new Agent[0];
+	private int nNodes = 0;
+
+	/**
+	 * Numer przejścia, w którym odwiedzono wierzchołek, lub {@link #IN_CYCLE}
+	 * (indeksowane identyfikatorem agenta).
+	 */
+	private int[] visits = new int[0];
+
+	/**
+	 * Odległość (liczba agentów) do czoła łańcucha (<code>0</code> -
+	 * nieznana).
+	 */
+	private int[] depths = new int[0];
+
+	/**
+	 * Identyfikator agenta na czele łańcucha.
+	 */
+	private int[] heads = new int[0];
+
+	/**
+	 * Długość najdłuższego łańcucha prowadzącego do danego czoła.
+	 */
+	private int[] chainLengths = new int[0];
+
+	/**
+	 * Agenci kolejnych cykli (cykl <code>k</code> zajmuje pozycje
+	 * <code>[cycleStarts[k], cycleStarts[k + 1])</code>).
+	 */
+	private Agent[] cycleAgents = new Agent[0];
+	private int[] cycleStarts = new int[1];
+
+	private Agent[] path = new Agent[0];
+
+	private int nCycles = 0;
+	private int nCycleAgents = 0;
+	private int nChains = 0;
+
+	/**
+	 * Zapamiętuje pozycje agentów na początku kroku (przed przygotowaniem
+	 * ruchu - zmiana pasa również jest ruchem).
+	 *
+	 * @param board
+	 */
+	public void begin(Board board) {
+		ensureCapacity(Agent.getIdCount());
+
+		for (int i = board.nextOccupied(0); i >= 0; i = board
+				.nextOccupied(i + 1)) {
+			Agent a = board.getAgent(i % board.getWidth(), i / board.getWidth());
+			startCells[a.getId()] = i;
+		}
+	}
+
+	/**
+	 * Wyszukuje zatory powstałe w bieżącym kroku i rozładowuje je.
+	 *
+	 * @param board
+	 * @return liczba wykrytych zatorów (cykli i długich łańcuchów)
+	 */
+	public int resolve(Board board) {
+		ensureCapacity(Agent.getIdCount());
+
+		collectStalledAgents(board);
+		findCycles(board);
+		findChains(board);
+
+		for (int i = 0; i < nNodes; i++) {
+			int id = nodes[i].getId();
+			if (depths[id] > 0 && heads[id] == id
+					&& chainLengths[id] >= MIN_CHAIN_LENGTH) {
+				nChains++;
+				turnAside(board, nodes[i]);
+			}
+		}
+
+		for (int k = 0; k < nCycles; k++)
+			rotate(board, cycleStarts[k], cycleStarts[k + 1]);
+
+		Arrays.fill(nodes, 0, nNodes, null);
+		Arrays.fill(cycleAgents, 0, nCycleAgents, null);
+
+		return nCycles + nChains;
+	}
+
+	/**
+	 * @return liczba cykli wykrytych w ostatnim kroku
+	 */
+	public int getCycleCount() {
+		return nCycles;
+	}
+
+	/**
+	 * @return liczba agentów przesuniętych wzdłuż cykli w ostatnim kroku
+	 */
+	public int getCycleAgentCount() {
+		return nCycleAgents;
+	}
+
+	/**
+	 * @return liczba długich łańcuchów wykrytych w ostatnim kroku
+	 */
+	public int getChainCount() {
+		return nChains;
+	}
+
+	private void collectStalledAgents(Board board) {
+		nNodes = 0;
+		nCycles = 0;
+		nCycleAgents = 0;
+		nChains = 0;
+
+		for (int i = board.nextOccupied(0); i >= 0; i = board
+				.nextOccupied(i + 1)) {
+			int x = i % board.getWidth();
+			int y = i / board.getWidth();
+			Agent a = board.getAgent(x, y);
+
+			boolean isWaiting = a.getHoldTime() == 0
+					&& a.getTargetCount() > 0
+					&& (a.getTarget().x != x || a.getTarget().y != y);
+
+			// Agent, który w tym kroku nie próbował się ruszyć (np. nie miał
+			// punktów ruchu), zachowuje licznik i ostatnio wybrane pole.
+			if (!isWaiting || startCells[a.getId()] != i) {
+				a.setStalledSteps(0);
+				wantedCells[a.getId()] = -1;
+			} else if (a.getWantedCell() >= 0) {
+				a.setStalledSteps(a.getStalledSteps() + 1);
+
+				// Pole wybrane na innej pozycji (agent wrócił na swoje pole
+				// w tym samym kroku) nie wyznacza krawędzi.
+				wantedCells[a.getId()] = isNeighbour(board, i,
+						a.getWantedCell()) ? a.getWantedCell() : -1;
+			}
+			a.setWantedCell(-1);
+
+			if (a.getStalledSteps() >= STALL_STEPS) {
+				if (nNodes == nodes.length)
+					nodes = Arrays.copyOf(nodes, Math.max(16, 2 * nNodes));
+				nodes[nNodes++] = a;
+
+				visits[a.getId()] = NOT_VISITED;
+				depths[a.getId()] = 0;
+				chainLengths[a.getId()] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Zwraca utkniętego agenta stojącego na polu, na które agent
+	 * <code>a</code> próbował wejść, lub <code>null</code>.
+	 */
+	private Agent next(Board board, Agent a) {
+		int cell = wantedCells[a.getId()];
+		if (cell < 0)
+			return null;
+
+		Agent b = board.getAgent(cell % board.getWidth(),
+				cell / board.getWidth());
+		return (b != null && b.getStalledSteps() >= STALL_STEPS) ? b : null;
+	}
+
+	/**
+	 * Czy pola o indeksach <code>i</code> i <code>j</code> sąsiadują ze sobą
+	 * bokiem?
+	 */
+	private static boolean isNeighbour(Board board, int i, int j) {
+		int width = board.getWidth();
+		return Math.abs(i % width - j % width)
+				+ Math.abs(i / width - j / width) == 1;
+	}
+
+	private void findCycles(Board board) {
+		int walk = 0;
+		for (int i = 0; i < nNodes; i++) {
+			if (visits[nodes[i].getId()] != NOT_VISITED)
+				continue;
+
+			walk++;
+			Agent a = nodes[i];
+			while (a != null && visits[a.getId()] == NOT_VISITED) {
+				visits[a.getId()] = walk;
+				a = next(board, a);
+			}
+
+			// Powrót do wierzchołka z bieżącego przejścia - cykl.
+			if (a != null && visits[a.getId()] == walk) {
+				Agent b = a;
+				do {
+					if (nCycleAgents == cycleAgents.length)
+						cycleAgents = Arrays.copyOf(cycleAgents,
+								Math.max(16, 2 * nCycleAgents));
+					cycleAgents[nCycleAgents++] = b;
+					visits[b.getId()] = IN_CYCLE;
+					b = next(board, b);
+				} while (b != a);
+
+				if (nCycles + 2 > cycleStarts.length)
+					cycleStarts = Arrays.copyOf(cycleStarts,
+							2 * cycleStarts.length + 1);
+				cycleStarts[++nCycles] = nCycleAgents;
+			}
+		}
+	}
+
+	/**
+	 * Wyznacza długości łańcuchów, które nie prowadzą do cykli.
+	 */
+	private void findChains(Board board) {
+		for (int i = 0; i < nNodes; i++) {
+			int nPath = 0;
+			Agent a = nodes[i];
+			while (a != null && depths[a.getId()] == 0
+					&& visits[a.getId()] != IN_CYCLE) {
+				if (nPath == path.length)
+					path = Arrays.copyOf(path, Math.max(16, 2 * nPath));
+				path[nPath++] = a;
+				a = next(board, a);
+			}
+
+			int depth;
+			int head;
+			if (a == null) {
+				// Ostatni agent na ścieżce jest czołem łańcucha.
+				depth = 0;
+				head = path[nPath - 1].getId();
+			} else if (visits[a.getId()] == IN_CYCLE || depths[a.getId()] < 0) {
+				// Łańcuch prowadzi do cyklu.
+				depth = -1;
+				head = -1;
+			} else {
+				depth = depths[a.getId()];
+				head = heads[a.getId()];
+			}
+
+			for (int k = nPath - 1; k >= 0; k--) {
+				int id = path[k].getId();
+				path[k] = null;
+
+				if (depth < 0) {
+					depths[id] = -1;
+					continue;
+				}
+
+				depths[id] = ++depth;
+				heads[id] = head;
+				chainLengths[head] = Math.max(chainLengths[head], depth);
+			}
+		}
+	}
+
+	/**
+	 * Przesuwa agentów cyklu o jedno pole - każdy zajmuje pole, na które
+	 * próbował wejść.
+	 */
+	private void rotate(Board board, int from, int to) {
+		Agent first = cycleAgents[from];
+		int x0 = first.getX();
+		int y0 = first.getY();
+
+		for (int k = from + 1; k < to; k++) {
+			Agent a = cycleAgents[k];
+			board.swapAgent(x0, y0, a.getX(), a.getY());
+		}
+
+		for (int k = from; k < to; k++) {
+			cycleAgents[k].incrementFieldsMoved();
+			cycleAgents[k].setStalledSteps(0);
+		}
+	}
+
+	/**
+	 * Obraca agenta w stronę wolnego pola obok (bliższego celowi agenta).
+	 */
+	private static void turnAside(Board board, Agent a) {
+		Direction best = null;
+		long bestDistance = Long.MAX_VALUE;
+
+		Direction[] sides = { a.getDirection().nextCCW(),
+				a.getDirection().nextCW() };
+		for (Direction side : sides) {
+			int x = a.getX() + side.getVec().x;
+			int y = a.getY() + side.getVec().y;
+			if (!board.isOnBoard(x, y) || !board.isPassable(x, y)
+					|| board.getAgent(x, y) != null)
+				continue;
+
+			long dx = a.getTarget().x - x;
+			long dy = a.getTarget().y - y;
+			if (dx * dx + dy * dy < bestDistance) {
+				best = side;
+				bestDistance = dx * dx + dy * dy;
+			}
+		}
+
+		if (best != null)
+			board.setDirection(a, best);
+		a.setStalledSteps(0);
+	}
+
+	private void ensureCapacity(int n) {
+		if (startCells.length >= n)
+			return;
+
+		int capacity = Math.max(n, 2 * startCells.length);
+		int oldLength = startCells.length;
+		startCells = Arrays.copyOf(startCells, capacity);
+		Arrays.fill(startCells, oldLength, capacity, -1);
+		wantedCells = Arrays.copyOf(wantedCells, capacity);
+		Arrays.fill(wantedCells, oldLength, capacity, -1);
+		visits = Arrays.copyOf(visits, capacity);
+		depths = Arrays.copyOf(depths, capacity);
+		heads = Arrays.copyOf(heads, capacity);
+		chainLengths = Arrays.copyOf(chainLengths, capacity);
+	}
+}
@@ -1,5 +1,7 @@
 package sim.control;
 
+import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.awt.image.Raster;
@@ -16,10 +18,12 @@ import javax.swing.JOptionPane;
 
 import sim.model.Agent;
 import sim.model.Agent.MovementBehavior;
+import sim.model.AgentStore;
 import sim.model.Board;
 import sim.model.Cell;
 import sim.model.Mall;
 import sim.model.algo.Attractor;
+import sim.model.algo.DistanceField;
 import sim.model.algo.MallFeature;
 import sim.model.algo.Ped4;
 import sim.model.algo.SocialForce;
@@ -42,13 +46,18 @@ public class ResourceManager {
 	 * 
 	 * @param mallName
 	 *            name of a map to be loaded
+	 * @return loaded mall or <code>null</code> if the files could not be read
 	 */
 	public static Mall loadShoppingMall(Path mapPath) {
 		Path mallFile = mapPath;
 		String featureMapStr = mapPath.toString().replace("_map.", "_feat.");
 		Path featureMap = (new File(featureMapStr)).toPath();
 
+		// Nowa symulacja - identyfikatory agentów liczone są od początku.
+		AgentStore.getInstance().clear();
+
 		Mall mall = new Mall();
+		mall.setName(mapPath.getFileName().toString());
 
 		LOGGER.info("Loading mall: " + mallFile + " with featuremap: "
 				+ featureMap);
@@ -59,7 +68,6 @@ public class ResourceManager {
 		Raster mallRaster = null;
 		Raster mapRaster = null;
 
-		Cell[][] grid = null;
 		Board b = null;
 
 		int h = 0;
@@ -84,9 +92,7 @@ public class ResourceManager {
 			}
 
 			int[] pixel = new int[3];
-			grid = new Cell[h][w];
-
-			b = new Board(grid);
+			b = new Board(new Dimension(w, h));
 			mall.setBoard(b);
 
 			// Used to cache Attractors
@@ -102,19 +108,22 @@ public class ResourceManager {
 				for (int j = 0; j < w; ++j) {
 					mallRaster.getPixel(j, i, pixel);
 
+					p.setLocation(j, i);
+					Cell cell;
+
 					// [type][context data 0][contex data 1]
 					switch (pixel[0]) {
 					case MALL_WALL:
-						grid[i][j] = Cell.WALL;
+						b.setCell(p, Cell.WALL);
 						continue; // Skips also the feature map dispatch.
 
 					case MALL_PED4:
-						grid[i][j] = new Cell(Cell.Type.PASSABLE,
+						cell = new Cell(Cell.Type.PASSABLE,
 								Ped4.getInstance());
 						break;
 
 					case MALL_SOCIAL_FORCE:
-						grid[i][j] = new Cell(Cell.Type.PASSABLE,
+						cell = new Cell(Cell.Type.PASSABLE,
 								SocialForce.getInstance());
 						break;
 
@@ -128,31 +137,32 @@ public class ResourceManager {
 
 					// [type][context data 0][contex data 1]
 					if (features.get(hash) != null) {
-						grid[i][j].setFeature(features.get(hash));
+						cell.setFeature(features.get(hash));
 					} else {
 						switch (pixel[0]) {
 						case MAP_ATTRACTOR:
 							MallFeature att = new Attractor(0xff - pixel[1],
 									0xff - pixel[2], hash);
 							features.put(hash, att);
-							grid[i][j].setFeature(att);
+							cell.setFeature(att);
 							break;
 
 						case MAP_SPAWNER:
 							MallFeature spawn = new Spawner(hash, b);
 							features.put(hash, spawn);
-							grid[i][j].setFeature(spawn);
+							cell.setFeature(spawn);
 							break;
 						default:
 							break;
 						}
 					}
 
-					if (grid[i][j].isPassable())
+					if (cell.isPassable())
 						accessibleFieldsCounter++;
 
-					p.setLocation(j, i);
-					if (grid[i][j].getFeature() instanceof Spawner)
+					b.setCell(p, cell);
+
+					if (cell.getFeature() instanceof Spawner)
 						ioPoints.add(new Point(j, i));
 				}
 			}
@@ -160,9 +170,19 @@ public class ResourceManager {
 			mall.getBoard().setAccessibleFieldCount(accessibleFieldsCounter);
 			mall.getBoard().setIoPoints(ioPoints);
 
+			LOGGER.info("Computing distance fields...");
+
+			List<DistanceField> fields = DistanceField.computeForExits(b);
+			mall.getBoard().setDistanceFields(fields);
+
+			LOGGER.info(String.format("Computed %d distance fields.",
+					fields.size()));
+
 		} catch (IOException e) {
 			e.printStackTrace();
-			JOptionPane.showMessageDialog(null, "Could not load a mall file!", "Error", JOptionPane.ERROR_MESSAGE);
+			if (!GraphicsEnvironment.isHeadless())
+				JOptionPane.showMessageDialog(null, "Could not load a mall file!", "Error", JOptionPane.ERROR_MESSAGE);
+			return null;
 		}
 
 		LOGGER.info("Board created!");
@@ -184,7 +204,7 @@ public class ResourceManager {
 			Point p = new Point(Rand.nextInt(b.getWidth()), Rand.nextInt(b
 					.getHeight()));
 
-			if (b.getCell(p).isPassable()) {
+			if (b.isPassable(p)) {
 				MovementBehavior mb = MovementBehavior.values()[Rand
 						.nextInt(MovementBehavior.values().length)];
 				b.setAgent(new Agent(mb), p);
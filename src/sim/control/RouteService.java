@@ -0,0 +1,80 @@
+package sim.control;
+
+import java.awt.Point;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sim.model.Board;
+import sim.model.algo.Tactical;
+
+/**
+ * Long-lived service computing agents' routes (tactical level) on a fixed
+ * pool of worker threads.
+ * <p>
+ * Requests carry copies of all the data needed, so the workers never touch
+ * agents - the caller applies the computed route in the simulation thread.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class RouteService {
+
+	private final ExecutorService executor;
+
+	/**
+	 * Creates a service with one worker per available processor.
+	 */
+	public RouteService() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public RouteService(int nThreads) {
+		executor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "route-worker-"
+						+ counter.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Requests a route passing through all the targets.
+	 *
+	 * @param board
+	 * @param start
+	 *            starting position
+	 * @param targets
+	 * @param useDistanceFields
+	 *            whether to follow distance fields where possible (see
+	 *            {@link Board#getDistanceField(Point)})
+	 * @return midpoints of the route (empty if no path exists)
+	 */
+	public Future<List<Point>> requestRoute(final Board board, Point start,
+			Point[] targets, final boolean useDistanceFields) {
+		final Point from = new Point(start);
+		final Point[] to = targets.clone();
+
+		return executor.submit(new Callable<List<Point>>() {
+
+			@Override
+			public List<Point> call() {
+				return Tactical.computePaths(board, from, Tactical.nlaMoore,
+						to, useDistanceFields);
+			}
+		});
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
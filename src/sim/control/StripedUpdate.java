@@ -0,0 +1,181 @@
+package sim.control;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import sim.model.Agent;
+import sim.model.Board;
+import sim.model.ForceFieldStencil;
+
+/**
+ * Równoległe przemieszczanie agentów z zachowaniem sekwencyjnej semantyki
+ * modelu Ped4 w obrębie poziomych pasów planszy.
+ * <p>
+ * Pasy kolorowane są naprzemiennie - najpierw równolegle przetwarzane są
+ * pasy parzyste, a następnie nieparzyste, więc sąsiednie pasy nigdy nie są
+ * przetwarzane jednocześnie. Każdy pas ma wysokość co najmniej
+ * {@link #HALO}: tyle wierszy wystarcza, by agenci dwóch jednocześnie
+ * przetwarzanych pasów nie widzieli nawzajem swoich zmian (luka w modelu
+ * Ped4 sięga <code>2 * V_MAX</code> pól, a pole potencjału agenta - zasięgu
+ * szablonu od nowej pozycji).
+ * <p>
+ * Granice pasów wyznaczane są tak, by liczba agentów w pasach była zbliżona.
+ * Liczba pasów nie zależy od liczby wątków, więc wynik również.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class StripedUpdate {
+
+	/**
+	 * Minimalna wysokość pasa.
+	 */
+	public static final int HALO = 2 * Agent.V_MAX
+			+ ForceFieldStencil.DEFAULT.getReach() + 1;
+
+	/**
+	 * Domyślna (maksymalna) liczba pasów.
+	 */
+	public static final int DEFAULT_STRIPES = 8;
+
+	/**
+	 * Przemieszcza agentów znajdujących się na polach o indeksach z przedziału
+	 * <code>[fromIndex, toIndex)</code> (w kolejności wierszowej).
+	 */
+	public static interface StripeStep {
+		public void run(int fromIndex, int toIndex);
+	}
+
+	private final ForkJoinPool pool;
+
+	private final int maxStripes;
+
+	/**
+	 * Wiersze rozpoczynające kolejne pasy (ostatni element - wysokość
+	 * planszy).
+	 */
+	private int[] boundaries = new int[0];
+
+	/**
+	 * Creates an updater with one worker per available processor.
+	 */
+	public StripedUpdate() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_STRIPES);
+	}
+
+	public StripedUpdate(int parallelism, int maxStripes) {
+		pool = new ForkJoinPool(parallelism);
+		this.maxStripes = maxStripes;
+	}
+
+	/**
+	 * Wyznacza granice pasów tak, by każdy zawierał zbliżoną liczbę agentów.
+	 *
+	 * @param board
+	 */
+	public void rebalance(Board board) {
+		int height = board.getHeight();
+		int nStripes = Math.max(1, Math.min(maxStripes, height / HALO));
+
+		if (boundaries.length != nStripes + 1)
+			boundaries = new int[nStripes + 1];
+
+		int[] rowCounts = new int[height];
+		int remaining = 0;
+		for (int y = 0; y < height; y++) {
+			rowCounts[y] = board.countAgents(y, y + 1);
+			remaining += rowCounts[y];
+		}
+
+		int start = 0;
+		for (int k = 0; k < nStripes - 1; k++) {
+			int stripesLeft = nStripes - k;
+			int target = remaining / stripesLeft;
+
+			// Pozostałe pasy muszą się zmieścić na planszy.
+			int maxEnd = height - (stripesLeft - 1) * HALO;
+
+			int end = start;
+			int count = 0;
+			while (end < maxEnd && (end - start < HALO || count < target))
+				count += rowCounts[end++];
+
+			boundaries[k] = start;
+			remaining -= count;
+			start = end;
+		}
+
+		boundaries[nStripes - 1] = start;
+		boundaries[nStripes] = height;
+	}
+
+	public int getStripeCount() {
+		return boundaries.length - 1;
+	}
+
+	/**
+	 * Wykonuje jeden podkrok ruchu agentów: najpierw równolegle w pasach
+	 * parzystych, a następnie w nieparzystych.
+	 *
+	 * @param board
+	 * @param step
+	 */
+	public void update(Board board, StripeStep step) {
+		if (boundaries.length == 0)
+			rebalance(board);
+
+		int width = board.getWidth();
+		for (int color = 0; color < 2; color++) {
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (int k = color; k < getStripeCount(); k += 2)
+				tasks.add(new StripeTask(step, boundaries[k] * width,
+						boundaries[k + 1] * width));
+
+			if (tasks.size() == 1)
+				tasks.get(0).invoke();
+			else if (!tasks.isEmpty())
+				pool.invoke(new ColorTask(tasks));
+		}
+	}
+
+	private static class StripeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final StripeStep step;
+		private final int fromIndex;
+		private final int toIndex;
+
+		StripeTask(StripeStep step, int fromIndex, int toIndex) {
+			this.step = step;
+			this.fromIndex = fromIndex;
+			this.toIndex = toIndex;
+		}
+
+		@Override
+		protected void compute() {
+			step.run(fromIndex, toIndex);
+		}
+	}
+
+	private static class ColorTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<ForkJoinTask<?>> tasks;
+
+		ColorTask(List<ForkJoinTask<?>> tasks) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(tasks);
+		}
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+}
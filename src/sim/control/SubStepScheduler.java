@@ -0,0 +1,164 @@
+package sim.control;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import sim.model.Agent;
+import sim.model.Board;
+import sim.model.helpers.Rand;
+
+/**
+ * Lista agentów, którzy w danym kroku symulacji mogą jeszcze wykonać ruch.
+ * <p>
+ * Na początku kroku lista obejmuje wszystkich agentów z planszy, a przed
+ * każdym podkrokiem usuwani są z niej agenci bez niewykorzystanych punktów
+ * ruchu (oraz agenci usunięci z symulacji, bez celu lub odczekujący). Przy
+ * kolejności losowej koszt kolejnych podkroków jest więc proporcjonalny do
+ * liczby agentów, którzy jeszcze się poruszają; przy kolejności wierszowej
+ * przeglądanie planszy kończy się po rozpatrzeniu ostatniego z nich.
+ * <p>
+ * Agenci odczekujący (np. w sklepie) nie trafiają na listę - są do niej
+ * dodawani dopiero po wybudzeniu (patrz {@link #add(Agent)}).
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class SubStepScheduler {
+
+	/**
+	 * Kolejność, w jakiej agenci wykonują ruch w podkroku.
+	 */
+	public static enum Order {
+		/**
+		 * Kolejność wierszowa bieżących pozycji agentów - plansza
+		 * przeglądana jest w trakcie podkroku (patrz
+		 * {@link SubStepScheduler#isPending(Agent)}), jak przy aktualizacji
+		 * sekwencyjnej bez listy agentów.
+		 */
+		SCAN,
+
+		/**
+		 * Kolejność losowa (zależna jedynie od ziarna, numeru kroku i
+		 * podkroku).
+		 */
+		RANDOM
+	}
+
+	private Order order = Order.SCAN;
+
+	private Agent[] agents = new Agent[0];
+	private int nAgents = 0;
+
+	/**
+	 * Agenci wykonujący ruch w bieżącym podkroku, jeszcze nie rozpatrzeni
+	 * (indeksowane identyfikatorem; tylko kolejność {@link Order#SCAN}).
+	 */
+	private final BitSet pending = new BitSet();
+
+	public Order getOrder() {
+		return order;
+	}
+
+	public void setOrder(Order order) {
+		this.order = order;
+	}
+
+	/**
+	 * Zbiera agentów z planszy na początku kroku symulacji.
+	 *
+	 * @param board
+	 */
+	public void reset(Board board) {
+		int n = board.countAgents();
+		if (agents.length < n)
+			agents = new Agent[Math.max(n, 2 * agents.length)];
+
+		nAgents = 0;
+		for (int i = board.nextOccupied(0); i >= 0; i = board
+				.nextOccupied(i + 1)) {
+			Agent a = board.getAgent(i % board.getWidth(), i / board.getWidth());
+			if (a.getHoldTime() == 0)
+				agents[nAgents++] = a;
+		}
+	}
+
+	/**
+	 * Dodaje agenta (np. wybudzonego po odczekaniu) do listy w trakcie kroku.
+	 */
+	public void add(Agent a) {
+		if (nAgents == agents.length)
+			agents = Arrays.copyOf(agents, Math.max(16, 2 * agents.length));
+
+		agents[nAgents++] = a;
+	}
+
+	/**
+	 * Przygotowuje listę na kolejny podkrok: usuwa agentów, którzy nie mogą
+	 * już wykonać ruchu i ustala kolejność pozostałych.
+	 *
+	 * @param board
+	 * @param mpLeft
+	 *            niewykorzystane punkty ruchu (indeksowane identyfikatorem)
+	 * @param subStep
+	 *            numer podkroku
+	 * @return liczba agentów wykonujących ruch w podkroku
+	 */
+	public int nextSubStep(Board board, int[] mpLeft, int subStep) {
+		int n = 0;
+		for (int i = 0; i < nAgents; i++) {
+			Agent a = agents[i];
+			if (!a.getDead() && a.getTargetCount() > 0
+					&& a.getHoldTime() == 0 && mpLeft[a.getId()] > 0)
+				agents[n++] = a;
+		}
+		Arrays.fill(agents, n, nAgents, null);
+		nAgents = n;
+
+		switch (order) {
+		case SCAN:
+			pending.clear();
+			for (int i = 0; i < nAgents; i++)
+				pending.set(agents[i].getId());
+			break;
+		case RANDOM:
+			// Fisher-Yates - strumień podkroku nie pokrywa się ze strumieniami
+			// agentów (identyfikatory nieujemne).
+			for (int i = nAgents - 1; i > 0; i--) {
+				int j = Rand.nextInt(Integer.MIN_VALUE + subStep, i, i + 1);
+				Agent t = agents[i];
+				agents[i] = agents[j];
+				agents[j] = t;
+			}
+			break;
+		}
+
+		return nAgents;
+	}
+
+	/**
+	 * Czy agent napotkany przy przeglądaniu planszy wykonuje ruch w bieżącym
+	 * podkroku i nie został jeszcze rozpatrzony (kolejność
+	 * {@link Order#SCAN})?
+	 */
+	public boolean isPending(Agent a) {
+		return pending.get(a.getId());
+	}
+
+	/**
+	 * Oznacza agenta jako rozpatrzonego w bieżącym podkroku - agent
+	 * przesunięty na dalsze pole nie zostanie rozpatrzony ponownie.
+	 */
+	public void markDone(Agent a) {
+		pending.clear(a.getId());
+	}
+
+	/**
+	 * @param i
+	 *            pozycja na liście (mniejsza niż wynik
+	 *            {@link #nextSubStep(Board, int[], int)}; tylko kolejność
+	 *            {@link Order#RANDOM})
+	 */
+	public Agent getAgent(int i) {
+		return agents[i];
+	}
+}
@@ -0,0 +1,297 @@
+package sim.control;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import sim.model.Agent;
+import sim.model.AgentStore;
+import sim.model.Board;
+import sim.model.algo.MoveProposals;
+import sim.model.algo.MoveProposals.Kind;
+import sim.model.helpers.MyPoint;
+import sim.model.helpers.Rand;
+
+/**
+ * Synchroniczny (dwufazowy) tryb przemieszczania agentów.
+ * <p>
+ * W pierwszej fazie wszyscy agenci równolegle wyznaczają propozycje ruchu na
+ * podstawie niezmienianej planszy. W drugiej fazie konflikty są
+ * rozstrzygane, a zwycięskie ruchy zatwierdzane:
+ * <ol>
+ * <li>agenci opuszczający planszę nie biorą udziału w innych ruchach,</li>
+ * <li>zamiany (bi-directional, bi-diagonal, cross-diagonal) przyjmowane są w
+ * kolejności wylosowanych priorytetów, o ile żaden z uczestników nie został
+ * już zajęty inną zamianą,</li>
+ * <li>spośród agentów wchodzących na to samo wolne pole zwycięzca jest
+ * losowany (jak w kroku (2) modelu Ped4).</li>
+ * </ol>
+ * Wynik nie zależy od liczby wątków.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class SynchronousUpdate {
+
+	/**
+	 * Minimalna liczba agentów przetwarzana przez jedno zadanie.
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	private final ForkJoinPool pool;
+
+	private final MoveProposals proposals = new MoveProposals();
+
+	/**
+	 * Agenci, których algorytm nie obsługuje trybu synchronicznego
+	 * (indeksowani pozycją na liście aktywnych agentów).
+	 */
+	private boolean[] sequential = new boolean[0];
+
+	/**
+	 * Agenci biorący udział w przyjętym ruchu (indeksowani identyfikatorem).
+	 */
+	private final BitSet claimed = new BitSet();
+
+	/**
+	 * Przyjęte propozycje (indeksowane pozycją na liście aktywnych agentów).
+	 */
+	private final BitSet accepted = new BitSet();
+
+	/**
+	 * Wolne pola zajęte przez przyjęte zamiany.
+	 */
+	private final BitSet claimedCells = new BitSet();
+
+	private long[] keys = new long[0];
+
+	// Dane bieżącego podkroku (dla zadań fazy pierwszej).
+	private Board board;
+	private Agent[] agents;
+	private int[] mpLeft;
+
+	/**
+	 * Creates an updater with one worker per available processor.
+	 */
+	public SynchronousUpdate() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public SynchronousUpdate(int parallelism) {
+		pool = new ForkJoinPool(parallelism);
+	}
+
+	/**
+	 * Wykonuje jeden podkrok ruchu agentów.
+	 *
+	 * @param board
+	 * @param agents
+	 *            agenci wykonujący ruch (w kolejności wierszowej)
+	 * @param nAgents
+	 *            liczba agentów w tablicy <code>agents</code>
+	 * @param mpLeft
+	 *            niewykorzystane punkty ruchu (indeksowane identyfikatorem)
+	 * @param subStep
+	 *            numer podkroku (klucz losowań rozstrzygających konflikty)
+	 */
+	public void update(Board board, Agent[] agents, int nAgents,
+			int[] mpLeft, int subStep) {
+		this.board = board;
+		this.agents = agents;
+		this.mpLeft = mpLeft;
+
+		proposals.ensureCapacity(Agent.getIdCount());
+		if (sequential.length < nAgents)
+			sequential = new boolean[Math.max(nAgents, 2 * sequential.length)];
+		if (keys.length < nAgents)
+			keys = new long[Math.max(nAgents, 2 * keys.length)];
+
+		pool.invoke(new ProposeTask(0, nAgents));
+
+		resolve(nAgents, subStep);
+		commit(nAgents);
+
+		this.board = null;
+		this.agents = null;
+		this.mpLeft = null;
+	}
+
+	private class ProposeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		ProposeTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= BATCH_SIZE) {
+				for (int i = from; i < to; i++) {
+					Agent a = agents[i];
+					sequential[i] = !board.getAlgorithm(a.getPosition())
+							.propose(board, a, mpLeft, proposals);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new ProposeTask(from, mid), new ProposeTask(mid, to));
+			}
+		}
+	}
+
+	private void resolve(int nAgents, int subStep) {
+		claimed.clear();
+		accepted.clear();
+		claimedCells.clear();
+
+		// Agenci opuszczający planszę.
+		for (int i = 0; i < nAgents; i++) {
+			int id = agents[i].getId();
+			if (!sequential[i] && proposals.getKind(id) == Kind.EXIT) {
+				claimed.set(id);
+				accepted.set(i);
+			}
+		}
+
+		// Zamiany - w kolejności priorytetów.
+		int nKeys = 0;
+		for (int i = 0; i < nAgents; i++) {
+			int id = agents[i].getId();
+			if (!sequential[i] && proposals.getKind(id) == Kind.EXCHANGE)
+				keys[nKeys++] = ((long) proposals.getPriority(id) << 32) | i;
+		}
+		Arrays.sort(keys, 0, nKeys);
+
+		for (int k = 0; k < nKeys; k++) {
+			int i = (int) keys[k];
+			int id = agents[i].getId();
+			int partner = proposals.getPartner(id);
+			boolean isFar = proposals.getVacated(id) != MoveProposals.NONE;
+
+			if (claimed.get(id) || claimed.get(partner) || isFar
+					&& claimedCells.get(proposals.getTarget(id)))
+				continue;
+
+			claimed.set(id);
+			claimed.set(partner);
+			if (isFar)
+				claimedCells.set(proposals.getTarget(id));
+			accepted.set(i);
+		}
+
+		// Wejścia na wolne pola - zwycięzca losowany spośród chętnych.
+		nKeys = 0;
+		for (int i = 0; i < nAgents; i++) {
+			int id = agents[i].getId();
+			if (!sequential[i] && !claimed.get(id)
+					&& proposals.getKind(id) == Kind.MOVE
+					&& !claimedCells.get(proposals.getTarget(id)))
+				keys[nKeys++] = ((long) proposals.getTarget(id) << 32) | i;
+		}
+		Arrays.sort(keys, 0, nKeys);
+
+		for (int k = 0; k < nKeys;) {
+			int target = (int) (keys[k] >>> 32);
+			int end = k + 1;
+			while (end < nKeys && (int) (keys[end] >>> 32) == target)
+				end++;
+
+			int winner = (end - k == 1) ? k : k
+					+ Rand.nextInt(~target, subStep, end - k);
+			int i = (int) keys[winner];
+			claimed.set(agents[i].getId());
+			accepted.set(i);
+
+			k = end;
+		}
+	}
+
+	private void commit(int nAgents) {
+		Point p = new Point();
+
+		for (int i = 0; i < nAgents; i++) {
+			Agent a = agents[i];
+			int id = a.getId();
+
+			if (sequential[i] || !accepted.get(i)
+					&& proposals.getKind(id) != Kind.TURN)
+				continue;
+
+			MyPoint curr = a.getPosition();
+
+			switch (proposals.getKind(id)) {
+			case EXIT:
+				mpLeft[id] = 0;
+				board.setAgent(null, curr);
+				a.release();
+				break;
+
+			case MOVE:
+				toPoint(proposals.getTarget(id), p);
+				board.swapAgent(curr, p);
+				mpLeft[id]--;
+				a.incrementFieldsMoved();
+				break;
+
+			case EXCHANGE:
+				exchange(a, curr, p);
+				break;
+
+			case TURN:
+				if (!claimed.get(id))
+					board.setDirection(a, proposals.getDirection(id));
+				break;
+
+			default:
+				break;
+			}
+		}
+
+		// Agenci poruszający się według algorytmów sekwencyjnych.
+		for (int i = 0; i < nAgents; i++) {
+			Agent a = agents[i];
+			if (sequential[i] && !claimed.get(a.getId()) && !a.getDead())
+				board.getAlgorithm(a.getPosition()).nextIterationStep(board,
+						a, mpLeft);
+		}
+	}
+
+	/**
+	 * Zatwierdza zamianę agenta <code>a</code> z jego partnerem.
+	 */
+	private void exchange(Agent a, Point curr, Point p) {
+		int id = a.getId();
+		Agent partner = AgentStore.getInstance().getAgent(
+				proposals.getPartner(id));
+
+		toPoint(proposals.getTarget(id), p);
+
+		if (proposals.getVacated(id) == MoveProposals.NONE) {
+			board.swapAgent(curr, p);
+		} else {
+			// Partner stoi dwa pola dalej - zwalnia swoje pole.
+			board.setAgent(null, toPoint(proposals.getVacated(id), new Point()));
+			board.setAgent(a, p);
+			board.setAgent(partner, curr);
+		}
+
+		mpLeft[id]--;
+		mpLeft[partner.getId()]--;
+		a.incrementFieldsMoved();
+		partner.incrementFieldsMoved();
+	}
+
+	private Point toPoint(int index, Point p) {
+		p.setLocation(index % board.getWidth(), index / board.getWidth());
+		return p;
+	}
+
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+}
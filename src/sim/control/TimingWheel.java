@@ -0,0 +1,135 @@
+package sim.control;
+
+import java.util.Arrays;
+
+import sim.model.Agent;
+
+/**
+ * Haszowane "koło czasowe" agentów odczekujących (np. w sklepie).
+ * <p>
+ * Agent trafia do szczeliny wyznaczonej przez numer podkroku, w którym ma
+ * zostać wybudzony (modulo liczba szczelin). Przesunięcie koła o jeden
+ * podkrok wymaga przejrzenia tylko jednej szczeliny, więc agenci
+ * odczekujący nie generują pracy w kolejnych podkrokach.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class TimingWheel {
+
+	/**
+	 * Domyślna liczba szczelin (potęga dwójki).
+	 */
+	public static final int DEFAULT_SLOTS = 256;
+
+	private final int mask;
+
+	private final Agent[][] agents;
+	private final long[][] wakeTicks;
+	private final int[] sizes;
+
+	/**
+	 * Agenci wybudzeni w ostatnim wywołaniu {@link #advanceTo(long)}.
+	 */
+	private Agent[] woken = new Agent[16];
+
+	/**
+	 * Ostatni podkrok, dla którego wybudzono agentów.
+	 */
+	private long lastTick = -1;
+
+	public TimingWheel() {
+		this(DEFAULT_SLOTS);
+	}
+
+	/**
+	 * @param nSlots
+	 *            liczba szczelin (potęga dwójki)
+	 */
+	public TimingWheel(int nSlots) {
+		if (Integer.bitCount(nSlots) != 1)
+			throw new IllegalArgumentException(
+					"Number of slots must be a power of two");
+
+		mask = nSlots - 1;
+		agents = new Agent[nSlots][4];
+		wakeTicks = new long[nSlots][4];
+		sizes = new int[nSlots];
+	}
+
+	/**
+	 * Umieszcza agenta w kole (metoda może być wywoływana równolegle).
+	 *
+	 * @param a
+	 * @param wakeTick
+	 *            podkrok, w którym agent ma zostać wybudzony (późniejszy niż
+	 *            ostatni podkrok przekazany do {@link #advanceTo(long)})
+	 */
+	public synchronized void schedule(Agent a, long wakeTick) {
+		assert (wakeTick > lastTick);
+
+		int slot = (int) (wakeTick & mask);
+		int n = sizes[slot];
+		if (n == agents[slot].length) {
+			agents[slot] = Arrays.copyOf(agents[slot], 2 * n);
+			wakeTicks[slot] = Arrays.copyOf(wakeTicks[slot], 2 * n);
+		}
+
+		agents[slot][n] = a;
+		wakeTicks[slot][n] = wakeTick;
+		sizes[slot]++;
+	}
+
+	/**
+	 * Wybudza agentów, których czas oczekiwania upływa najpóźniej w podkroku
+	 * <code>tick</code> (podkroki pominięte od ostatniego wywołania również są
+	 * uwzględniane).
+	 *
+	 * @return liczba wybudzonych agentów (patrz {@link #getWoken(int)})
+	 */
+	public synchronized int advanceTo(long tick) {
+		int nWoken = 0;
+
+		long nTicks = Math.min(tick - lastTick, sizes.length);
+		for (long t = tick - nTicks + 1; t <= tick; t++) {
+			int slot = (int) (t & mask);
+			Agent[] slotAgents = agents[slot];
+			long[] slotTicks = wakeTicks[slot];
+
+			int kept = 0;
+			for (int i = 0; i < sizes[slot]; i++) {
+				if (slotTicks[i] <= tick) {
+					if (nWoken == woken.length)
+						woken = Arrays.copyOf(woken, 2 * nWoken);
+					woken[nWoken++] = slotAgents[i];
+				} else {
+					slotAgents[kept] = slotAgents[i];
+					slotTicks[kept] = slotTicks[i];
+					kept++;
+				}
+			}
+			Arrays.fill(slotAgents, kept, sizes[slot], null);
+			sizes[slot] = kept;
+		}
+
+		Arrays.fill(woken, nWoken, woken.length, null);
+		lastTick = Math.max(lastTick, tick);
+		return nWoken;
+	}
+
+	public Agent getWoken(int i) {
+		return woken[i];
+	}
+
+	/**
+	 * Usuwa wszystkich agentów (przed rozpoczęciem nowej symulacji).
+	 */
+	public synchronized void clear() {
+		for (int slot = 0; slot < sizes.length; slot++) {
+			Arrays.fill(agents[slot], null);
+			sizes[slot] = 0;
+		}
+		Arrays.fill(woken, null);
+		lastTick = -1;
+	}
+}
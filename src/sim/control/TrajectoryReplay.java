@@ -0,0 +1,164 @@
+package sim.control;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Observable;
+import java.util.logging.Logger;
+
+import sim.model.Agent;
+import sim.model.Agent.MovementBehavior;
+import sim.model.Board;
+import sim.util.trajectory.TrajectoryReader;
+
+/**
+ * Odtwarzanie zapisanych trajektorii agentów (patrz
+ * {@link sim.util.trajectory.TrajectoryWriter}) na planszy - bez
+ * wykonywania symulacji.
+ * <p>
+ * Wyświetlenie kroku ({@link #showStep(int)}) odczytuje ze ścieżki jedynie
+ * ten krok i przestawia agentów na planszy; obserwatorzy (np. plansza GUI)
+ * powiadamiani są po każdej zmianie. Metody należy wywoływać w jednym wątku
+ * (wątku Swing), a symulacja nie może w tym czasie korzystać z planszy.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class TrajectoryReplay extends Observable {
+
+	private final static Logger LOGGER = Logger
+			.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	private final TrajectoryReader reader;
+	private final Board board;
+
+	/**
+	 * Agenci wyświetlani na planszy (indeksowani zapisanym identyfikatorem).
+	 */
+	private Agent[] agents = new Agent[0];
+
+	/**
+	 * Zapisane identyfikatory agentów znajdujących się na planszy.
+	 */
+	private int[] shown = new int[0];
+	private int nShown = 0;
+
+	private int step = -1;
+
+	/**
+	 * @param reader
+	 *            źródło trajektorii (zamykane przez {@link #close()})
+	 * @param board
+	 *            plansza o wymiarach zgodnych z zapisem
+	 */
+	public TrajectoryReplay(TrajectoryReader reader, Board board) {
+		if (reader.getWidth() != board.getWidth()
+				|| reader.getHeight() != board.getHeight())
+			throw new IllegalArgumentException(
+					"Recording does not match the board size");
+
+		this.reader = reader;
+		this.board = board;
+	}
+
+	public int getFirstStep() {
+		return reader.getFirstStep();
+	}
+
+	public int getLastStep() {
+		return reader.getLastStep();
+	}
+
+	/**
+	 * @return numer wyświetlanego kroku (-1 przed pierwszym wyświetleniem)
+	 */
+	public int getStep() {
+		return step;
+	}
+
+	public String getMapName() {
+		return reader.getMapName();
+	}
+
+	/**
+	 * Umieszcza na planszy agentów w położeniach z danego kroku.
+	 *
+	 * @param step
+	 *            numer kroku (z przedziału od {@link #getFirstStep()} do
+	 *            {@link #getLastStep()})
+	 * @return <code>false</code>, gdy krok nie został zapisany
+	 */
+	public boolean showStep(int step) {
+		if (step == this.step)
+			return true;
+		if (!reader.hasStep(step))
+			return false;
+
+		TrajectoryReader.Frame frame = reader.readStep(step);
+
+		for (int i = 0; i < nShown; i++) {
+			Agent a = agents[shown[i]];
+			board.setAgent(null, a.getX(), a.getY());
+		}
+
+		if (shown.length < frame.countAgents())
+			shown = new int[Math.max(frame.countAgents(), 2 * shown.length)];
+
+		nShown = 0;
+		for (int i = 0; i < frame.countAgents(); i++) {
+			int x = frame.getX(i);
+			int y = frame.getY(i);
+
+			// Plik mógł zostać zapisany dla innej wersji mapy.
+			if (!board.isPassable(x, y) || board.getAgent(x, y) != null)
+				continue;
+
+			Agent a = getAgent(frame.getId(i));
+			a.setDirection(frame.getDirection(i));
+			board.setAgent(a, x, y);
+
+			shown[nShown++] = frame.getId(i);
+		}
+
+		this.step = step;
+
+		setChanged();
+		notifyObservers();
+
+		return true;
+	}
+
+	private Agent getAgent(int id) {
+		if (agents.length <= id)
+			agents = Arrays.copyOf(agents, Math.max(id + 1, 2 * agents.length));
+
+		if (agents[id] == null)
+			agents[id] = new Agent(MovementBehavior.AVERAGE);
+
+		return agents[id];
+	}
+
+	/**
+	 * Zdejmuje agentów z planszy i zamyka plik z zapisem.
+	 */
+	public void close() {
+		for (int i = 0; i < nShown; i++) {
+			Agent a = agents[shown[i]];
+			board.setAgent(null, a.getX(), a.getY());
+		}
+		nShown = 0;
+
+		for (Agent a : agents) {
+			if (a != null)
+				a.release();
+		}
+		agents = new Agent[0];
+
+		try {
+			reader.close();
+		} catch (IOException e) {
+			LOGGER.severe("Could not close trajectory file: " + e.getMessage());
+		}
+
+		deleteObservers();
+	}
+}
@@ -161,12 +161,10 @@ public class GUIBoard extends JComponent implements Observer {
 	}
 
 	private int computeMaxVisits() {
-		Point p = new Point();
 		int vmax = 0;
 		for (int y = 0; y < board.getHeight(); y++) {
 			for (int x = 0; x < board.getWidth(); x++) {
-				p.setLocation(x, y);
-				vmax = Math.max(vmax, board.getCell(p).getVisitsCounter());
+				vmax = Math.max(vmax, board.getVisitsCounter(x, y));
 			}
 		}
 
@@ -340,7 +338,7 @@ public class GUIBoard extends JComponent implements Observer {
 			int x = e.getX() / cellSize;
 			int y = e.getY() / cellSize;
 
-			Agent a = board.getCell(new Point(x, y)).getAgent();
+			Agent a = board.getAgent(x, y);
 
 			Component c = instance;
 			while (!(c instanceof MallFrame))
@@ -54,6 +54,7 @@ import sim.control.GuiState;
 import sim.control.GuiState.BackgroundPolicy;
 import sim.control.GuiState.DrawTargetLinePolicy;
 import sim.control.Listeners;
+import sim.control.TrajectoryReplay;
 import sim.gui.actions.ExitAction;
 import sim.model.Mall;
 import sim.model.helpers.Rand;
@@ -79,6 +80,8 @@ public class MallFrame extends JFrame {
 	private JCheckBoxMenuItem chckbxmntmPaused;
 	private JToggleButton tglbtnPause;
 	private JToggleButton tglbtnRecord;
+	private JMenuItem mntmGoToStep;
+	private ReplayPanel replayPanel;
 
 	private static MallFrame instance = null;
 
@@ -160,9 +163,7 @@ public class MallFrame extends JFrame {
 						Rand.seed);
 
 				try {
-					Long newSeed = Long.valueOf(str);
-					Rand.seed = newSeed;
-					Rand.setSeed(newSeed);
+					Rand.setSeed(Long.valueOf(str));
 				} catch (NumberFormatException e) {
 					LOGGER.severe("Could not change seed (NumberFormatException)");
 				}
@@ -170,6 +171,42 @@ public class MallFrame extends JFrame {
 		});
 		mnSimulation.add(mntmSeed);
 
+		JMenu mnReplay = new JMenu("Replay");
+		mnReplay.setMnemonic('R');
+		menuBar.add(mnReplay);
+
+		JMenuItem mntmOpenRecording = new JMenuItem("Open recording...");
+		mntmOpenRecording.addActionListener(new ActionListener() {
+
+			public void actionPerformed(ActionEvent arg0) {
+				chooseRecording();
+			}
+		});
+		mnReplay.add(mntmOpenRecording);
+
+		mntmGoToStep = new JMenuItem("Go to step...");
+		mntmGoToStep.setEnabled(false);
+		mntmGoToStep.addActionListener(new ActionListener() {
+			public void actionPerformed(ActionEvent arg0) {
+				TrajectoryReplay replay = replayPanel.getReplay();
+				if (replay == null)
+					return;
+
+				String str = JOptionPane.showInputDialog(null, String.format(
+						"Step (%d-%d):", replay.getFirstStep(),
+						replay.getLastStep()), replay.getStep());
+				if (str == null)
+					return;
+
+				try {
+					replayPanel.showStep(Integer.parseInt(str.trim()));
+				} catch (NumberFormatException e) {
+					LOGGER.severe("Could not go to step (NumberFormatException)");
+				}
+			}
+		});
+		mnReplay.add(mntmGoToStep);
+
 		JMenu mnView = new JMenu("View");
 		mnSimulation.setMnemonic('V');
 		menuBar.add(mnView);
@@ -228,6 +265,11 @@ public class MallFrame extends JFrame {
 		statusBar.setBorder(new BevelBorder(BevelBorder.LOWERED, null, null,
 				null, null));
 		contentPane.add(statusBar, BorderLayout.SOUTH);
+		statusBar.setLayout(new BorderLayout(0, 0));
+
+		replayPanel = new ReplayPanel();
+		replayPanel.setVisible(false);
+		statusBar.add(replayPanel, BorderLayout.CENTER);
 
 		JSplitPane splitPane = new JSplitPane();
 		splitPane.setResizeWeight(1.0);
@@ -580,7 +622,69 @@ public class MallFrame extends JFrame {
 		return boardScrollPane;
 	}
 
-	public boolean chooseFile() {
+	/**
+	 * Rozpoczyna odtwarzanie zapisu (plansza zapisu musi być już wyświetlana
+	 * - patrz {@link #setMall(Mall)}).
+	 */
+	public void startReplay(TrajectoryReplay replay) {
+		setSimulationControlsEnabled(false);
+		mntmGoToStep.setEnabled(true);
+
+		replay.addObserver(guiBoard);
+		replayPanel.setReplay(replay);
+		replayPanel.setVisible(true);
+		contentPane.revalidate();
+	}
+
+	/**
+	 * Kończy odtwarzanie zapisu (jeśli trwa).
+	 */
+	public void stopReplay() {
+		if (replayPanel.getReplay() == null)
+			return;
+
+		GuiState.setSelectedAgent(null, this);
+		replayPanel.setReplay(null);
+		replayPanel.setVisible(false);
+		mntmGoToStep.setEnabled(false);
+		contentPane.revalidate();
+	}
+
+	private void setSimulationControlsEnabled(boolean enabled) {
+		mntmRestart.setEnabled(enabled);
+		chckbxmntmPaused.setEnabled(enabled);
+		tglbtnPause.setEnabled(enabled);
+		tglbtnRecord.setEnabled(enabled);
+	}
+
+	public boolean chooseRecording() {
+		JFileChooser fc = new JFileChooser();
+		fc.setCurrentDirectory(new File("."));
+		fc.setFileFilter(new FileFilter() {
+
+			@Override
+			public String getDescription() {
+				return "Trajectory recordings";
+			}
+
+			@Override
+			public boolean accept(File f) {
+				return f.isDirectory() || f.getName().endsWith(".traj");
+			}
+		});
+
+		if (fc.showOpenDialog(null) != JFileChooser.APPROVE_OPTION)
+			return false;
+
+		return MallSim.openReplay(fc.getSelectedFile().toPath());
+	}
+
+	/**
+	 * Pozwala wskazać plik z mapą centrum handlowego.
+	 * 
+	 * @return wybrany plik (<code>null</code> - wybór anulowany)
+	 */
+	public File chooseMallFile() {
 		JFileChooser fc = new JFileChooser();
 		fc.setCurrentDirectory(GuiState.currentResourcePath.toFile());
 		fc.setAcceptAllFileFilterUsed(false);
@@ -601,24 +705,26 @@ public class MallFrame extends JFrame {
 		int returnVal = fc.showOpenDialog(null);
 
 		if (returnVal != JFileChooser.APPROVE_OPTION) {
-			return false;
+			return null;
 		}
-		
-		GuiState.currentResourcePath = fc.getSelectedFile().toPath();
 
-		mntmRestart.setEnabled(true);
-		chckbxmntmPaused.setEnabled(true);
-		tglbtnPause.setEnabled(true);
-		tglbtnRecord.setEnabled(true);
+		return fc.getSelectedFile();
+	}
+
+	public boolean chooseFile() {
+		File file = chooseMallFile();
+		if (file == null)
+			return false;
+
+		GuiState.currentResourcePath = file.toPath();
+
+		setSimulationControlsEnabled(true);
 
 		try {
 			MallSim.runSimulation();
 		} catch (Exception e) {
 			e.printStackTrace();
-			mntmRestart.setEnabled(false);
-			chckbxmntmPaused.setEnabled(false);
-			tglbtnPause.setEnabled(false);
-			tglbtnRecord.setEnabled(false);
+			setSimulationControlsEnabled(false);
 			return false;
 		}
 
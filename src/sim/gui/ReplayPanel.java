@@ -0,0 +1,240 @@
+package sim.gui;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.JToggleButton;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import sim.control.GuiState;
+import sim.control.TrajectoryReplay;
+
+/**
+ * Sterowanie odtwarzaniem zapisanych trajektorii: odtwarzanie i pauza,
+ * przewijanie w przód i w tył, krok po kroku oraz przejście do dowolnego
+ * kroku suwakiem.
+ * <p>
+ * Co {@link GuiState#animationSpeed} ms wyświetlany jest krok odległy o
+ * bieżącą prędkość odtwarzania (pośrednie kroki nie są wyświetlane).
+ *
+ * @author Pawel Kleczek
+ *
+ */
+@SuppressWarnings("serial")
+public class ReplayPanel extends JPanel {
+
+	/**
+	 * Maksymalna liczba kroków pomijanych przy przewijaniu.
+	 */
+	public static final int MAX_RATE = 256;
+
+	private TrajectoryReplay replay = null;
+
+	/**
+	 * Liczba kroków, o jaką przesuwa się odtwarzanie co klatkę (ujemna -
+	 * przewijanie w tył).
+	 */
+	private int rate = 1;
+
+	private final Timer timer;
+
+	private final JSlider slider = new JSlider();
+	private final JLabel lblStep = new JLabel();
+	private final JToggleButton tglbtnPlay = new JToggleButton("Play");
+
+	/**
+	 * Czy suwak jest przestawiany przez odtwarzanie (a nie przez
+	 * użytkownika)?
+	 */
+	private boolean isUpdatingSlider = false;
+
+	public ReplayPanel() {
+		setLayout(new BorderLayout(5, 0));
+
+		JPanel buttons = new JPanel();
+		add(buttons, BorderLayout.WEST);
+
+		JButton btnRewind = new JButton("<<");
+		btnRewind.setToolTipText("Rewind");
+		btnRewind.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				rate = (rate >= 0) ? -2 : Math.max(2 * rate, -MAX_RATE);
+				play();
+			}
+		});
+		buttons.add(btnRewind);
+
+		JButton btnStepBack = new JButton("<");
+		btnStepBack.setToolTipText("Previous step");
+		btnStepBack.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				stepBy(-1);
+			}
+		});
+		buttons.add(btnStepBack);
+
+		tglbtnPlay.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (tglbtnPlay.isSelected()) {
+					rate = 1;
+					play();
+				} else {
+					pause();
+				}
+			}
+		});
+		buttons.add(tglbtnPlay);
+
+		JButton btnStepForward = new JButton(">");
+		btnStepForward.setToolTipText("Next step");
+		btnStepForward.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				stepBy(1);
+			}
+		});
+		buttons.add(btnStepForward);
+
+		JButton btnFastForward = new JButton(">>");
+		btnFastForward.setToolTipText("Fast forward");
+		btnFastForward.addActionListener(new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				rate = (rate <= 0) ? 2 : Math.min(2 * rate, MAX_RATE);
+				play();
+			}
+		});
+		buttons.add(btnFastForward);
+
+		slider.addChangeListener(new ChangeListener() {
+
+			@Override
+			public void stateChanged(ChangeEvent e) {
+				if (!isUpdatingSlider && replay != null)
+					showStep(slider.getValue());
+			}
+		});
+		add(slider, BorderLayout.CENTER);
+
+		add(lblStep, BorderLayout.EAST);
+
+		timer = new Timer(GuiState.animationSpeed, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				advance();
+			}
+		});
+	}
+
+	/**
+	 * Ustawia odtwarzany zapis (<code>null</code> - kończy odtwarzanie).
+	 * Poprzedni zapis jest zamykany.
+	 */
+	public void setReplay(TrajectoryReplay replay) {
+		pause();
+
+		if (this.replay != null)
+			this.replay.close();
+		this.replay = replay;
+
+		if (replay == null)
+			return;
+
+		isUpdatingSlider = true;
+		slider.setMinimum(replay.getFirstStep());
+		slider.setMaximum(replay.getLastStep());
+		isUpdatingSlider = false;
+
+		rate = 1;
+		showStep(replay.getFirstStep());
+	}
+
+	public TrajectoryReplay getReplay() {
+		return replay;
+	}
+
+	/**
+	 * Wyświetla dany krok (ograniczony do zapisanego przedziału).
+	 */
+	public void showStep(int step) {
+		if (replay == null)
+			return;
+
+		step = Math.max(replay.getFirstStep(),
+				Math.min(step, replay.getLastStep()));
+		replay.showStep(step);
+
+		isUpdatingSlider = true;
+		slider.setValue(replay.getStep());
+		isUpdatingSlider = false;
+
+		updateLabel();
+	}
+
+	private void stepBy(int delta) {
+		pause();
+		if (replay != null)
+			showStep(replay.getStep() + delta);
+	}
+
+	private void play() {
+		if (replay == null)
+			return;
+
+		// Odtwarzanie od początku.
+		if (rate > 0 && replay.getStep() >= replay.getLastStep())
+			showStep(replay.getFirstStep());
+
+		tglbtnPlay.setSelected(true);
+		timer.setDelay(GuiState.animationSpeed);
+		timer.start();
+		updateLabel();
+	}
+
+	private void pause() {
+		timer.stop();
+		tglbtnPlay.setSelected(false);
+		updateLabel();
+	}
+
+	/**
+	 * Wyświetla kolejną klatkę odtwarzania.
+	 */
+	private void advance() {
+		int step = replay.getStep() + rate;
+		if (step <= replay.getFirstStep() || step >= replay.getLastStep())
+			pause();
+
+		showStep(step);
+		timer.setDelay(GuiState.animationSpeed);
+	}
+
+	private void updateLabel() {
+		if (replay == null) {
+			lblStep.setText("");
+			return;
+		}
+
+		String text = String.format("step %d / %d", replay.getStep(),
+				replay.getLastStep());
+		if (timer.isRunning() && rate != 1)
+			text += String.format(" (x%d)", rate);
+		lblStep.setText(text);
+	}
+}
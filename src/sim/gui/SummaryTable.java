@@ -1,88 +1,92 @@
 package sim.gui;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.logging.Logger;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
 
 import javax.swing.JTable;
-import javax.swing.table.TableModel;
-
+import javax.swing.Timer;
+import javax.swing.table.DefaultTableModel;
+
+import sim.metrics.Counter;
+import sim.metrics.Metric;
+import sim.metrics.MetricsRegistry;
+
+/**
+ * Tabela prezentująca miary symulacji.
+ * <p>
+ * Wartości odczytywane są z rejestru miar ({@link MetricsRegistry}) w wątku
+ * Swing co {@link #REFRESH_INTERVAL} ms - symulacja nie odwołuje się do
+ * tabeli.
+ */
 @SuppressWarnings("serial")
 public class SummaryTable extends JTable {
 
-	public static enum Param {
-		PERC_OF_FIELDS_AS_LANES, LANES_COHERENCE, LOST, AVG_DISTANCE
-	}
+	/**
+	 * Odstęp (w ms) między kolejnymi odczytami miar.
+	 */
+	public static final int REFRESH_INTERVAL = 500;
 
-	int samples = 0;
+	private static String[] columnNames = { "Parameter", "Value" };
 
-	private static Map<Param, Object> paramValues = new HashMap<Param, Object>();
-	private static Map<Param, Double> avgParamValues = new HashMap<Param, Double>();
+	private final DefaultTableModel model = new DefaultTableModel(
+			columnNames, 0) {
+		@Override
+		public boolean isCellEditable(int row, int column) {
+			return false;
+		}
+	};
 
-	private static Object[][] rawData = { { "% of fields as lanes", "" },
-			{ "lanes' coherence", "" }, { "lost", "" }, { "avg distance", "" },
-			{ "% of fields as lanes (avg)", "" },
-			{ "lanes' coherence (avg)", "" }, { "lost (avg)", "" }, { "avg distance (avg)", "" } };
+	private MetricsRegistry registry = null;
 
-	private static String[] columnNames = { "Parameter", "Value" };
+	private final Timer timer;
 
-	private final static Logger LOGGER = Logger
-			.getLogger(Logger.GLOBAL_LOGGER_NAME);
-	
 	public SummaryTable() {
-		super(rawData, columnNames);
+		setModel(model);
+
+		timer = new Timer(REFRESH_INTERVAL, new ActionListener() {
 
-		setParamValue(Param.PERC_OF_FIELDS_AS_LANES, Double.valueOf(0.0));
-		setParamValue(Param.LANES_COHERENCE, Double.valueOf(0.0));
-		setParamValue(Param.LOST, Double.valueOf(0.0));
-		setParamValue(Param.AVG_DISTANCE, Double.valueOf(0.0));
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				refresh();
+			}
+		});
+		timer.start();
 	}
 
-	public void setParamValue(Param param, Object value) {
-		paramValues.put(param, value);
+	/**
+	 * Ustawia rejestr, z którego odczytywane są miary.
+	 */
+	public void setRegistry(MetricsRegistry registry) {
+		this.registry = registry;
+		refresh();
+	}
 
-		Double newVal = Double.valueOf(value.toString());
+	/**
+	 * Odczytuje bieżące wartości miar (wywoływana w wątku Swing).
+	 */
+	private void refresh() {
+		if (registry == null)
+			return;
 
-		if (avgParamValues.containsKey(param)) {
-			Double avgVal = avgParamValues.get(param);
-			newVal = round((avgVal * (double) samples + newVal)
-					/ (double) (samples + 1));
-			avgParamValues.put(param, newVal);
-		} else {
-			avgParamValues.put(param, newVal);
-		}
+		List<Metric> metrics = registry.getMetrics();
+		if (model.getRowCount() != metrics.size())
+			model.setRowCount(metrics.size());
 
-		TableModel m = getModel();
-		if (value instanceof Double)
-			m.setValueAt(round(value), param.ordinal(), 1);
-		else 
-			m.setValueAt(value, param.ordinal(), 1);
-		
-		m.setValueAt(newVal, param.ordinal() + Param.values().length, 1);
-	}
+		for (int i = 0; i < metrics.size(); i++) {
+			Metric m = metrics.get(i);
 
-	private Double round(Object value) {
-		Double dv = 0.0;
-		
-		try {
-			dv = Double.valueOf(value.toString());
-		} catch (NumberFormatException e) {
-			LOGGER.severe("Number format exception: " + e.getMessage());
-		}
-		
-		BigDecimal bd = new BigDecimal(dv)
-				.setScale(2, RoundingMode.HALF_EVEN);
-		return bd.doubleValue();
-	}
+			Object value = (m instanceof Counter) ? (Object) ((Counter) m)
+					.getCount() : (Object) round(m.getValue());
 
-	public void clear() {
-		avgParamValues.clear();
-		samples = 0;
+			if (!m.getName().equals(model.getValueAt(i, 0)))
+				model.setValueAt(m.getName(), i, 0);
+			if (!value.equals(model.getValueAt(i, 1)))
+				model.setValueAt(value, i, 1);
+		}
 	}
 
-	public void nextSample() {
-		samples++;
+	private static double round(double value) {
+		return Math.round(value * 100.0) / 100.0;
 	}
 }
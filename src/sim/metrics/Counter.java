@@ -0,0 +1,40 @@
+package sim.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Licznik zdarzeń (może być zwiększany równolegle).
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class Counter extends Metric {
+
+	private final AtomicLong count = new AtomicLong();
+
+	Counter(String name) {
+		super(name);
+	}
+
+	public void increment() {
+		count.incrementAndGet();
+	}
+
+	public void add(long n) {
+		count.addAndGet(n);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getValue() {
+		return count.get();
+	}
+
+	@Override
+	public void reset() {
+		count.set(0);
+	}
+}
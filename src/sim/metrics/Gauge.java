@@ -0,0 +1,30 @@
+package sim.metrics;
+
+/**
+ * Miara przechowująca ostatnią zapisaną wartość.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class Gauge extends Metric {
+
+	private volatile double value = 0.0;
+
+	Gauge(String name) {
+		super(name);
+	}
+
+	public void set(double value) {
+		this.value = value;
+	}
+
+	@Override
+	public double getValue() {
+		return value;
+	}
+
+	@Override
+	public void reset() {
+		value = 0.0;
+	}
+}
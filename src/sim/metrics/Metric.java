@@ -0,0 +1,31 @@
+package sim.metrics;
+
+/**
+ * Nazwana miara zapisywana przez symulację i odczytywana (np. przez GUI)
+ * w dowolnym wątku.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public abstract class Metric {
+
+	private final String name;
+
+	protected Metric(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return bieżąca wartość miary
+	 */
+	public abstract double getValue();
+
+	/**
+	 * Przywraca wartość początkową (np. przed rozpoczęciem nowej symulacji).
+	 */
+	public abstract void reset();
+}
@@ -0,0 +1,71 @@
+package sim.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rejestr nazwanych miar symulacji.
+ * <p>
+ * Symulacja pobiera miary raz (przy tworzeniu) i zapisuje do nich wartości
+ * bez blokowania rejestru, a odbiorcy (np. {@link sim.gui.SummaryTable})
+ * odczytują je we własnym wątku i tempie. Miary przechowywane są w
+ * kolejności rejestracji.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class MetricsRegistry {
+
+	private final Map<String, Metric> metrics = new LinkedHashMap<>();
+
+	/**
+	 * Zwraca miarę o podanej nazwie (tworzy ją, jeśli nie istnieje).
+	 */
+	public Gauge gauge(String name) {
+		return get(name, Gauge.class);
+	}
+
+	public Counter counter(String name) {
+		return get(name, Counter.class);
+	}
+
+	public StreamingAverage average(String name) {
+		return get(name, StreamingAverage.class);
+	}
+
+	private synchronized <T extends Metric> T get(String name, Class<T> type) {
+		Metric m = metrics.get(name);
+		if (m == null) {
+			if (type == Gauge.class)
+				m = new Gauge(name);
+			else if (type == Counter.class)
+				m = new Counter(name);
+			else
+				m = new StreamingAverage(name);
+			metrics.put(name, m);
+		}
+
+		if (!type.isInstance(m))
+			throw new IllegalArgumentException("Metric " + name
+					+ " is not a " + type.getSimpleName());
+
+		return type.cast(m);
+	}
+
+	/**
+	 * @return zarejestrowane miary (w kolejności rejestracji)
+	 */
+	public synchronized List<Metric> getMetrics() {
+		return new ArrayList<>(metrics.values());
+	}
+
+	/**
+	 * Przywraca wartości początkowe wszystkich miar.
+	 */
+	public synchronized void reset() {
+		for (Metric m : metrics.values())
+			m.reset();
+	}
+}
@@ -0,0 +1,40 @@
+package sim.metrics;
+
+/**
+ * Średnia wszystkich dotąd zapisanych próbek (bez ich przechowywania).
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class StreamingAverage extends Metric {
+
+	private long count = 0;
+	private double mean = 0.0;
+
+	StreamingAverage(String name) {
+		super(name);
+	}
+
+	/**
+	 * Dodaje próbkę.
+	 */
+	public synchronized void add(double sample) {
+		count++;
+		mean += (sample - mean) / count;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	@Override
+	public synchronized double getValue() {
+		return mean;
+	}
+
+	@Override
+	public synchronized void reset() {
+		count = 0;
+		mean = 0.0;
+	}
+}
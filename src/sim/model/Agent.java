@@ -1,27 +1,21 @@
 package sim.model;
 
 import java.awt.Point;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Observable;
 import java.util.Properties;
 
 import sim.model.helpers.Direction;
 import sim.model.helpers.MyPoint;
-import sim.model.helpers.Vec;
+import sim.model.helpers.Rand;
 
 /**
  * An <code>Agent</code> class represents a pedestrian (or visitor) on the
  * board.
+ * <p>
+ * The agent is only a handle - its data is kept in the {@link AgentStore}
+ * slot given by the agent's id. Once the agent is released (i.e. has left
+ * the simulation) the slot may be reused by another agent.
  * 
  * @author Pawel
  * 
@@ -39,6 +33,13 @@ public class Agent extends Observable {
 
 		private final String filename;
 
+		/**
+		 * Parametry wczytane z pliku (przy pierwszym użyciu).
+		 */
+		private int vMax;
+		private double agility;
+		private boolean isLoaded = false;
+
 		private MovementBehavior(String filename) {
 			this.filename = filename;
 		}
@@ -47,281 +48,331 @@ public class Agent extends Observable {
 			return filename;
 		}
 
-	}
+		public int getvMax() {
+			load();
+			return vMax;
+		}
 
-	/**
-	 * The "absolute" maximum speed (number of tiles per second) a pedestrian
-	 * can cover in one iteration, currently ~6.5km/h.
-	 */
-	public static final int V_MAX = 6;
+		public double getAgility() {
+			load();
+			return agility;
+		}
 
-	public static final int FORCE_VALUE_MAX = -5;
+		private synchronized void load() {
+			if (isLoaded)
+				return;
 
-	private int vMax;
+			try {
+				Properties prop = new Properties();
 
-	/**
-	 * Prawdopodobieństwo wystąpienia zamiany.
-	 */
-	private double agility;
+				String filename = String.format("/agents/%s.agent",
+						getFilename());
 
-	private MyPoint position = null;
+				prop.load(Agent.class.getResourceAsStream(filename));
 
-	/**
-	 * Kierunek ruchu.
-	 */
-	private Direction direction = Direction.N;
+				vMax = Integer.valueOf(prop.getProperty("speed"));
+				agility = Double.valueOf(prop.getProperty("agility"));
+			} catch (Exception e) {
+				e.printStackTrace();
 
-	/**
-	 * Punkt, do którego aktualnie zmierza agent.
-	 */
-	private List<Point> route;
+				// ustaw wartości domyślne
+				vMax = 1;
+				agility = 0.5;
+			}
 
-	/**
-	 * Mapowanie [punkt]->[wartość pola potencjału].
-	 */
-	private final Map<Vec, Integer> forceField;
+			isLoaded = true;
+		}
 
-	/**
-	 * Ilość płytek przebytych, by dotrzeć do obecnego celu.
-	 */
-	private int fieldsMoved = 0;
+		/**
+		 * Pole potencjału (wspólne dla wszystkich agentów o danych
+		 * parametrach).
+		 */
+		public ForceFieldStencil getForceField() {
+			return ForceFieldStencil.DEFAULT;
+		}
+
+	}
 
 	/**
-	 * Dystans do celu w chwili ustalenia celu.
+	 * The "absolute" maximum speed (number of tiles per second) a pedestrian
+	 * can cover in one iteration, currently ~6.5km/h.
 	 */
-	private double initialDistanceToTarget = 0;
+	public static final int V_MAX = 6;
+
+	public static final int FORCE_VALUE_MAX = -5;
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private final AgentStore store = AgentStore.getInstance();
 
 	/**
-	 * Czas wstrzymania dekrementowany co każdy krok symulacji.
+	 * Identyfikator agenta (numer slotu w {@link AgentStore}) - pozwala
+	 * indeksować tablice z danymi agentów.
 	 */
-
-	private int holdTime = 0;
+	private final int id;
 
 	/**
-	 * Flaga określająca, czy Agent został usunięty z symulacji.
+	 * Pokolenie slotu w chwili utworzenia agenta.
 	 */
-	private boolean isDead = false;
-	
-	// ------ testy
-	
-	// licznik odwiedzonych pol: x,y -> n
-	private Map<String, Integer> visitCounter = new HashMap<String, Integer>();
+	private final int generation;
 
 	public Agent(Agent a) {
-		vMax = a.getvMax();
-		agility = a.getAgility();
-		position = a.position == null ? null : new MyPoint(a.position);	// XXX: co, gdy position != null?
-		direction = a.getDirection();
-		route = new ArrayList<>(a.getRoute());
-		forceField = new HashMap<>(a.getForceField());
-		fieldsMoved = a.getFieldsMoved();
-		initialDistanceToTarget = a.getInitialDistanceToTarget();
-		holdTime = a.getHoldTime();
-		isDead = a.getDead();
-	}
-
-	public Agent(MovementBehavior movementBehavior) {
+		this(a.getMovementBehavior());
 
-		try {
-			loadProperties(movementBehavior);
-		} catch (Exception e) {
-			e.printStackTrace();
-
-			// ustaw wartości domyślne
-			vMax = 1;
-			agility = 0.5;
+		store.vMax[id] = a.getvMax();
+		store.agility[id] = a.getAgility();
+		if (a.isPlaced()) {
+			store.x[id] = store.x[a.id];
+			store.y[id] = store.y[a.id];
 		}
-
-		route = new LinkedList<Point>();
-		forceField = Collections.unmodifiableMap(initForceField());
-
-		assert forceField != null;
+		store.direction[id] = store.direction[a.id];
+		store.routes.get(id).addAll(a.getRoute());
+		store.fieldsMoved[id] = a.getFieldsMoved();
+		store.initialDistanceToTarget[id] = a.getInitialDistanceToTarget();
+		store.holdTime[id] = a.getHoldTime();
 	}
 
-	private void loadProperties(MovementBehavior movementBehavior)
-			throws FileNotFoundException, IOException {
-		Properties prop = new Properties();
-		
-		String filename = String.format("/agents/%s.agent",
-				movementBehavior.getFilename());
-		
-		prop.load(Agent.class.getResourceAsStream(filename));
-
-		vMax = Integer.valueOf(prop.getProperty("speed"));
-		agility = Double.valueOf(prop.getProperty("agility"));
+	public Agent(MovementBehavior movementBehavior) {
+		id = store.allocate(this, movementBehavior);
+		generation = store.generation[id];
 	}
 
-	private Map<Vec, Integer> initForceField() {
-		Map<Vec, Integer> tForceField = new HashMap<Vec, Integer>();
-
-		int level = Integer.MAX_VALUE;
-
-		// za agentem
-		level = 1;
-		tForceField.put(new Vec(-1, level), -2);
-		tForceField.put(new Vec(0, level), -3);
-		tForceField.put(new Vec(1, level), -2);
-
-		// obok agenta
-		level = 0;
-		tForceField.put(new Vec(-2, level), -2);
-		tForceField.put(new Vec(-1, level), -4);
-		tForceField.put(new Vec(1, level), -4);
-		tForceField.put(new Vec(2, level), -2);
-
-		// +1 przed agentem
-		level = -1;
-		tForceField.put(new Vec(-2, level), -2);
-		tForceField.put(new Vec(-1, level), -4);
-		tForceField.put(new Vec(0, level), -5);
-		tForceField.put(new Vec(1, level), -4);
-		tForceField.put(new Vec(2, level), -2);
-
-		// +2 przed agentem
-		level = -2;
-		tForceField.put(new Vec(-2, level), -1);
-		tForceField.put(new Vec(-1, level), -3);
-		tForceField.put(new Vec(0, level), -4);
-		tForceField.put(new Vec(1, level), -3);
-		tForceField.put(new Vec(2, level), -1);
+	public int getId() {
+		return id;
+	}
 
-		// +3 przed agentem
-		level = -3;
-		tForceField.put(new Vec(-1, level), -1);
-		tForceField.put(new Vec(0, level), -2);
-		tForceField.put(new Vec(1, level), -1);
+	/**
+	 * Zwraca liczbę nadanych dotąd identyfikatorów (wszystkie identyfikatory
+	 * są mniejsze od tej wartości).
+	 */
+	public static int getIdCount() {
+		return AgentStore.getInstance().getSlotCount();
+	}
 
-		return tForceField;
+	/**
+	 * Zwraca numer kolejnego losowania agenta w bieżącym kroku symulacji
+	 * (numery są liczone od 0 w każdym kroku).
+	 */
+	public int nextDrawIndex() {
+		long step = Rand.getStep();
+		if (store.drawStep[id] != step) {
+			store.drawStep[id] = step;
+			store.drawIndex[id] = 0;
+		}
+		return store.drawIndex[id]++;
 	}
 
 	public Direction getDirection() {
-		return direction;
+		return DIRECTIONS[store.direction[id]];
 	}
 
 	public void setDirection(Direction direction) {
-		this.direction = direction;
+		store.direction[id] = (byte) direction.ordinal();
 
-		setChanged();
-		notifyObservers();
+		fireChanged();
 	}
 
 	public int getvMax() {
-		return vMax;
+		return store.vMax[id];
 	}
 
 	public Point getTarget() {
-		return route.get(0);
+		return store.routes.get(id).get(store.routeCursor[id]);
 	}
 
+	/**
+	 * @return punkty trasy, które nie zostały jeszcze osiągnięte
+	 */
 	public List<Point> getRoute() {
-		return route;
+		List<Point> route = store.routes.get(id);
+		return route.subList(store.routeCursor[id], route.size());
 	}
 
 	public void addTarget(Point target) {
-		route.add(target);
+		store.routes.get(id).add(target);
 
-		setChanged();
-		notifyObservers();
+		fireChanged();
 	}
 
 	public int getTargetCount() {
-		return route.size();
+		return store.routes.get(id).size() - store.routeCursor[id];
 	}
 
 	public void reachTarget() {
-		if (!route.isEmpty())
-			route.remove(0);
-		fieldsMoved = 0;
+		List<Point> route = store.routes.get(id);
+		if (store.routeCursor[id] < route.size())
+			store.routeCursor[id]++;
+		if (store.routeCursor[id] == route.size()) {
+			route.clear();
+			store.routeCursor[id] = 0;
+		}
+		store.fieldsMoved[id] = 0;
 
-		setChanged();
-		notifyObservers();
+		fireChanged();
 		
-		visitCounter.clear();
+		store.revisits.get(id).clear();
 	}
 
 	public void clearTargets() {
-		route.clear();
-		fieldsMoved = 0;
+		store.routes.get(id).clear();
+		store.routeCursor[id] = 0;
+		store.fieldsMoved[id] = 0;
 
-		setChanged();
-		notifyObservers();
+		fireChanged();
+	}
+
+	public MovementBehavior getMovementBehavior() {
+		return store.behavior[id];
 	}
 
-	public Map<Vec, Integer> getForceField() {
-		// TODO: immutable map?
-		return forceField;
+	public ForceFieldStencil getForceField() {
+		return store.behavior[id].getForceField();
 	}
 
 	public int getFieldsMoved() {
-		return fieldsMoved;
+		return store.fieldsMoved[id];
 	}
 
 	public void incrementFieldsMoved() {
-		fieldsMoved++;
+		store.fieldsMoved[id]++;
 
-		setChanged();
-		notifyObservers();
+		fireChanged();
 	}
 
 	public double getInitialDistanceToTarget() {
-		return initialDistanceToTarget;
+		return store.initialDistanceToTarget[id];
 	}
 
 	public void setInitialDistanceToTarget(double initialDistanceToTarget) {
-		this.initialDistanceToTarget = initialDistanceToTarget;
+		store.initialDistanceToTarget[id] = initialDistanceToTarget;
 
-		setChanged();
-		notifyObservers();
+		fireChanged();
 	}
 
+	/**
+	 * @return pozycja agenta lub <code>null</code>, jeśli agent nie został
+	 *         jeszcze umieszczony na planszy
+	 */
 	public MyPoint getPosition() {
-		return new MyPoint(position);
+		if (!isPlaced())
+			return null;
+		return new MyPoint(store.x[id], store.y[id]);
+	}
+
+	/**
+	 * @return współrzędna x pozycji agenta (<code>-1</code>, jeśli agent nie
+	 *         został jeszcze umieszczony na planszy)
+	 */
+	public int getX() {
+		return store.x[id];
+	}
+
+	public int getY() {
+		return store.y[id];
+	}
+
+	private boolean isPlaced() {
+		return store.x[id] >= 0;
 	}
 
 	public void setPosition(Point position) {
-		this.position = new MyPoint(position);
+		setPosition(position.x, position.y);
+	}
 
-		String key = position.x + "," + position.y;
-		Integer value = visitCounter.get(key);
-		value = (value == null) ? 1 : (value + 1);
-		
-		visitCounter.put(key, value);
-		
-		setChanged();
-		notifyObservers();
+	public void setPosition(int x, int y) {
+		store.x[id] = x;
+		store.y[id] = y;
+
+		store.revisits.get(id).visit(x, y);
+
+		fireChanged();
+	}
+
+	/**
+	 * Zwraca stan otoczenia agenta (wyznaczany przez algorytm ruchu), przy
+	 * którym agent ostatnio nie mógł wykonać żadnego ruchu, lub
+	 * <code>-1</code>.
+	 */
+	public long getBlockedStamp() {
+		return store.blockedStamp[id];
+	}
+
+	public void setBlockedStamp(long stamp) {
+		store.blockedStamp[id] = stamp;
+	}
+
+	/**
+	 * Zwraca liczbę kolejnych kroków, w których agent nie zmienił pozycji
+	 * (patrz {@link sim.control.GridlockDetector}).
+	 */
+	public int getStalledSteps() {
+		return store.stalledSteps[id];
+	}
+
+	public void setStalledSteps(int steps) {
+		store.stalledSteps[id] = steps;
+	}
+
+	/**
+	 * Zwraca indeks pola (patrz {@link Board#toIndex(int, int)}), na które
+	 * agent próbował wejść w ostatniej próbie ruchu, lub <code>-1</code>
+	 * (patrz {@link sim.control.GridlockDetector}).
+	 */
+	public int getWantedCell() {
+		return store.wantedCell[id];
+	}
+
+	public void setWantedCell(int cell) {
+		store.wantedCell[id] = cell;
 	}
 
 	public double getAgility() {
-		return agility;
+		return store.agility[id];
 	}
 
 	public int getHoldTime() {
-		return holdTime;
+		return store.holdTime[id];
 	}
 
 	public void setHoldTime(int ht) {
-		holdTime = ht;
-
-		if (holdTime < 0)
-			holdTime = 0;
+		store.holdTime[id] = Math.max(0, ht);
 
-		setChanged();
-		notifyObservers();
+		fireChanged();
 	}
 
 	public void decrementHoldTime() {
-		setHoldTime(holdTime - 1);
+		setHoldTime(store.holdTime[id] - 1);
 
-		setChanged();
-		notifyObservers();
+		fireChanged();
 	}
 
-	public void setDead(boolean state) {
-		isDead = state;
+	/**
+	 * Usuwa agenta z symulacji i zwalnia jego slot (agent musi już zostać
+	 * zdjęty z planszy). Kolejne wywołania nie mają efektu.
+	 */
+	public void release() {
+		if (!getDead())
+			store.release(id);
 	}
 
+	/**
+	 * Powiadamia obserwatorów o zmianie stanu agenta. Obserwowany jest co
+	 * najwyżej agent zaznaczony w GUI, więc w pozostałych przypadkach
+	 * pomijane jest kopiowanie listy obserwatorów.
+	 */
+	private void fireChanged() {
+		if (countObservers() == 0)
+			return;
+
+		setChanged();
+		notifyObservers();
+	}
+
+	/**
+	 * Czy agent został usunięty z symulacji?
+	 */
 	public boolean getDead() {
-		return isDead;
+		return store.generation[id] != generation;
 	}
 
 	/**
@@ -329,11 +380,6 @@ public class Agent extends Observable {
 	 * @return
 	 */
 	public boolean isLost() {
-		for (Entry<String, Integer> e : visitCounter.entrySet()) {
-			if (e.getValue() > 2)
-				return true;
-		}
-		
-		return false;
+		return store.revisits.get(id).isLost();
 	}
 }
@@ -0,0 +1,261 @@
+package sim.model;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import sim.model.Agent.MovementBehavior;
+import sim.model.helpers.RevisitTracker;
+
+/**
+ * Magazyn danych agentów: często używane pola przechowywane są w równoległych
+ * tablicach indeksowanych identyfikatorem agenta (numerem slotu), a obiekt
+ * {@link Agent} jest jedynie uchwytem.
+ * <p>
+ * Sloty agentów usuniętych z symulacji trafiają na listę wolnych slotów i są
+ * ponownie wykorzystywane - identyfikatory pozostają więc gęste, a trasy i
+ * liczniki odwiedzin nie są alokowane przy każdym pojawieniu się agenta.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class AgentStore {
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private static final AgentStore INSTANCE = new AgentStore();
+
+	/**
+	 * Liczba slotów, które kiedykolwiek zostały przydzielone (wszystkie
+	 * identyfikatory są mniejsze od tej wartości).
+	 */
+	private int slotCount = 0;
+
+	/**
+	 * Liczba agentów istniejących w danej chwili.
+	 */
+	private int liveCount = 0;
+
+	/**
+	 * Stos wolnych slotów - domyślnie przydzielany jest slot zwolniony
+	 * najpóźniej.
+	 */
+	private int[] freeSlots = new int[INITIAL_CAPACITY];
+	private int nFreeSlots = 0;
+
+	/**
+	 * Czy przydzielać wolny slot o najmniejszym numerze (zamiast zwolnionego
+	 * najpóźniej)? Wtedy identyfikatory nowych agentów nie zależą od
+	 * kolejności zwolnień, która w trybie równoległym zależy od przeplotu
+	 * wątków.
+	 */
+	private boolean lowestFirst = false;
+
+	/**
+	 * Numer "pokolenia" slotu - zwiększany przy każdym zwolnieniu, co pozwala
+	 * rozpoznać uchwyty agentów, którzy opuścili już symulację.
+	 */
+	int[] generation = new int[INITIAL_CAPACITY];
+
+	Agent[] handles = new Agent[INITIAL_CAPACITY];
+	MovementBehavior[] behavior = new MovementBehavior[INITIAL_CAPACITY];
+
+	/**
+	 * Pozycja agenta (<code>-1</code>, gdy agent nie został jeszcze
+	 * umieszczony na planszy).
+	 */
+	int[] x = new int[INITIAL_CAPACITY];
+	int[] y = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Numery porządkowe kierunków ruchu.
+	 */
+	byte[] direction = new byte[INITIAL_CAPACITY];
+
+	int[] vMax = new int[INITIAL_CAPACITY];
+	double[] agility = new double[INITIAL_CAPACITY];
+	int[] holdTime = new int[INITIAL_CAPACITY];
+	int[] fieldsMoved = new int[INITIAL_CAPACITY];
+	double[] initialDistanceToTarget = new double[INITIAL_CAPACITY];
+
+	/**
+	 * Trasy agentów - punkty przed kursorem zostały już osiągnięte.
+	 */
+	List<List<Point>> routes = new ArrayList<>();
+	int[] routeCursor = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Liczniki odwiedzin pól (od osiągnięcia poprzedniego celu).
+	 */
+	List<RevisitTracker> revisits = new ArrayList<>();
+
+	/**
+	 * Liczba losowań wykonanych przez agenta w kroku <code>drawStep</code>
+	 * (patrz {@link sim.model.helpers.Rand#nextDouble(Agent)}).
+	 */
+	int[] drawIndex = new int[INITIAL_CAPACITY];
+	long[] drawStep = new long[INITIAL_CAPACITY];
+
+	/**
+	 * Stan otoczenia, przy którym agent nie mógł wykonać żadnego ruchu
+	 * (<code>-1</code> - brak; patrz {@link Agent#getBlockedStamp()}).
+	 */
+	long[] blockedStamp = new long[INITIAL_CAPACITY];
+
+	/**
+	 * Liczba kolejnych kroków, w których agent nie zmienił pozycji.
+	 */
+	int[] stalledSteps = new int[INITIAL_CAPACITY];
+
+	/**
+	 * Indeks pola, na które agent ostatnio próbował wejść
+	 * (<code>-1</code> - brak; patrz {@link Agent#getWantedCell()}).
+	 */
+	int[] wantedCell = new int[INITIAL_CAPACITY];
+
+	public static AgentStore getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Przydziela slot nowemu agentowi.
+	 *
+	 * @param handle
+	 *            uchwyt agenta
+	 * @param mb
+	 * @return identyfikator (numer slotu)
+	 */
+	synchronized int allocate(Agent handle, MovementBehavior mb) {
+		int id;
+		if (nFreeSlots > 0 && lowestFirst) {
+			int k = 0;
+			for (int i = 1; i < nFreeSlots; i++)
+				if (freeSlots[i] < freeSlots[k])
+					k = i;
+			id = freeSlots[k];
+			System.arraycopy(freeSlots, k + 1, freeSlots, k, nFreeSlots - k
+					- 1);
+			nFreeSlots--;
+		} else if (nFreeSlots > 0) {
+			id = freeSlots[--nFreeSlots];
+		} else {
+			id = slotCount++;
+			ensureCapacity(slotCount);
+			routes.add(new ArrayList<Point>());
+			revisits.add(new RevisitTracker());
+		}
+
+		handles[id] = handle;
+		behavior[id] = mb;
+		x[id] = -1;
+		y[id] = -1;
+		direction[id] = 0;
+		vMax[id] = mb.getvMax();
+		agility[id] = mb.getAgility();
+		holdTime[id] = 0;
+		fieldsMoved[id] = 0;
+		initialDistanceToTarget[id] = 0;
+		routeCursor[id] = 0;
+		blockedStamp[id] = -1;
+		stalledSteps[id] = 0;
+		wantedCell[id] = -1;
+
+		liveCount++;
+
+		return id;
+	}
+
+	/**
+	 * Zwalnia slot agenta (agent musi już zostać usunięty z planszy).
+	 *
+	 * @param id
+	 */
+	synchronized void release(int id) {
+		generation[id]++;
+		handles[id] = null;
+		routes.get(id).clear();
+		revisits.get(id).clear();
+
+		if (nFreeSlots == freeSlots.length)
+			freeSlots = Arrays.copyOf(freeSlots, 2 * freeSlots.length);
+		freeSlots[nFreeSlots++] = id;
+
+		liveCount--;
+	}
+
+	/**
+	 * Zwalnia wszystkie sloty (przed rozpoczęciem nowej symulacji). Uchwyty
+	 * dotychczasowych agentów stają się nieaktualne.
+	 */
+	public synchronized void clear() {
+		for (int id = 0; id < slotCount; id++) {
+			generation[id]++;
+			handles[id] = null;
+		}
+
+		Arrays.fill(drawIndex, 0);
+		Arrays.fill(drawStep, 0);
+		routes.clear();
+		revisits.clear();
+		slotCount = 0;
+		nFreeSlots = 0;
+		liveCount = 0;
+	}
+
+	/**
+	 * Ustala kolejność ponownego wykorzystania wolnych slotów.
+	 *
+	 * @param lowestFirst
+	 *            <code>true</code> - slot o najmniejszym numerze (wymagane
+	 *            przy równoległym zwalnianiu slotów), <code>false</code> -
+	 *            slot zwolniony najpóźniej
+	 */
+	public synchronized void setLowestFirst(boolean lowestFirst) {
+		this.lowestFirst = lowestFirst;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity <= x.length)
+			return;
+
+		int n = Math.max(capacity, 2 * x.length);
+		generation = Arrays.copyOf(generation, n);
+		handles = Arrays.copyOf(handles, n);
+		behavior = Arrays.copyOf(behavior, n);
+		x = Arrays.copyOf(x, n);
+		y = Arrays.copyOf(y, n);
+		direction = Arrays.copyOf(direction, n);
+		vMax = Arrays.copyOf(vMax, n);
+		agility = Arrays.copyOf(agility, n);
+		holdTime = Arrays.copyOf(holdTime, n);
+		fieldsMoved = Arrays.copyOf(fieldsMoved, n);
+		initialDistanceToTarget = Arrays.copyOf(initialDistanceToTarget, n);
+		routeCursor = Arrays.copyOf(routeCursor, n);
+		drawIndex = Arrays.copyOf(drawIndex, n);
+		drawStep = Arrays.copyOf(drawStep, n);
+		blockedStamp = Arrays.copyOf(blockedStamp, n);
+		stalledSteps = Arrays.copyOf(stalledSteps, n);
+		wantedCell = Arrays.copyOf(wantedCell, n);
+	}
+
+	/**
+	 * @param id
+	 * @return uchwyt agenta zajmującego slot lub <code>null</code>
+	 */
+	public Agent getAgent(int id) {
+		return handles[id];
+	}
+
+	/**
+	 * Zwraca liczbę przydzielonych dotąd slotów (wszystkie identyfikatory są
+	 * mniejsze od tej wartości).
+	 */
+	public int getSlotCount() {
+		return slotCount;
+	}
+
+	public int countLive() {
+		return liveCount;
+	}
+}
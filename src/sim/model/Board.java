@@ -3,31 +3,136 @@ package sim.model;
 import java.awt.Dimension;
 import java.awt.Point;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import sim.model.algo.DistanceField;
+import sim.model.algo.MallFeature;
+import sim.model.algo.MovementAlgorithm;
 import sim.model.algo.Ped4;
+import sim.model.algo.Ped4.LaneDirection;
+import sim.model.helpers.AtomicBitSet;
 import sim.model.helpers.Direction;
-import sim.model.helpers.MyPoint;
-import sim.model.helpers.Vec;
 
+/**
+ * Plansza przechowywana jako zbiór płaskich warstw (tablic indeksowanych
+ * wierszami, <code>y * width + x</code>) zamiast obiektów {@link Cell}.
+ * <p>
+ * {@link #getCell(Point)} zwraca widok na pole; w często wykonywanych
+ * fragmentach kodu należy korzystać bezpośrednio z akcesorów planszy.
+ * 
+ * @author Pawel Kleczek
+ * 
+ */
 public class Board {
 
-	private Cell[][] grid;
+	private static final LaneDirection[] LANE_DIRECTIONS = LaneDirection
+			.values();
+
+	private static final int NO_AGENT = -1;
+
+	private final int width;
+	private final int height;
+
+	/**
+	 * Identyfikatory agentów zajmujących pola (<code>NO_AGENT</code> dla pól
+	 * wolnych).
+	 */
+	private final int[] agentIds;
+
+	private final AgentStore agentStore = AgentStore.getInstance();
+
+	private final short[] forceValues;
+	private final short[] forceValues4Rendering;
+
+	/**
+	 * Liczniki odwiedzin - ile razy agenci wchodzili na dane pole.
+	 */
+	private final int[] visitsCounters;
+
+	/**
+	 * Numery porządkowe {@link LaneDirection}.
+	 */
+	private final byte[] laneDirections;
+
+	private final BitSet passable;
+
+	/**
+	 * Liczniki zmian pól - zwiększane przy każdej zmianie agenta zajmującego
+	 * pole lub jego kierunku ruchu.
+	 */
+	private final int[] versions;
+
+	private final MovementAlgorithm[] algorithms;
+	private final MallFeature[] features;
 
 	private int accessibleFieldCount;
+
+	/**
+	 * Pola zajęte przez agentów, indeksowane wierszami (
+	 * <code>y * width + x</code>). Zbiór może być modyfikowany równolegle
+	 * przez wątki przetwarzające rozłączne pasy planszy.
+	 */
+	private final AtomicBitSet occupied;
+
+	/**
+	 * Pola zajęte przez agentów, indeksowane kolumnami (
+	 * <code>x * height + y</code>) - pozwala wyszukiwać agentów w pionie tak
+	 * samo szybko jak w poziomie.
+	 */
+	private final AtomicBitSet occupiedByColumn;
+
+	/**
+	 * Pola niedostępne jako słowa bitowe, w układzie wierszowym i kolumnowym
+	 * (jak zbiory zajętych pól).
+	 */
+	private final long[] walls;
+	private final long[] wallsByColumn;
+
+	/**
+	 * Liczba pól zajętych przez agentów.
+	 */
+	private final AtomicInteger nAgents = new AtomicInteger();
 	
 	/**
 	 * Komórki, w których występują Spawnery.
 	 */
 	private List<Point> ioPoints = new ArrayList<>();
 
-	public Board(Dimension dimension) {
-		grid = new Cell[dimension.height][dimension.width];
+	/**
+	 * Pola odległości do wyjść, do których należą poszczególne pola I/O.
+	 */
+	private Map<Point, DistanceField> distanceFields = new HashMap<>();
 
-		for (int y = 0; y < dimension.height; y++)
-			for (int x = 0; x < dimension.width; x++)
-				grid[y][x] = new Cell(Cell.Type.PASSABLE, Ped4.getInstance());
+	public Board(Dimension dimension) {
+		width = dimension.width;
+		height = dimension.height;
+
+		int size = width * height;
+		agentIds = new int[size];
+		forceValues = new short[size];
+		forceValues4Rendering = new short[size];
+		visitsCounters = new int[size];
+		laneDirections = new byte[size];
+		versions = new int[size];
+		passable = new BitSet(size);
+		algorithms = new MovementAlgorithm[size];
+		features = new MallFeature[size];
+		occupied = new AtomicBitSet(size);
+		occupiedByColumn = new AtomicBitSet(size);
+		walls = new long[(size + 63) >>> 6];
+		wallsByColumn = new long[(size + 63) >>> 6];
+
+		Arrays.fill(agentIds, NO_AGENT);
+		Arrays.fill(laneDirections, (byte) LaneDirection.EMPTY.ordinal());
+		Arrays.fill(algorithms, Ped4.getInstance());
+		passable.set(0, size);
 	}
 
 	/**
@@ -35,16 +140,32 @@ public class Board {
 	 */
 	public void reset() {
 		Point p = new Point();
-		for (int y = 0; y < getHeight(); y++)
-			for (int x = 0; x < getWidth(); x++) {
-				p.setLocation(x, y);
-				getCell(p).clearVisitsCounter();
-				setAgent(null, p);
-			}
+		for (int i = nextOccupied(0); i >= 0; i = nextOccupied(i + 1)) {
+			p.setLocation(i % width, i / width);
+			Agent a = getAgentAt(i);
+			setAgent(null, p);
+			a.release();
+		}
+
+		clearVisitsCounters();
+	}
+
+	public void clearVisitsCounters() {
+		Arrays.fill(visitsCounters, 0);
 	}
 
+	/**
+	 * Tworzy planszę na podstawie wzorców pól.
+	 */
 	public Board(Cell[][] grid) {
-		this.grid = grid;
+		this(new Dimension(grid[0].length, grid.length));
+
+		Point p = new Point();
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				p.setLocation(x, y);
+				setCell(p, grid[y][x]);
+			}
 	}
 
 	/**
@@ -54,43 +175,214 @@ public class Board {
 	 * @return
 	 */
 	public boolean isOnBoard(Point p) {
-		return p.x >= 0 && p.y >= 0 && p.x < getWidth() && p.y < getHeight();
+		return isOnBoard(p.x, p.y);
+	}
+
+	public boolean isOnBoard(int x, int y) {
+		return x >= 0 && y >= 0 && x < width && y < height;
 	}
 
 	public int getWidth() {
-		return grid[0].length;
+		return width;
 	}
 
 	public int getHeight() {
-		return grid.length;
+		return height;
 	}
 
+	/**
+	 * Kopiuje typ, algorytm i cechę wzorca do pola planszy.
+	 * 
+	 * @param p
+	 * @param cell
+	 *            wzorzec pola
+	 */
 	public void setCell(Point p, Cell cell) {
-		grid[p.y][p.x] = cell;
+		int n = toIndex(p);
+
+		assert agentIds[n] == NO_AGENT;
+
+		passable.set(n, cell.isPassable());
+		setWall(walls, n, !cell.isPassable());
+		setWall(wallsByColumn, p.x * height + p.y, !cell.isPassable());
+		algorithms[n] = cell.getAlgorithm();
+		features[n] = cell.getFeature();
+		forceValues[n] = 0;
+		forceValues4Rendering[n] = 0;
+		versions[n]++;
 	}
 
+	/**
+	 * Zwraca widok na pole planszy.
+	 */
 	public Cell getCell(Point p) {
-		return grid[p.y][p.x];
+		return new Cell(this, toIndex(p));
 	}
 
-	public void computeForceField() {
-		// Clear force field.
-		Point cellCoord = new Point();
+	private static void setWall(long[] words, int n, boolean isWall) {
+		if (isWall)
+			words[n >>> 6] |= 1L << n;
+		else
+			words[n >>> 6] &= ~(1L << n);
+	}
+
+	public Agent getAgent(Point p) {
+		return getAgentAt(toIndex(p));
+	}
+
+	public Agent getAgent(int x, int y) {
+		return getAgentAt(y * width + x);
+	}
 
-		for (int y = 0; y < getHeight(); y++) {
-			for (int x = 0; x < getWidth(); x++) {
-				cellCoord.setLocation(x, y);
-				Cell cell = getCell(cellCoord);
+	public boolean isPassable(Point p) {
+		return passable.get(toIndex(p));
+	}
 
-				cell.setForceValue(0);
+	public boolean isPassable(int x, int y) {
+		return passable.get(y * width + x);
+	}
 
-				if (cell.getAgent() != null)
-					modifyForceField(cell.getAgent(), cell.getAgent()
-							.getPosition(), 1);
+	public MovementAlgorithm getAlgorithm(Point p) {
+		return algorithms[toIndex(p)];
+	}
 
-				cell.flipForceValue();
-			}
+	public MallFeature getFeature(Point p) {
+		return features[toIndex(p)];
+	}
+
+	public MallFeature getFeature(int x, int y) {
+		return features[y * width + x];
+	}
+
+	public int getForceValue(Point p) {
+		return forceValues[toIndex(p)];
+	}
+
+	/**
+	 * Zwraca licznik zmian pola - pozwala stwierdzić, czy otoczenie agenta
+	 * zmieniło się od ostatniego sprawdzenia.
+	 * 
+	 * @return <code>0</code> dla pól spoza planszy
+	 */
+	public int getVersion(int x, int y) {
+		return isOnBoard(x, y) ? versions[y * width + x] : 0;
+	}
+
+	public int getVisitsCounter(int x, int y) {
+		return visitsCounters[y * width + x];
+	}
+
+	public LaneDirection getLaneDirection(Point p) {
+		return LANE_DIRECTIONS[laneDirections[toIndex(p)]];
+	}
+
+	public LaneDirection getLaneDirection(int x, int y) {
+		return LANE_DIRECTIONS[laneDirections[y * width + x]];
+	}
+
+	public void setLaneDirection(Point p, LaneDirection laneDirection) {
+		laneDirections[toIndex(p)] = (byte) laneDirection.ordinal();
+	}
+
+	public void setLaneDirection(int x, int y, LaneDirection laneDirection) {
+		laneDirections[y * width + x] = (byte) laneDirection.ordinal();
+	}
+
+	/**
+	 * Ustawia kierunki pasów wszystkich pól.
+	 *
+	 * @param directions
+	 *            numery porządkowe {@link LaneDirection} (indeksowane numerem
+	 *            pola)
+	 */
+	public void setLaneDirections(byte[] directions) {
+		System.arraycopy(directions, 0, laneDirections, 0,
+				laneDirections.length);
+	}
+
+	// Akcesory warstw dla widoków Cell.
+
+	Agent getAgentAt(int n) {
+		int id = agentIds[n];
+		return (id == NO_AGENT) ? null : agentStore.getAgent(id);
+	}
+
+	/**
+	 * Zmienia jedynie zawartość pola (bez zbioru zajętych pól i pola
+	 * potencjału).
+	 */
+	void setAgentAt(int n, Agent a) {
+		agentIds[n] = (a == null) ? NO_AGENT : a.getId();
+	}
+
+	boolean isPassableAt(int n) {
+		return passable.get(n);
+	}
+
+	MovementAlgorithm getAlgorithmAt(int n) {
+		return algorithms[n];
+	}
+
+	void setAlgorithmAt(int n, MovementAlgorithm algorithm) {
+		algorithms[n] = algorithm;
+	}
+
+	MallFeature getFeatureAt(int n) {
+		return features[n];
+	}
+
+	void setFeatureAt(int n, MallFeature feature) {
+		features[n] = feature;
+	}
+
+	int getForceValueAt(int n) {
+		return forceValues[n];
+	}
+
+	int getForceValue4RenderingAt(int n) {
+		return forceValues4Rendering[n];
+	}
+
+	void setForceValueAt(int n, int forceValue) {
+		if (passable.get(n))
+			forceValues[n] = (short) forceValue;
+	}
+
+	void flipForceValueAt(int n) {
+		forceValues4Rendering[n] = forceValues[n];
+	}
+
+	int getVisitsCounterAt(int n) {
+		return visitsCounters[n];
+	}
+
+	void clearVisitsCounterAt(int n) {
+		visitsCounters[n] = 0;
+	}
+
+	void incrementVisitsCounterAt(int n) {
+		visitsCounters[n]++;
+	}
+
+	LaneDirection getLaneDirectionAt(int n) {
+		return LANE_DIRECTIONS[laneDirections[n]];
+	}
+
+	void setLaneDirectionAt(int n, LaneDirection laneDirection) {
+		laneDirections[n] = (byte) laneDirection.ordinal();
+	}
+
+	public void computeForceField() {
+		Arrays.fill(forceValues, (short) 0);
+
+		Point cellCoord = new Point();
+		for (int n = nextOccupied(0); n >= 0; n = nextOccupied(n + 1)) {
+			cellCoord.setLocation(n % width, n / width);
+			modifyForceField(getAgentAt(n), cellCoord, 1);
 		}
+
+		System.arraycopy(forceValues, 0, forceValues4Rendering, 0,
+				forceValues.length);
 	}
 
 	/**
@@ -101,75 +393,235 @@ public class Board {
 	 * @param sign
 	 *            <code>1</code> dla dodana siły, <code>-1</code> dla odjęcia
 	 */
-	public void modifyForceField(Agent a, MyPoint pos, int sign) {
+	public void modifyForceField(Agent a, Point pos, int sign) {
+		modifyForceField(a, pos.x, pos.y, sign);
+	}
+
+	private void modifyForceField(Agent a, int x, int y, int sign) {
 		assert (Math.abs(sign) == 1);
 
-		for (Map.Entry<Vec, Integer> entry : a.getForceField().entrySet()) {
-			Vec v = entry.getKey();
-
-			// Pole potencjału przechowywane jest w kierunku N - konieczny
-			// obrót.
-			switch (a.getDirection()) {
-			case N:
-				v = v.rotate(0);
-				break;
-			case E:
-				v = v.rotate(1);
-				break;
-			case S:
-				v = v.rotate(2);
-				break;
-			case W:
-				v = v.rotate(3);
-				break;
-			}
+		applyStamp(a.getForceField().getStamp(a.getDirection()), x, y, sign);
+	}
+
+	/**
+	 * Przesuwa pole potencjału agenta, który przeszedł z pola
+	 * <code>from</code> na pole <code>to</code> - uaktualniane są jedynie
+	 * pola, których wartość się zmienia.
+	 */
+	private void moveForceField(Agent a, int fromX, int fromY, int toX,
+			int toY) {
+		int mx = toX - fromX;
+		int my = toY - fromY;
+
+		if (Math.abs(mx) > 1 || Math.abs(my) > 1) {
+			modifyForceField(a, fromX, fromY, -1);
+			modifyForceField(a, toX, toY, 1);
+			return;
+		}
+
+		applyStamp(a.getForceField().getMove(a.getDirection(), mx, my), toX,
+				toY, 1);
+	}
+
+	private void applyStamp(ForceFieldStencil.Stamp stamp, int x, int y,
+			int sign) {
+		for (int i = 0; i < stamp.size(); i++) {
+			int px = x + stamp.dx[i];
+			int py = y + stamp.dy[i];
+
+			if (px >= 0 && py >= 0 && px < width && py < height) {
+				int n = py * width + px;
+				if (!passable.get(n))
+					continue;
 
-			MyPoint p = pos.add(v);
-			if (isOnBoard(p)) {
-				getCell(p).changeForce(entry.getValue() * sign);
+				forceValues[n] += stamp.value[i] * sign;
 
-				if (getCell(p).getForceValue() > 0) {
-					System.err.println(p.toString() + " : "
-							+ getCell(p).getForceValue());
+				if (forceValues[n] > 0) {
+					System.err.println(String.format("(%d, %d) : %d", px, py,
+							forceValues[n]));
 					throw new AssertionError();
 				}
 
-				getCell(p).flipForceValue();
+				forceValues4Rendering[n] = forceValues[n];
 			}
 		}
 	}
 
 	public int countAgents() {
-		int nAgents = 0;
-		for (int y = 0; y < getHeight(); y++) {
-			for (int x = 0; x < getWidth(); x++) {
-				Cell c = getCell(new Point(x, y));
-				if (c.getAgent() != null) {
-					nAgents++;
+		return nAgents.get();
+	}
 
-				}
+	/**
+	 * Zwraca liczbę agentów w wierszach <code>[fromY, toY)</code>.
+	 */
+	public int countAgents(int fromY, int toY) {
+		return occupied.cardinality(fromY * width, toY * width);
+	}
 
-				// Agent nie może znajdować się na
-				// niedostępnym polu.
-				assert (!(!c.isPassable() && c.getAgent() != null));
-			}
+	/**
+	 * Zwraca indeks pola (<code>y * width + x</code>).
+	 */
+	public int toIndex(Point p) {
+		return p.y * width + p.x;
+	}
+
+	public int toIndex(int x, int y) {
+		return y * width + x;
+	}
+
+	/**
+	 * Zwraca indeks pierwszego zajętego pola, którego indeks jest nie mniejszy
+	 * niż <code>fromIndex</code>.
+	 * <p>
+	 * Zbiór zajętych pól jest aktualizowany na bieżąco, więc kolejne wywołania
+	 * w trakcie przemieszczania agentów odpowiadają przeglądaniu planszy
+	 * wierszami.
+	 * 
+	 * @param fromIndex
+	 * @return <code>-1</code> gdy brak dalszych zajętych pól
+	 */
+	public int nextOccupied(int fromIndex) {
+		return occupied.nextSetBit(fromIndex);
+	}
+
+	/**
+	 * Sprawdza, czy w wierszu <code>y</code> na odcinku
+	 * <code>[fromX, toX)</code> znajduje się jakikolwiek agent.
+	 */
+	public boolean isAnyOccupied(int y, int fromX, int toX) {
+		int rowStart = y * width;
+		int next = occupied.nextSetBit(rowStart + fromX);
+		return next >= 0 && next < rowStart + toX;
+	}
+
+	/**
+	 * Zwraca liczbę kroków w kierunku <code>d</code>, po której z pola
+	 * <code>(x, y)</code> wychodzi się poza planszę.
+	 */
+	public int distanceToEdge(int x, int y, Direction d) {
+		switch (d) {
+		case N:
+			return y + 1;
+		case E:
+			return width - x;
+		case S:
+			return height - y;
+		default:
+			return x + 1;
+		}
+	}
+
+	/**
+	 * Zwraca odległość od pola <code>(x, y)</code> do najbliższego (w
+	 * kierunku <code>d</code>) pola zajętego przez agenta lub niedostępnego.
+	 * 
+	 * @param maxDistance
+	 *            maksymalna odległość (przeszukiwane są jedynie pola planszy)
+	 * @return <code>0</code>, gdy brak takiego pola
+	 */
+	public int distanceToObstacle(int x, int y, Direction d, int maxDistance) {
+		int max = Math.min(maxDistance, distanceToEdge(x, y, d) - 1);
+		int n;
+		int found;
+
+		switch (d) {
+		case N:
+			n = x * height + y;
+			found = occupiedByColumn.lastSetBit(n - max, n, wallsByColumn);
+			return (found < 0) ? 0 : n - found;
+		case E:
+			n = y * width + x;
+			found = occupied.firstSetBit(n + 1, n + max + 1, walls);
+			return (found < 0) ? 0 : found - n;
+		case S:
+			n = x * height + y;
+			found = occupiedByColumn.firstSetBit(n + 1, n + max + 1,
+					wallsByColumn);
+			return (found < 0) ? 0 : found - n;
+		default:
+			n = y * width + x;
+			found = occupied.lastSetBit(n - max, n, walls);
+			return (found < 0) ? 0 : n - found;
 		}
+	}
 
-		return nAgents;
+	/**
+	 * Zwraca (aktualizowany na bieżąco) widok pozycji zajętych przez agentów,
+	 * w kolejności wierszowej.
+	 */
+	public Iterable<Point> getOccupiedPositions() {
+		return new Iterable<Point>() {
+
+			@Override
+			public Iterator<Point> iterator() {
+				return new Iterator<Point>() {
+					private int next = occupied.nextSetBit(0);
+
+					@Override
+					public boolean hasNext() {
+						return next >= 0;
+					}
+
+					@Override
+					public Point next() {
+						if (next < 0)
+							throw new NoSuchElementException();
+
+						Point p = new Point(next % width, next / width);
+						next = occupied.nextSetBit(next + 1);
+						return p;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
 	}
 
 	public void setAgent(Agent a, Point p) {
-		Cell c = getCell(p);
+		setAgent(a, p.x, p.y);
+	}
+
+	public void setAgent(Agent a, int x, int y) {
+		Agent old = getAgent(x, y);
+
+		if (old != null)
+			modifyForceField(old, x, y, -1);
+
+		putAgent(a, x, y);
+
+		if (a != null)
+			modifyForceField(a, x, y, 1);
+	}
 
-		if (c.getAgent() != null)
-			modifyForceField(c.getAgent(), new MyPoint(p), -1);
+	/**
+	 * Umieszcza agenta na polu (bez zmiany pola potencjału).
+	 */
+	private void putAgent(Agent a, int x, int y) {
+		int n = y * width + x;
+
+		// Agent nie może znajdować się na niedostępnym polu.
+		assert (a == null || passable.get(n));
+
+		if (agentIds[n] == NO_AGENT && a != null) {
+			occupied.set(n);
+			occupiedByColumn.set(x * height + y);
+			nAgents.incrementAndGet();
+		} else if (agentIds[n] != NO_AGENT && a == null) {
+			occupied.clear(n);
+			occupiedByColumn.clear(x * height + y);
+			nAgents.decrementAndGet();
+		}
 
-		getCell(p).setAgent(a);
+		setAgentAt(n, a);
+		versions[n]++;
 
 		if (a != null) {
-			a.setPosition(p);
-			modifyForceField(a, new MyPoint(p), 1);
-			getCell(p).incrementVisitsCounter();
+			a.setPosition(x, y);
+			visitsCounters[n]++;
 		}
 	}
 
@@ -181,18 +633,27 @@ public class Board {
 	 * @param p2
 	 */
 	public void swapAgent(Point p1, Point p2) {
-		Agent a1 = getCell(p1).getAgent();
-		Agent a2 = getCell(p2).getAgent();
+		swapAgent(p1.x, p1.y, p2.x, p2.y);
+	}
+
+	public void swapAgent(int x1, int y1, int x2, int y2) {
+		Agent a1 = getAgent(x1, y1);
+		Agent a2 = getAgent(x2, y2);
+
+		putAgent(a1, x2, y2);
+		putAgent(a2, x1, y1);
 
-		setAgent(a1, p2);
-		setAgent(a2, p1);
+		if (a1 != null)
+			moveForceField(a1, x1, y1, x2, y2);
+		if (a2 != null)
+			moveForceField(a2, x2, y2, x1, y1);
 	}
 
 	public void setDirection(Agent a, Direction direction) {
-		// XXX: uaktualnienie powinno następować po zmodyfikowaniu kierunku
-		modifyForceField(a, a.getPosition(), -1);
+		applyStamp(a.getForceField().getRotation(a.getDirection(), direction),
+				a.getX(), a.getY(), 1);
 		a.setDirection(direction);
-		modifyForceField(a, a.getPosition(), 1);
+		versions[toIndex(a.getX(), a.getY())]++;
 	}
 
 	public int getAccessibleFieldCount() {
@@ -211,4 +672,20 @@ public class Board {
 		this.ioPoints = ioPoints;
 	}
 
+	/**
+	 * @param ioPoint
+	 * @return pole odległości do wyjścia, do którego należy dane pole I/O (lub
+	 *         <code>null</code>)
+	 */
+	public DistanceField getDistanceField(Point ioPoint) {
+		return distanceFields.get(ioPoint);
+	}
+
+	public void setDistanceFields(List<DistanceField> fields) {
+		distanceFields = new HashMap<>();
+		for (DistanceField field : fields)
+			for (Point p : field.getExit())
+				distanceFields.put(p, field);
+	}
+
 }
\ No newline at end of file
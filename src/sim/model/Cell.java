@@ -5,6 +5,15 @@ import sim.model.algo.MallFeature;
 import sim.model.algo.MovementAlgorithm;
 import sim.model.algo.Ped4.LaneDirection;
 
+/**
+ * Pole planszy.
+ * <p>
+ * Stan pól przechowywany jest w warstwach {@link Board} - obiekt
+ * <code>Cell</code> uzyskany przez {@link Board#getCell(java.awt.Point)} jest
+ * jedynie widokiem na jedno z nich. Komórka utworzona konstruktorem (np.
+ * {@link #WALL}) jest natomiast wzorcem: przechowuje jedynie typ, algorytm i
+ * cechę, które {@link Board#setCell(java.awt.Point, Cell)} kopiuje do planszy.
+ */
 public class Cell {
 	public static final Cell WALL = new Cell(Type.BLOCKED, Empty.getInstance());
 
@@ -12,20 +21,16 @@ public class Cell {
 		PASSABLE, BLOCKED
 	}
 
-	private final Type type;
-	private Agent agent = null;
-	private MovementAlgorithm algorithm = null;
-	private MallFeature feature = null;
-
-	private LaneDirection laneDirection = LaneDirection.EMPTY;
-
 	/**
-	 * Licznik odwiedzin - ile razy agenci wchodzili na dane pole.
+	 * Plansza, na której pole wskazuje widok (<code>null</code> dla wzorca).
 	 */
-	private int visitsCounter;
+	private final Board board;
+	private final int index;
 
-	private int forceValue;
-	private int forceValue4Rendering;
+	// Stan wzorca.
+	private final Type type;
+	private MovementAlgorithm algorithm = null;
+	private MallFeature feature = null;
 
 	public Cell(Type type, MovementAlgorithm algo, MallFeature feature) {
 		this(type, algo);
@@ -34,14 +39,20 @@ public class Cell {
 
 	public Cell(Type type, MovementAlgorithm algo) {
 		super();
+		this.board = null;
+		this.index = -1;
 		this.type = type;
 		this.algorithm = algo;
-		forceValue = 0;
-		clearVisitsCounter();
+	}
+
+	Cell(Board board, int index) {
+		this.board = board;
+		this.index = index;
+		this.type = null;
 	}
 
 	public Agent getAgent() {
-		return agent;
+		return (board != null) ? board.getAgentAt(index) : null;
 	}
 
 	/**
@@ -49,75 +60,83 @@ public class Cell {
 	 * @param agent
 	 */
 	public void setAgent(Agent agent) {
-		this.agent = agent;
+		if (board == null)
+			throw new UnsupportedOperationException("Cell is not on a board");
+		board.setAgentAt(index, agent);
 	}
 
 	public MallFeature getFeature() {
-		return feature;
+		return (board != null) ? board.getFeatureAt(index) : feature;
 	}
 
 	public void setFeature(MallFeature feature) {
-		this.feature = feature;
+		if (board != null)
+			board.setFeatureAt(index, feature);
+		else
+			this.feature = feature;
 	}
 
 	public Type getType() {
-		return type;
+		if (board == null)
+			return type;
+		return board.isPassableAt(index) ? Type.PASSABLE : Type.BLOCKED;
 	}
 
 	public MovementAlgorithm getAlgorithm() {
-		return algorithm;
+		return (board != null) ? board.getAlgorithmAt(index) : algorithm;
 	}
 
 	public boolean isPassable() {
-		return (type != Type.BLOCKED);
+		return (getType() != Type.BLOCKED);
 	}
 
 	public int getForceValue() {
-		return forceValue;
+		return (board != null) ? board.getForceValueAt(index) : 0;
 	}
 
 	public int getForceValue4Rendering() {
-		return forceValue4Rendering;
+		return (board != null) ? board.getForceValue4RenderingAt(index) : 0;
 	}
 
 	public void setForceValue(int forceValue) {
-		if (type == Type.BLOCKED)
-			return;
-		this.forceValue = forceValue;
+		if (board != null)
+			board.setForceValueAt(index, forceValue);
 	}
 
 	public void flipForceValue() {
-		forceValue4Rendering = forceValue;
-	}
-
-	void changeForce(int forceValue) {
-		if (type == Type.BLOCKED)
-			return;
-		this.forceValue += forceValue;
+		if (board != null)
+			board.flipForceValueAt(index);
 	}
 
 	public void setAlgorithm(MovementAlgorithm algorithm) {
-		this.algorithm = algorithm;
+		if (board != null)
+			board.setAlgorithmAt(index, algorithm);
+		else
+			this.algorithm = algorithm;
 	}
 
 	public int getVisitsCounter() {
-		return visitsCounter;
+		return (board != null) ? board.getVisitsCounterAt(index) : 0;
 	}
 
 	public void clearVisitsCounter() {
-		visitsCounter = 0;
+		if (board != null)
+			board.clearVisitsCounterAt(index);
 	}
 
 	public void incrementVisitsCounter() {
-		visitsCounter++;
+		if (board != null)
+			board.incrementVisitsCounterAt(index);
 	}
 
 	public LaneDirection getLaneDirection() {
-		return laneDirection;
+		return (board != null) ? board.getLaneDirectionAt(index)
+				: LaneDirection.EMPTY;
 	}
 
 	public void setLaneDirection(LaneDirection laneDirection) {
-		this.laneDirection = laneDirection;
+		if (board != null)
+			board.setLaneDirectionAt(index, laneDirection);
 	}
 
 }
@@ -0,0 +1,203 @@
+package sim.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import sim.model.helpers.Direction;
+import sim.model.helpers.Vec;
+
+/**
+ * Immutable potential field of an agent (the "stamp" added to the board
+ * around its position), precomputed for all directions of movement.
+ * <p>
+ * Besides the stamps themselves the stencil holds their differences, so that
+ * a one-field move or a rotation of an agent updates only the fields whose
+ * values actually change.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public final class ForceFieldStencil {
+
+	/**
+	 * Flat list of (offset, value) pairs.
+	 */
+	public static final class Stamp {
+		final int[] dx;
+		final int[] dy;
+		final int[] value;
+
+		private Stamp(Map<Vec, Integer> entries) {
+			dx = new int[entries.size()];
+			dy = new int[entries.size()];
+			value = new int[entries.size()];
+
+			int i = 0;
+			for (Map.Entry<Vec, Integer> entry : entries.entrySet()) {
+				dx[i] = entry.getKey().x;
+				dy[i] = entry.getKey().y;
+				value[i] = entry.getValue();
+				i++;
+			}
+		}
+
+		public int size() {
+			return value.length;
+		}
+	}
+
+	/**
+	 * Pole potencjału wspólne dla wszystkich agentów.
+	 */
+	public static final ForceFieldStencil DEFAULT = new ForceFieldStencil(
+			createDefaultField());
+
+	private final Stamp[] stamps = new Stamp[Direction.values().length];
+
+	/**
+	 * Differences between the stamp after and before a move by (mx, my),
+	 * relative to the new position: [direction][(my + 1) * 3 + (mx + 1)].
+	 */
+	private final Stamp[][] moves = new Stamp[Direction.values().length][9];
+
+	/**
+	 * Differences between stamps of two directions: [from][to].
+	 */
+	private final Stamp[][] rotations = new Stamp[Direction.values().length][Direction
+			.values().length];
+
+	/**
+	 * @param field
+	 *            mapowanie [punkt]->[wartość pola potencjału] dla kierunku N
+	 */
+	public ForceFieldStencil(Map<Vec, Integer> field) {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		Map<Vec, Integer>[] rotated = new Map[Direction.values().length];
+
+		for (Direction d : Direction.values()) {
+			// Pole potencjału opisane jest w kierunku N - konieczny obrót.
+			rotated[d.ordinal()] = new HashMap<>();
+			for (Map.Entry<Vec, Integer> entry : field.entrySet()) {
+				rotated[d.ordinal()].put(entry.getKey().rotate(d.ordinal()),
+						entry.getValue());
+			}
+
+			stamps[d.ordinal()] = new Stamp(rotated[d.ordinal()]);
+		}
+
+		for (Direction d : Direction.values()) {
+			Map<Vec, Integer> stamp = rotated[d.ordinal()];
+
+			for (int my = -1; my <= 1; my++) {
+				for (int mx = -1; mx <= 1; mx++) {
+					// new(o) - old(o + m)
+					Map<Vec, Integer> delta = new HashMap<>(stamp);
+					for (Map.Entry<Vec, Integer> entry : stamp.entrySet()) {
+						Vec o = new Vec(entry.getKey().x - mx,
+								entry.getKey().y - my);
+						add(delta, o, -entry.getValue());
+					}
+
+					moves[d.ordinal()][(my + 1) * 3 + (mx + 1)] = new Stamp(
+							delta);
+				}
+			}
+
+			for (Direction to : Direction.values()) {
+				Map<Vec, Integer> delta = new HashMap<>(rotated[to.ordinal()]);
+				for (Map.Entry<Vec, Integer> entry : stamp.entrySet()) {
+					add(delta, entry.getKey(), -entry.getValue());
+				}
+
+				rotations[d.ordinal()][to.ordinal()] = new Stamp(delta);
+			}
+		}
+	}
+
+	private static void add(Map<Vec, Integer> delta, Vec o, int value) {
+		Integer v = delta.get(o);
+		int sum = (v == null ? 0 : v) + value;
+
+		if (sum == 0)
+			delta.remove(o);
+		else
+			delta.put(o, sum);
+	}
+
+	private static Map<Vec, Integer> createDefaultField() {
+		Map<Vec, Integer> tForceField = new HashMap<Vec, Integer>();
+
+		int level = Integer.MAX_VALUE;
+
+		// za agentem
+		level = 1;
+		tForceField.put(new Vec(-1, level), -2);
+		tForceField.put(new Vec(0, level), -3);
+		tForceField.put(new Vec(1, level), -2);
+
+		// obok agenta
+		level = 0;
+		tForceField.put(new Vec(-2, level), -2);
+		tForceField.put(new Vec(-1, level), -4);
+		tForceField.put(new Vec(1, level), -4);
+		tForceField.put(new Vec(2, level), -2);
+
+		// +1 przed agentem
+		level = -1;
+		tForceField.put(new Vec(-2, level), -2);
+		tForceField.put(new Vec(-1, level), -4);
+		tForceField.put(new Vec(0, level), -5);
+		tForceField.put(new Vec(1, level), -4);
+		tForceField.put(new Vec(2, level), -2);
+
+		// +2 przed agentem
+		level = -2;
+		tForceField.put(new Vec(-2, level), -1);
+		tForceField.put(new Vec(-1, level), -3);
+		tForceField.put(new Vec(0, level), -4);
+		tForceField.put(new Vec(1, level), -3);
+		tForceField.put(new Vec(2, level), -1);
+
+		// +3 przed agentem
+		level = -3;
+		tForceField.put(new Vec(-1, level), -1);
+		tForceField.put(new Vec(0, level), -2);
+		tForceField.put(new Vec(1, level), -1);
+
+		return tForceField;
+	}
+
+	/**
+	 * @return największa odległość (w wierszach lub kolumnach) pola
+	 *         szablonu od pozycji agenta
+	 */
+	public int getReach() {
+		int reach = 0;
+		for (Stamp stamp : stamps) {
+			for (int i = 0; i < stamp.size(); i++)
+				reach = Math.max(reach,
+						Math.max(Math.abs(stamp.dx[i]), Math.abs(stamp.dy[i])));
+		}
+		return reach;
+	}
+
+	public Stamp getStamp(Direction direction) {
+		return stamps[direction.ordinal()];
+	}
+
+	/**
+	 * @param direction
+	 * @param mx
+	 *            <code>-1</code>, <code>0</code> or <code>1</code>
+	 * @param my
+	 *            <code>-1</code>, <code>0</code> or <code>1</code>
+	 * @return difference to be applied around the new position
+	 */
+	public Stamp getMove(Direction direction, int mx, int my) {
+		return moves[direction.ordinal()][(my + 1) * 3 + (mx + 1)];
+	}
+
+	public Stamp getRotation(Direction from, Direction to) {
+		return rotations[from.ordinal()][to.ordinal()];
+	}
+}
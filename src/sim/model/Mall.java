@@ -5,6 +5,11 @@ import java.awt.Dimension;
 public class Mall {
 	private Board board;
 
+	/**
+	 * Nazwa mapy, z której wczytano centrum handlowe.
+	 */
+	private String name = null;
+
 	// Default ctor
 	public Mall() {
 		board = new Board(new Dimension(15, 10));
@@ -18,6 +23,14 @@ public class Mall {
 		return board;
 	}
 
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
 	public void reset() {
 		board.reset();
 	}
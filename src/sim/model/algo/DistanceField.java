@@ -0,0 +1,255 @@
+package sim.model.algo;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import sim.model.Board;
+
+/**
+ * Distance (route cost) from every field of the board to a single exit, i.e.
+ * a connected group of I/O fields.
+ * <p>
+ * Agents heading to the exit follow the gradient of the field instead of
+ * searching for a path. The cost of entering a field is modified by its
+ * {@link MallFeature} the same way A* modifies its estimates.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class DistanceField {
+
+	public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+	private static final int[] OFFSET_X = { -1, 0, 1, -1, 1, -1, 0, 1 };
+	private static final int[] OFFSET_Y = { -1, -1, -1, 0, 0, 1, 1, 1 };
+
+	private final int width;
+	private final int height;
+
+	/**
+	 * Cost of reaching the exit, indexed by <code>y * width + x</code>.
+	 */
+	private final int[] distance;
+
+	/**
+	 * Fields forming the exit.
+	 */
+	private final List<Point> exit;
+
+	private DistanceField(Board board, List<Point> exit) {
+		this.width = board.getWidth();
+		this.height = board.getHeight();
+		this.exit = exit;
+		this.distance = new int[width * height];
+
+		compute(board);
+	}
+
+	/**
+	 * Computes one field for every exit of the board (groups of adjacent I/O
+	 * fields).
+	 *
+	 * @param board
+	 * @return
+	 */
+	public static List<DistanceField> computeForExits(Board board) {
+		List<DistanceField> fields = new ArrayList<>();
+
+		for (List<Point> exit : groupExits(board)) {
+			fields.add(new DistanceField(board, exit));
+		}
+
+		return fields;
+	}
+
+	private static List<List<Point>> groupExits(Board board) {
+		int width = board.getWidth();
+		boolean[] isIo = new boolean[width * board.getHeight()];
+		for (Point p : board.getIoPoints())
+			isIo[p.y * width + p.x] = true;
+
+		List<List<Point>> exits = new ArrayList<>();
+		boolean[] grouped = new boolean[isIo.length];
+		Point q = new Point();
+
+		for (Point p : board.getIoPoints()) {
+			if (grouped[p.y * width + p.x])
+				continue;
+
+			List<Point> exit = new ArrayList<>();
+			grouped[p.y * width + p.x] = true;
+			exit.add(p);
+
+			// Flood fill over adjacent I/O fields.
+			for (int i = 0; i < exit.size(); i++) {
+				Point e = exit.get(i);
+				for (int k = 0; k < OFFSET_X.length; k++) {
+					q.setLocation(e.x + OFFSET_X[k], e.y + OFFSET_Y[k]);
+					int n = q.y * width + q.x;
+					if (board.isOnBoard(q) && isIo[n] && !grouped[n]) {
+						grouped[n] = true;
+						exit.add(new Point(q));
+					}
+				}
+			}
+
+			exits.add(exit);
+		}
+
+		return exits;
+	}
+
+	/**
+	 * Multi-source Dijkstra from all the fields of the exit.
+	 */
+	private void compute(Board board) {
+		Arrays.fill(distance, UNREACHABLE);
+
+		// Heap entries: (distance << 32) | node; outdated entries are skipped.
+		long[] heap = new long[16];
+		int heapSize = 0;
+
+		for (Point p : exit) {
+			int n = p.y * width + p.x;
+			distance[n] = 0;
+			heap = grow(heap, heapSize + 1);
+			heapSize = push(heap, heapSize, n);
+		}
+
+		Point q = new Point();
+		while (heapSize > 0) {
+			long entry = heap[0];
+			heapSize = pop(heap, heapSize);
+
+			int n = (int) entry;
+			int d = (int) (entry >>> 32);
+			if (d > distance[n])
+				continue;
+
+			int x = n % width;
+			int y = n / width;
+
+			// The agent walks from the neighbour into (x, y).
+			q.setLocation(x, y);
+			int cost = enteringCost(board, q);
+
+			for (int k = 0; k < OFFSET_X.length; k++) {
+				q.setLocation(x + OFFSET_X[k], y + OFFSET_Y[k]);
+				if (!board.isOnBoard(q) || !board.isPassable(q))
+					continue;
+
+				int m = q.y * width + q.x;
+				if (d + cost < distance[m]) {
+					distance[m] = d + cost;
+					heap = grow(heap, heapSize + 1);
+					heapSize = push(heap, heapSize, ((long) distance[m] << 32)
+							| m);
+				}
+			}
+		}
+	}
+
+	private static int enteringCost(Board board, Point p) {
+		MallFeature mf = board.getFeature(p);
+		int cost = (mf != null) ? mf
+				.modifyHeuristicEstimate(Tactical.SCORE_FACTOR)
+				: Tactical.SCORE_FACTOR;
+
+		// Koszt musi być dodatni, aby gradient prowadził do wyjścia.
+		return Math.max(1, cost);
+	}
+
+	private static long[] grow(long[] heap, int size) {
+		return (size <= heap.length) ? heap : Arrays.copyOf(heap,
+				2 * heap.length);
+	}
+
+	private static int push(long[] heap, int size, long value) {
+		int i = size;
+		while (i > 0) {
+			int p = (i - 1) / 2;
+			if (heap[p] <= value)
+				break;
+			heap[i] = heap[p];
+			i = p;
+		}
+		heap[i] = value;
+		return size + 1;
+	}
+
+	private static int pop(long[] heap, int size) {
+		size--;
+		long value = heap[size];
+		int i = 0;
+		while (true) {
+			int c = 2 * i + 1;
+			if (c >= size)
+				break;
+			if (c + 1 < size && heap[c + 1] < heap[c])
+				c++;
+			if (value <= heap[c])
+				break;
+			heap[i] = heap[c];
+			i = c;
+		}
+		if (size > 0)
+			heap[i] = value;
+		return size;
+	}
+
+	public List<Point> getExit() {
+		return exit;
+	}
+
+	/**
+	 * @param p
+	 * @return cost of reaching the exit from <code>p</code> or
+	 *         {@link #UNREACHABLE}
+	 */
+	public int getDistance(Point p) {
+		return distance[p.y * width + p.x];
+	}
+
+	/**
+	 * Follows the gradient of the field from <code>start</code> to the exit.
+	 *
+	 * @param start
+	 * @return fields of the path (including <code>start</code>), empty if the
+	 *         exit is unreachable
+	 */
+	public List<Point> descend(Point start) {
+		List<Point> path = new ArrayList<>();
+
+		int n = start.y * width + start.x;
+		if (distance[n] == UNREACHABLE)
+			return path;
+
+		path.add(new Point(start));
+
+		while (distance[n] > 0) {
+			int x = n % width;
+			int y = n / width;
+
+			int next = n;
+			for (int k = 0; k < OFFSET_X.length; k++) {
+				int nx = x + OFFSET_X[k];
+				int ny = y + OFFSET_Y[k];
+				if (nx < 0 || ny < 0 || nx >= width || ny >= height)
+					continue;
+
+				int m = ny * width + nx;
+				if (distance[m] < distance[next])
+					next = m;
+			}
+
+			assert next != n;
+
+			n = next;
+			path.add(new Point(n % width, n / width));
+		}
+
+		return path;
+	}
+}
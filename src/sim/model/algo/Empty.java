@@ -1,7 +1,5 @@
 package sim.model.algo;
 
-import java.util.Map;
-
 import sim.model.Agent;
 import sim.model.Board;
 
@@ -21,7 +19,14 @@ public class Empty implements MovementAlgorithm {
 	}
 
 	@Override
-	public void nextIterationStep(Board b, Agent a, Map<Agent, Integer> mpLeft) {
+	public void nextIterationStep(Board b, Agent a, int[] mpLeft) {
+	}
+
+	@Override
+	public boolean propose(Board b, Agent a, int[] mpLeft,
+			MoveProposals proposals) {
+		proposals.none(a.getId());
+		return true;
 	}
 
 }
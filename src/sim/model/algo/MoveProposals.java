@@ -0,0 +1,135 @@
+package sim.model.algo;
+
+import java.util.Arrays;
+
+import sim.model.helpers.Direction;
+
+/**
+ * Ruchy zaproponowane przez agentów w synchronicznym trybie aktualizacji
+ * (indeksowane identyfikatorem agenta).
+ * <p>
+ * Propozycje wyznaczane są równolegle na podstawie niezmienianej planszy -
+ * każdy agent zapisuje jedynie własny wpis. Konflikty rozstrzygane są
+ * dopiero przy zatwierdzaniu ruchów.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class MoveProposals {
+
+	public static enum Kind {
+		/**
+		 * Agent pozostaje na miejscu.
+		 */
+		NONE,
+
+		/**
+		 * Przejście na wolne pole <code>target</code>.
+		 */
+		MOVE,
+
+		/**
+		 * Zamiana miejscami z agentem <code>partner</code>: agent przechodzi
+		 * na pole <code>target</code>, a partner na pole agenta. Jeśli
+		 * partner nie stoi na polu <code>target</code>, zwalnia swoje pole
+		 * <code>vacated</code>.
+		 */
+		EXCHANGE,
+
+		/**
+		 * Opuszczenie planszy.
+		 */
+		EXIT,
+
+		/**
+		 * Obrót w kierunku <code>direction</code>.
+		 */
+		TURN
+	}
+
+	private static final Kind[] KINDS = Kind.values();
+
+	public static final int NONE = -1;
+
+	private byte[] kind = new byte[0];
+	private int[] target = new int[0];
+	private int[] partner = new int[0];
+	private int[] vacated = new int[0];
+	private Direction[] direction = new Direction[0];
+
+	/**
+	 * Priorytet losowany przez agenta - rozstrzyga konflikty między zamianami.
+	 */
+	private int[] priority = new int[0];
+
+	/**
+	 * Przygotowuje tablice dla agentów o identyfikatorach mniejszych niż
+	 * <code>capacity</code>.
+	 */
+	public void ensureCapacity(int capacity) {
+		if (capacity <= kind.length)
+			return;
+
+		int n = Math.max(capacity, 2 * kind.length);
+		kind = Arrays.copyOf(kind, n);
+		target = Arrays.copyOf(target, n);
+		partner = Arrays.copyOf(partner, n);
+		vacated = Arrays.copyOf(vacated, n);
+		direction = Arrays.copyOf(direction, n);
+		priority = Arrays.copyOf(priority, n);
+	}
+
+	public void none(int id) {
+		kind[id] = (byte) Kind.NONE.ordinal();
+	}
+
+	public void move(int id, int targetIndex) {
+		kind[id] = (byte) Kind.MOVE.ordinal();
+		target[id] = targetIndex;
+	}
+
+	public void exchange(int id, int partnerId, int targetIndex,
+			int vacatedIndex, int priority) {
+		kind[id] = (byte) Kind.EXCHANGE.ordinal();
+		partner[id] = partnerId;
+		target[id] = targetIndex;
+		vacated[id] = vacatedIndex;
+		this.priority[id] = priority;
+	}
+
+	public void exit(int id) {
+		kind[id] = (byte) Kind.EXIT.ordinal();
+	}
+
+	public void turn(int id, Direction dir) {
+		kind[id] = (byte) Kind.TURN.ordinal();
+		direction[id] = dir;
+	}
+
+	public Kind getKind(int id) {
+		return KINDS[kind[id]];
+	}
+
+	public int getTarget(int id) {
+		return target[id];
+	}
+
+	public int getPartner(int id) {
+		return partner[id];
+	}
+
+	/**
+	 * @return indeks pola zwalnianego przez partnera lub {@link #NONE}
+	 */
+	public int getVacated(int id) {
+		return vacated[id];
+	}
+
+	public Direction getDirection(int id) {
+		return direction[id];
+	}
+
+	public int getPriority(int id) {
+		return priority[id];
+	}
+}
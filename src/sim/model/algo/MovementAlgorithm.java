@@ -1,7 +1,5 @@
 package sim.model.algo;
 
-import java.util.Map;
-
 import sim.model.Agent;
 import sim.model.Board;
 
@@ -35,8 +33,28 @@ public interface MovementAlgorithm {
 	 * @param p
 	 *            punkt na planszy, dla którego wykonujemy algorytm
 	 * @param mpLeft
-	 *            mapa określająca ilość jeszcze niewykorzystanych punktów ruchu
-	 *            agentów
+	 *            ilość jeszcze niewykorzystanych punktów ruchu agentów
+	 *            (indeksowana identyfikatorem agenta - {@link Agent#getId()})
+	 */
+	public void nextIterationStep(Board b, Agent a, int[] mpLeft);
+
+	/**
+	 * Wyznacza ruch agenta bez modyfikowania planszy (synchroniczny tryb
+	 * aktualizacji). Metoda może być wywoływana równolegle dla różnych
+	 * agentów.
+	 * 
+	 * @param b
+	 *            plansza (tylko do odczytu)
+	 * @param a
+	 *            agent, dla którego wykonujemy algorytm
+	 * @param mpLeft
+	 *            ilość jeszcze niewykorzystanych punktów ruchu agentów
+	 * @param proposals
+	 *            miejsce na propozycję ruchu agenta
+	 * @return <code>false</code>, gdy algorytm nie obsługuje trybu
+	 *         synchronicznego - agent zostanie wówczas przesunięty
+	 *         sekwencyjnie przez {@link #nextIterationStep}
 	 */
-	public void nextIterationStep(Board b, Agent a, Map<Agent, Integer> mpLeft);
+	public boolean propose(Board b, Agent a, int[] mpLeft,
+			MoveProposals proposals);
 }
@@ -1,18 +1,15 @@
 package sim.model.algo;
 
-import java.awt.Point;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-
 import sim.model.Agent;
 import sim.model.Board;
 import sim.model.helpers.Direction;
-import sim.model.helpers.MyPoint;
 import sim.model.helpers.Rand;
 
+/*
+ * Algorytm operuje na współrzędnych całkowitych i tablicach przesunięć
+ * kierunków - nie tworzy żadnych obiektów w trakcie ruchu agenta (jest
+ * wywoływany dla każdego agenta w każdym podkroku).
+ */
 public final class Ped4 implements MovementAlgorithm {
 
 	private static final double changeLaneLeftProbability = 0.5;
@@ -33,26 +30,40 @@ public final class Ped4 implements MovementAlgorithm {
 
 	private static MovementAlgorithm instance = new Ped4();
 
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private static final Orientation[] ORIENTATIONS = Orientation.values();
+
 	/**
-	 * Klasa służy do zwracania informacji z funkcji calculateGap().
-	 * 
-	 * @author Pawel
-	 * 
+	 * Zmiana współrzędnych płytki dla kierunków (indeksowane numerem
+	 * porządkowym kierunku).
 	 */
-	class GapReport {
+	private static final int[] DX = new int[DIRECTIONS.length];
+	private static final int[] DY = new int[DIRECTIONS.length];
 
-		public final Orientation direction;
-		public int gap;
-		public final Agent opponent;
-
-		public GapReport(Orientation direction, int gap, Agent opponent) {
-			super();
-			this.direction = direction;
-			this.gap = gap;
-			this.opponent = opponent;
+	static {
+		for (Direction d : DIRECTIONS) {
+			DX[d.ordinal()] = d.getVec().x;
+			DY[d.ordinal()] = d.getVec().y;
 		}
 	}
 
+	/*
+	 * Kierunki graniczne (kąt od północy zgodnie z ruchem wskazówek zegara)
+	 * używane przy dostosowywaniu kierunku ruchu: {kąt, a_sin, b_sin, a_cos,
+	 * b_cos}, gdzie sinus i cosinus kąta są proporcjonalne do a + b * sqrt(3).
+	 */
+	private static final int[] DEG_30 = { 30, 1, 0, 0, 1 };
+	private static final int[] DEG_45 = { 45, 1, 0, 1, 0 };
+	private static final int[] DEG_60 = { 60, 0, 1, 1, 0 };
+	private static final int[] DEG_120 = { 120, 0, 1, -1, 0 };
+	private static final int[] DEG_135 = { 135, 1, 0, -1, 0 };
+	private static final int[] DEG_150 = { 150, 1, 0, 0, -1 };
+	private static final int[] DEG_210 = { 210, -1, 0, 0, -1 };
+	private static final int[] DEG_240 = { 240, 0, -1, -1, 0 };
+	private static final int[] DEG_300 = { 300, 0, -1, 1, 0 };
+	private static final int[] DEG_330 = { 330, -1, 0, 0, 1 };
+
 	private Ped4() {
 	}
 
@@ -64,9 +75,9 @@ public final class Ped4 implements MovementAlgorithm {
 
 	/**
 	 * Identyfikatory "pasów ruchu" (
-	 * 
+	 *
 	 * @author Pawel Kleczek
-	 * 
+	 *
 	 */
 	enum Lane {
 		LEFT, SAME, RIGHT
@@ -75,267 +86,433 @@ public final class Ped4 implements MovementAlgorithm {
 	/**
 	 * Dostosowuje kierunek ruchu agenta z zadanego pola tak, aby kąt między
 	 * kierunkiem ruchu, a kierunkiem celu nie przekraczał pewnej wartości
-	 * progowej.
-	 * 
+	 * progowej (60 stopni).
+	 *
 	 * @param b
 	 * @param p
 	 */
 	private void adjustDirection(Agent a, Board b) {
-		final double MAX_ANGLE_DIFF = 60.0d;
-
 		assert (a != null);
 
 		// Trzeba pamiętać, że oś OY ma w programie przeciwny zwrot.
-		double targetAngle = Math.toDegrees(Math.atan2(
-				a.getTarget().x - a.getPosition().x,
-				a.getPosition().y - a.getTarget().y));
-		if (targetAngle < 0.0)
-			targetAngle += 360.0;
-		assert (targetAngle >= 0.0d && targetAngle <= 360.0d);
-
-		if (Math.abs(targetAngle - a.getDirection().getAzimuth()) > MAX_ANGLE_DIFF) {
-			if (targetAngle < 45.0d)
+		int u = a.getTarget().x - a.getX();
+		int v = a.getY() - a.getTarget().y;
+
+		if (exceedsMaxAngleDiff(a.getDirection(), u, v)) {
+			if (isBefore(u, v, DEG_45))
 				b.setDirection(a, Direction.N);
-			else if (targetAngle < 135.0d)
+			else if (isBefore(u, v, DEG_135))
 				b.setDirection(a, Direction.E);
-			else if (targetAngle < 210.0d)
+			else if (isBefore(u, v, DEG_210))
 				b.setDirection(a, Direction.S);
-			else if (targetAngle < 300.0d)
+			else if (isBefore(u, v, DEG_300))
 				b.setDirection(a, Direction.W);
 			else
 				b.setDirection(a, Direction.N);
 		}
 	}
 
-	private Orientation getRelativeOrientation(Direction dir1, Direction dir2) {
+	/**
+	 * Czy kąt między kierunkiem <code>dir</code>, a kierunkiem wektora
+	 * <code>(u, v)</code> (oś OY skierowana na północ) przekracza 60 stopni?
+	 * <p>
+	 * Kąty porównywane są jak w przedziale <code>[0, 360)</code> - np. dla
+	 * kierunku N kąt 350 stopni również przekracza próg.
+	 */
+	private static boolean exceedsMaxAngleDiff(Direction dir, int u, int v) {
+		switch (dir) {
+		case N:
+			return !isBefore(u, v, DEG_60);
+		case E:
+			return isBefore(u, v, DEG_30) || !isBefore(u, v, DEG_150);
+		case S:
+			return isBefore(u, v, DEG_120) || !isBefore(u, v, DEG_240);
+		default:
+			return isBefore(u, v, DEG_210) || !isBefore(u, v, DEG_330);
+		}
+	}
+
+	/**
+	 * Czy kąt (od północy, zgodnie z ruchem wskazówek zegara, z przedziału
+	 * <code>[0, 360)</code>) wektora <code>(u, v)</code> jest mniejszy niż kąt
+	 * kierunku granicznego <code>bound</code>? Wektor zerowy ma kąt 0.
+	 */
+	private static boolean isBefore(int u, int v, int[] bound) {
+		if (u == 0 && v == 0)
+			v = 1;
+
+		boolean firstHalf = u > 0 || (u == 0 && v >= 0);
+		if (bound[0] < 180 && !firstHalf)
+			return false;
+		if (bound[0] > 180 && firstHalf)
+			return true;
+
+		// Iloczyn wektorowy - dodatni, gdy kierunek graniczny leży dalej (w
+		// kierunku ruchu wskazówek zegara).
+		long a = (long) v * bound[1] - (long) u * bound[3];
+		long b = (long) v * bound[2] - (long) u * bound[4];
+		return signum(a, b) > 0;
+	}
+
+	/**
+	 * @return znak liczby <code>a + b * sqrt(3)</code>
+	 */
+	private static int signum(long a, long b) {
+		if (a >= 0 && b >= 0)
+			return (a | b) == 0 ? 0 : 1;
+		if (a <= 0 && b <= 0)
+			return -1;
+
+		// Liczby o różnych znakach: porównaj kwadraty.
+		long cmp = Long.signum(a * a - 3 * b * b);
+		return (a > 0) ? (int) cmp : (int) -cmp;
+	}
+
+	/**
+	 * Czy agent zwrócony w kierunku <code>dir</code> powinien obrócić się
+	 * zgodnie z ruchem wskazówek zegara, by zwrócić się w kierunku wektora
+	 * <code>(u, v)</code>? Kąty porównywane są jak w przedziale
+	 * <code>(-180, 180]</code>.
+	 */
+	private static boolean turnsClockwise(Direction dir, int u, int v) {
+		switch (dir) {
+		case N:
+			return u > 0 || (u == 0 && v < 0);
+		case E:
+			return u >= 0 && v < 0;
+		case S:
+			return false;
+		default:
+			return !(u < 0 && v <= 0);
+		}
+	}
+
+	private static int cw(int d) {
+		return (d + 1) % DIRECTIONS.length;
+	}
+
+	private static int ccw(int d) {
+		return (d + DIRECTIONS.length - 1) % DIRECTIONS.length;
+	}
+
+	/**
+	 * @return kierunek boczny dla kolejnych bitów maski kandydatów (bity
+	 *         parzyste - lewa strona, nieparzyste - prawa)
+	 */
+	private static int side(int d, int bit) {
+		return ((bit & 1) == 0) ? ccw(d) : cw(d);
+	}
+
+	/**
+	 * @return numer <code>n</code>-tego (licząc od 0) ustawionego bitu maski
+	 */
+	private static int nthSetBit(int mask, int n) {
+		while (n-- > 0)
+			mask &= mask - 1;
+		return Integer.numberOfTrailingZeros(mask);
+	}
+
+	private static Orientation getRelativeOrientation(int dir1, int dir2) {
 		if (dir1 == dir2)
 			return Orientation.SAME;
 
-		return (Math.abs(dir1.diff(dir2)) == 1) ? Orientation.ORTHO
+		return (Math.abs(dir1 - dir2) == 1) ? Orientation.ORTHO
 				: Orientation.OPP;
 	}
 
+	/*
+	 * Wynik calculateGap() upakowany w liczbie int: bity 0-7 - luka, bity
+	 * 8-15 - orientacja, bity 16-31 - odległość do napotkanego agenta (0 -
+	 * brak).
+	 */
+
+	private static int gapReport(int gap, Orientation orientation,
+			int opponentDistance) {
+		return gap | (orientation.ordinal() << 8) | (opponentDistance << 16);
+	}
+
+	private static int gapOf(int report) {
+		return report & 0xff;
+	}
+
+	private static Orientation orientationOf(int report) {
+		return ORIENTATIONS[(report >>> 8) & 0xff];
+	}
+
+	/**
+	 * @return agent, który ograniczył lukę agenta <code>w</code> stojącego na
+	 *         polu <code>(x, y)</code>
+	 */
+	private static Agent opponentOf(Board board, int x, int y, Agent w,
+			int report) {
+		int d = w.getDirection().ordinal();
+		int dist = report >>> 16;
+		return board.getAgent(x + DX[d] * dist, y + DY[d] * dist);
+	}
+
+	private static boolean isFree(Board board, int x, int y) {
+		return board.isOnBoard(x, y) && board.isPassable(x, y);
+	}
+
 	/**
 	 * Ustala (na drodze losowania), który z agentów znajdujących się na
 	 * sąsiedniej płytce ma prawo do zajęcia rozpatrywanej płytki.
 	 * <p>
 	 * W losowaniu biorą udział jedynie agenci odpowiednio zorientowani, którzy
 	 * w wyniku procedury zmiany pasa mogą się znaleźć na rozpatrywanej płytce.
-	 * 
+	 *
 	 * @param board
-	 * @param cellCoord
+	 * @param cx
+	 * @param cy
+	 * @param w
+	 *            agent zmieniający pas (z jego strumienia losowane jest
+	 *            przydzielenie)
 	 * @return <code>null</code> gdy płytka jest zajęta lub brak pretendentów
 	 */
-	private Agent getCellAssignment(Board board, Point cellCoord) {
-		List<Agent> candidates = new ArrayList<Agent>();
-		Point p = new Point();
-
+	private Agent getCellAssignment(Board board, int cx, int cy, Agent w) {
 		// Płytka już zajęta.
-		if (board.getCell(cellCoord).getAgent() != null)
+		if (board.getAgent(cx, cy) != null)
 			return null;
 
 		// Wybierz tylko pieszych, których kierunek ruchu dopuszcza
-		// zejśce w bok na dane pole.
-		p.setLocation(cellCoord.x - 1, cellCoord.y);
-		if (board.isOnBoard(p) && board.getCell(p).getAgent() != null
-				&& board.getCell(p).getAgent().getDirection().isVertical())
-			candidates.add(board.getCell(p).getAgent());
-
-		p.setLocation(cellCoord.x + 1, cellCoord.y);
-		if (board.isOnBoard(p) && board.getCell(p).getAgent() != null
-				&& board.getCell(p).getAgent().getDirection().isVertical())
-			candidates.add(board.getCell(p).getAgent());
+		// zejśce w bok na dane pole (bity: lewo, prawo, góra, dół).
+		int candidates = 0;
+		if (isCandidate(board, cx - 1, cy, true))
+			candidates |= 1;
+		if (isCandidate(board, cx + 1, cy, true))
+			candidates |= 2;
+		if (isCandidate(board, cx, cy - 1, false))
+			candidates |= 4;
+		if (isCandidate(board, cx, cy + 1, false))
+			candidates |= 8;
+
+		if (candidates == 0)
+			return null;
 
-		p.setLocation(cellCoord.x, cellCoord.y - 1);
-		if (board.isOnBoard(p) && board.getCell(p).getAgent() != null
-				&& board.getCell(p).getAgent().getDirection().isHorizontal())
-			candidates.add(board.getCell(p).getAgent());
+		switch (nthSetBit(candidates,
+				Rand.nextInt(w, Integer.bitCount(candidates)))) {
+		case 0:
+			return board.getAgent(cx - 1, cy);
+		case 1:
+			return board.getAgent(cx + 1, cy);
+		case 2:
+			return board.getAgent(cx, cy - 1);
+		default:
+			return board.getAgent(cx, cy + 1);
+		}
+	}
 
-		p.setLocation(cellCoord.x, cellCoord.y + 1);
-		if (board.isOnBoard(p) && board.getCell(p).getAgent() != null
-				&& board.getCell(p).getAgent().getDirection().isHorizontal())
-			candidates.add(board.getCell(p).getAgent());
+	private static boolean isCandidate(Board board, int x, int y,
+			boolean vertical) {
+		if (!board.isOnBoard(x, y))
+			return false;
 
-		return (candidates.size() == 0) ? null : candidates.get(Rand
-				.nextInt(candidates.size()));
+		Agent a = board.getAgent(x, y);
+		return a != null
+				&& (vertical ? a.getDirection().isVertical() : a
+						.getDirection().isHorizontal());
 	}
 
 	private void changeLane(Board board, Agent w) {
-		MyPoint p = w.getPosition();
-
 		assert (w != null);
 
-		MyPoint pleft = p.add(w.getDirection().nextCCW().getVec());
-		MyPoint pright = p.add(w.getDirection().nextCW().getVec());
-		GapReport gapLeft = (board.isOnBoard(pleft) && board.getCell(pleft)
-				.isPassable()) ? calculateGap(board, pleft, w) : null;
-		GapReport gapCenter = calculateGap(board, p, w);
-		GapReport gapRight = (board.isOnBoard(pright) && board.getCell(pright)
-				.isPassable()) ? calculateGap(board, pright, w) : null;
+		int x = w.getX();
+		int y = w.getY();
+		int d = w.getDirection().ordinal();
+
+		int lx = x + DX[ccw(d)];
+		int ly = y + DY[ccw(d)];
+		int rx = x + DX[cw(d)];
+		int ry = y + DY[cw(d)];
+		boolean hasLeft = isFree(board, lx, ly);
+		boolean hasRight = isFree(board, rx, ry);
 
-		if (gapLeft == null && gapRight == null)
+		if (!hasLeft && !hasRight)
 			return;
 
-		int gapMax = gapCenter.gap;
-		if (gapLeft != null) {
-			gapMax = Math.max(gapMax, gapLeft.gap);
+		int gapLeft = hasLeft ? calculateGap(board, lx, ly, w) : 0;
+		int gapCenter = calculateGap(board, x, y, w);
+		int gapRight = hasRight ? calculateGap(board, rx, ry, w) : 0;
+
+		int gapCenterValue = gapOf(gapCenter);
+		int gapMax = gapCenterValue;
+		if (hasLeft) {
+			gapMax = Math.max(gapMax, gapOf(gapLeft));
 		}
-		if (gapRight != null) {
-			gapMax = Math.max(gapMax, gapRight.gap);
+		if (hasRight) {
+			gapMax = Math.max(gapMax, gapOf(gapRight));
 		}
 
+		// Pasy, na które agent może przejść (bit 0 - lewy, bit 1 - prawy).
+		int lanes = 0;
+
 		// 2a-i
-		if (gapCenter.direction == Orientation.OPP) {
-			gapCenter.gap = 0;
+		if (orientationOf(gapCenter) == Orientation.OPP) {
+			gapCenterValue = 0;
 
 			// 2a-ii
-			List<Point> lanes = new ArrayList<Point>();
-			if (gapLeft != null && 0 == gapLeft.gap
-					&& gapLeft.direction == Orientation.SAME) {
-				lanes.add(pleft);
+			if (hasLeft && 0 == gapOf(gapLeft)
+					&& orientationOf(gapLeft) == Orientation.SAME) {
+				lanes |= 1;
 			}
-			if (gapRight != null && 0 == gapRight.gap
-					&& gapRight.direction == Orientation.SAME) {
-				lanes.add(pright);
+			if (hasRight && 0 == gapOf(gapRight)
+					&& orientationOf(gapRight) == Orientation.SAME) {
+				lanes |= 2;
 			}
 
-			if (!lanes.isEmpty()) {
-				Point dest = lanes.get(Rand.nextInt(lanes.size()));
-				board.swapAgent(p, dest);
+			if (lanes != 0) {
+				moveToLane(board, w, lanes);
 				return;
 			}
 
-			if (gapLeft != null && gapLeft.gap > 0
-					&& gapLeft.direction == Orientation.SAME) {
-				lanes.add(pleft);
+			if (hasLeft && gapOf(gapLeft) > 0
+					&& orientationOf(gapLeft) == Orientation.SAME) {
+				lanes |= 1;
 			}
-			if (gapRight != null && gapRight.gap > 0
-					&& gapRight.direction == Orientation.SAME) {
-				lanes.add(pright);
+			if (hasRight && gapOf(gapRight) > 0
+					&& orientationOf(gapRight) == Orientation.SAME) {
+				lanes |= 2;
 			}
 
-			if (!lanes.isEmpty()) {
-				Point dest = lanes.get(Rand.nextInt(lanes.size()));
-				board.swapAgent(p, dest);
+			if (lanes != 0) {
+				moveToLane(board, w, lanes);
 				return;
 			}
 		}
 
 		// 2b-ii, 2b-iii
-		if (gapMax == gapCenter.gap) {
+		if (gapMax == gapCenterValue) {
 			return;
 		}
 
 		// 2b-i
-		List<Point> lanes = new ArrayList<Point>();
-		if (gapLeft != null && gapMax == gapLeft.gap
-				&& getCellAssignment(board, pleft) == w) {
-			lanes.add(pleft);
+		if (hasLeft && gapMax == gapOf(gapLeft)
+				&& getCellAssignment(board, lx, ly, w) == w) {
+			lanes |= 1;
 		}
-		if (gapRight != null && gapMax == gapRight.gap
-				&& getCellAssignment(board, pright) == w) {
-			lanes.add(pright);
+		if (hasRight && gapMax == gapOf(gapRight)
+				&& getCellAssignment(board, rx, ry, w) == w) {
+			lanes |= 2;
 		}
 
 		// TODO (opcjonalnie): prawdopodobieństwo wyboru linii zależne od pola
 		// potencjału
 
-		if (!lanes.isEmpty()) {
-			Point dest = lanes.get(Rand.nextInt(lanes.size()));
-			board.swapAgent(p, dest);
+		if (lanes != 0) {
+			moveToLane(board, w, lanes);
 		}
 	}
 
-	private GapReport calculateGap(Board board, MyPoint p, Agent w) {
-		MyPoint currentCellCoords = new MyPoint(p);
+	/**
+	 * Przesuwa agenta na jeden z (losowo wybranych) pasów z maski
+	 * <code>lanes</code>.
+	 */
+	private void moveToLane(Board board, Agent w, int lanes) {
+		int d = side(w.getDirection().ordinal(),
+				nthSetBit(lanes, Rand.nextInt(w, Integer.bitCount(lanes))));
+		board.swapAgent(w.getX(), w.getY(), w.getX() + DX[d], w.getY() + DY[d]);
+	}
+
+	/**
+	 * @return luka przed agentem <code>w</code> (jak gdyby stał na polu
+	 *         <code>(px, py)</code>) upakowana w liczbie int
+	 */
+	private int calculateGap(Board board, int px, int py, Agent w) {
+		Direction dir = w.getDirection();
+		int d = dir.ordinal();
+		int vMax = w.getvMax();
 
 		Orientation orientation = Orientation.SAME;
 
 		// Luka na pasie przy założeniu, że nikt nie idzie nim z naprzeciwka.
-		int gapSame = 2 * w.getvMax();
+		int gapSame = 2 * vMax;
 
 		// Luka na pasie przy założeniu, że znajduje się na nim przeciwnik.
-		int gapOpp = w.getvMax();
-
-		Agent opponent = null;
+		int gapOpp = vMax;
 
-		for (int i = 1; i <= 2 * w.getvMax(); i++) {
-			currentCellCoords = currentCellCoords
-					.add(w.getDirection().getVec());
+		int opponentDistance = 0;
 
-			if (!board.isOnBoard(currentCellCoords)) {
-				if (i <= w.getvMax())
-					return new GapReport(Orientation.OUT, i, null);
-				else
-					break;
-			}
+		// Pierwsze pole zajęte lub niedostępne (w zasięgu 2 * vMax) albo
+		// krawędź planszy.
+		int i = board.distanceToObstacle(px, py, dir, 2 * vMax);
 
-			if (!board.getCell(currentCellCoords).isPassable()) {
+		if (i == 0) {
+			int edge = board.distanceToEdge(px, py, dir);
+			if (edge <= vMax)
+				return gapReport(edge, Orientation.OUT, 0);
+		} else if (!board.isPassable(px + DX[d] * i, py + DY[d] * i)) {
+			gapSame = i - 1;
+		} else {
+			Agent opponent = board.getAgent(px + DX[d] * i, py + DY[d] * i);
+			opponentDistance = i;
+			if (getRelativeOrientation(d, opponent.getDirection()
+					.ordinal()) == Orientation.OPP) {
+				gapOpp = (i - 1) / 2;
+				orientation = Orientation.OPP;
+			} else {
+				// ORTHO też traktowane jak SAME, bo bez ryzyka kolizji
 				gapSame = i - 1;
-				break;
-			}
-
-			opponent = board.getCell(currentCellCoords).getAgent();
-			if (opponent != null) {
-				if (getRelativeOrientation(w.getDirection(),
-						opponent.getDirection()) == Orientation.OPP) {
-					gapOpp = (i - 1) / 2;
-					orientation = Orientation.OPP;
-				} else {
-					// ORTHO też traktowane jak SAME, bo bez ryzyka kolizji
-					gapSame = i - 1;
-				}
-				break;
 			}
 		}
 
-		int gap = Collections.min(Arrays.asList(new Integer[] { w.getvMax(),
-				gapSame, gapOpp }));
-		return new GapReport(orientation, gap, opponent);
+		int gap = Math.min(vMax, Math.min(gapSame, gapOpp));
+		return gapReport(gap, orientation, opponentDistance);
 	}
 
-	private void stepForward(Board board, Point cp, Map<Agent, Integer> mpLeft) {
+	private void stepForward(Board board, Agent agent, int[] mpLeft) {
 		double p_exchg;
 
-		Agent agent = board.getCell(cp).getAgent();
-		MyPoint curr = new MyPoint(cp);
+		int id = agent.getId();
+
+		if (mpLeft[id] < 1)
+			return;
+
+		int x = agent.getX();
+		int y = agent.getY();
+		int d = agent.getDirection().ordinal();
+
+		// Pole przed agentem.
+		int fx = x + DX[d];
+		int fy = y + DY[d];
+		agent.setWantedCell(wantedCell(board, fx, fy));
 
-		if (mpLeft.get(agent) < 1)
+		// Otoczenie agenta nie zmieniło się od próby, w której żaden ruch nie
+		// był możliwy - wynik byłby taki sam.
+		long stamp = neighbourhoodStamp(board, agent);
+		if (agent.getBlockedStamp() == stamp)
 			return;
 
 		// (1)
-		GapReport report = calculateGap(board, curr, agent);
+		int report = calculateGap(board, x, y, agent);
 
-		if (report.direction == Orientation.OUT && report.gap == 1) {
-			mpLeft.put(agent, 0);
-			board.setAgent(null, cp);
+		if (orientationOf(report) == Orientation.OUT && gapOf(report) == 1) {
+			mpLeft[id] = 0;
+			board.setAgent(null, x, y);
+			agent.release();
 			return;
 		}
 
 		// (2) : "walka" o wspólne pole
-		if (report.gap > 0) {
-			MyPoint dest = curr.add(agent.getDirection().getVec());
-
-			MyPoint[] points = new MyPoint[] {
-					dest.add(agent.getDirection().nextCCW().getVec()),
-					dest.add(agent.getDirection().nextCW().getVec()) };
+		if (gapOf(report) > 0) {
+			for (int bit = 0; bit < 2; bit++) {
+				int px = fx + DX[side(d, bit)];
+				int py = fy + DY[side(d, bit)];
 
-			for (MyPoint p : points) {
-				if (board.isOnBoard(p) && board.getCell(p).isPassable()) {
-					Agent opponent = board.getCell(p).getAgent();
+				if (isFree(board, px, py)) {
+					Agent opponent = board.getAgent(px, py);
 					if (opponent != null) {
 						// Zobacz, czy faktycznie dochodzi do
 						// konfliktu...
-						if (p.add(opponent.getDirection().getVec())
-								.equals(dest)) {
+						int od = opponent.getDirection().ordinal();
+						if (px + DX[od] == fx && py + DY[od] == fy) {
 							// konflikt
-							if (Math.random() < changeLaneLeftProbability) {
-								board.swapAgent(curr, dest);
-								mpLeft.put(agent, mpLeft.get(agent) - 1);
+							if (Rand.nextDouble(agent) < changeLaneLeftProbability) {
+								board.swapAgent(x, y, fx, fy);
+								mpLeft[id]--;
 								agent.incrementFieldsMoved();
 							} else {
-								board.swapAgent(p, dest);
-								mpLeft.put(opponent, mpLeft.get(opponent) - 1);
+								board.swapAgent(px, py, fx, fy);
+								mpLeft[opponent.getId()]--;
 								opponent.incrementFieldsMoved();
 							}
 							return;
@@ -345,119 +522,57 @@ public final class Ped4 implements MovementAlgorithm {
 			}
 
 			// Brak konfliktu - zajmij pole.
-			board.swapAgent(curr, dest);
-			mpLeft.put(agent, mpLeft.get(agent) - 1);
+			board.swapAgent(x, y, fx, fy);
+			mpLeft[id]--;
 			agent.incrementFieldsMoved();
 		} else {
 
 			// (3) : bi-directional
-			if (report.direction == Orientation.OPP) {
-				p_exchg = (agent.getAgility() + report.opponent.getAgility()) / 2;
-				if (mpLeft.get(report.opponent) > 0 && Math.random() < p_exchg) {
-					MyPoint dest = curr.add(agent.getDirection().getVec());
-
+			if (orientationOf(report) == Orientation.OPP) {
+				Agent opponent = opponentOf(board, x, y, agent, report);
+				p_exchg = (agent.getAgility() + opponent.getAgility()) / 2;
+				if (mpLeft[opponent.getId()] > 0
+						&& Rand.nextDouble(agent) < p_exchg) {
 					// wyzeruj oryginalne pole oponenta
-					if (board.getCell(dest).getAgent() == null) {
-						MyPoint oppLoc = dest
-								.add(agent.getDirection().getVec());
-						board.setAgent(null, oppLoc);
-					}
+					if (board.getAgent(fx, fy) == null)
+						board.setAgent(null, fx + DX[d], fy + DY[d]);
 
-					// board.swapAgent(curr, dest);
-					board.setAgent(agent, dest);
-					board.setAgent(report.opponent, curr);
-					mpLeft.put(agent, mpLeft.get(agent) - 1);
-					mpLeft.put(report.opponent, mpLeft.get(report.opponent) - 1);
+					board.setAgent(agent, fx, fy);
+					board.setAgent(opponent, x, y);
+					mpLeft[id]--;
+					mpLeft[opponent.getId()]--;
 					agent.incrementFieldsMoved();
-					report.opponent.incrementFieldsMoved();
+					opponent.incrementFieldsMoved();
 					return;
 				}
 			}
 
 			// (4) : bi-diagonal
-			List<Point> l = new ArrayList<Point>();
-
-			MyPoint[] points = new MyPoint[] {
-					curr.add(agent.getDirection().getVec()).add(
-							agent.getDirection().nextCCW().getVec()),
-					curr.add(agent.getDirection().getVec()).add(
-							agent.getDirection().nextCW().getVec()) };
-
-			for (Point p : points) {
-				if (board.isOnBoard(p) && board.getCell(p).isPassable()) {
-					Agent opponent = board.getCell(p).getAgent();
-					if (opponent != null
-							&& getRelativeOrientation(agent.getDirection(),
-									opponent.getDirection()) == Orientation.OPP
-							&& mpLeft.get(opponent) > 0)
-						l.add(p);
-				}
-			}
-
-			if (!l.isEmpty()) {
-				Point dest = l.get(Rand.nextInt(l.size()));
-				Agent t = board.getCell(dest).getAgent();
-				p_exchg = (agent.getAgility() + t.getAgility()) / 2;
+			int candidates = diagonalCandidates(board, agent, mpLeft, false);
 
-				if (Math.random() < p_exchg) {
-					board.setAgent(agent, dest);
-					board.setAgent(t, curr);
-					mpLeft.put(agent, mpLeft.get(agent) - 1);
-					mpLeft.put(t, mpLeft.get(t) - 1);
-					agent.incrementFieldsMoved();
-					t.incrementFieldsMoved();
-					return;
-				}
-			}
-
-			// (5) : cross-diagonal
-			MyPoint frontTile = curr.add(agent.getDirection().getVec());
-			points = new MyPoint[] {
-					frontTile.add(agent.getDirection().nextCCW().getVec()),
-					frontTile.add(agent.getDirection().nextCW().getVec()) };
-
-			for (MyPoint p : points) {
-				if (board.isOnBoard(p) && board.getCell(p).isPassable()) {
-					Agent opponent = board.getCell(p).getAgent();
-					if (opponent != null
-							&& p.add(opponent.getDirection().getVec()).equals(
-									frontTile) && mpLeft.get(opponent) > 0)
-						l.add(p);
-				}
-			}
+			if (candidates != 0 && exchange(board, agent, candidates, mpLeft))
+				return;
 
-			if (!l.isEmpty()) {
-				Point dest = l.get(Rand.nextInt(l.size()));
-				Agent t = board.getCell(dest).getAgent();
-				p_exchg = (agent.getAgility() + t.getAgility()) / 2;
+			// (5) : cross-diagonal (kandydaci z kroku (4) pozostają w puli)
+			candidates |= diagonalCandidates(board, agent, mpLeft, true) << 2;
 
-				if (Math.random() < p_exchg) {
-					board.setAgent(agent, dest);
-					board.setAgent(t, curr);
-					mpLeft.put(agent, mpLeft.get(agent) - 1);
-					mpLeft.put(t, mpLeft.get(t) - 1);
-					agent.incrementFieldsMoved();
-					t.incrementFieldsMoved();
-					return;
-				}
-			}
+			if (candidates != 0 && exchange(board, agent, candidates, mpLeft))
+				return;
 
 			// (6) : cross-forward-adjacent exchange
-			frontTile = curr.add(agent.getDirection().getVec());
-
-			if (board.isOnBoard(frontTile)
-					&& board.getCell(frontTile).isPassable()) {
-				Agent opponent = board.getCell(frontTile).getAgent();
+			if (isFree(board, fx, fy)) {
+				Agent opponent = board.getAgent(fx, fy);
 				p_exchg = (opponent != null) ? (agent.getAgility() + opponent
 						.getAgility()) / 2 : 0;
 				if (opponent != null
-						&& getRelativeOrientation(agent.getDirection(),
-								opponent.getDirection()) == Orientation.ORTHO
-						&& mpLeft.get(opponent) > 0 && Math.random() < p_exchg) {
-					board.setAgent(agent, frontTile);
-					board.setAgent(opponent, curr);
-					mpLeft.put(agent, mpLeft.get(agent) - 1);
-					mpLeft.put(opponent, mpLeft.get(opponent) - 1);
+						&& getRelativeOrientation(d, opponent.getDirection()
+								.ordinal()) == Orientation.ORTHO
+						&& mpLeft[opponent.getId()] > 0
+						&& Rand.nextDouble(agent) < p_exchg) {
+					board.setAgent(agent, fx, fy);
+					board.setAgent(opponent, x, y);
+					mpLeft[id]--;
+					mpLeft[opponent.getId()]--;
 					agent.incrementFieldsMoved();
 					opponent.incrementFieldsMoved();
 					return;
@@ -466,44 +581,300 @@ public final class Ped4 implements MovementAlgorithm {
 
 			// Żadne z pól nie jest dostępne (same ściany): spróbuj obrócić się
 			// i pójść w bok.
-			MyPoint pleft = curr.add(agent.getDirection().nextCCW().getVec())
-					.add(agent.getDirection().getVec());
-			MyPoint pright = curr.add(agent.getDirection().nextCW().getVec())
-					.add(agent.getDirection().getVec());
-			MyPoint pcurr = curr.add(agent.getDirection().getVec());
-			boolean gapLeft = (board.isOnBoard(pleft) && board.getCell(pleft)
-					.isPassable());
-			boolean gapCenter = (board.isOnBoard(pcurr) && board.getCell(pcurr)
-					.isPassable());
-			boolean gapRight = (board.isOnBoard(pright) && board
-					.getCell(pright).isPassable());
-
-			if (!gapLeft && !gapCenter && !gapRight) {
+			if (isBlocked(board, agent)) {
 				// dostosuj kierunek
 
 				// Trzeba pamiętać, że oś OY ma w programie przeciwny zwrot.
-				double targetAngle = Math.toDegrees(Math.atan2(
-						agent.getTarget().x - agent.getPosition().x,
-						agent.getPosition().y - agent.getTarget().y));
-
-				MyPoint dirDest = agent.getPosition().add(
-						agent.getDirection().getVec());
-				double directionAngle = Math.toDegrees(Math.atan2(dirDest.x
-						- agent.getPosition().x, agent.getPosition().y
-						- dirDest.y));
-
-				if (targetAngle > directionAngle) {
-					board.setDirection(agent, agent.getDirection().nextCW());
+				int u = agent.getTarget().x - x;
+				int v = y - agent.getTarget().y;
+
+				if (turnsClockwise(DIRECTIONS[d], u, v)) {
+					board.setDirection(agent, DIRECTIONS[cw(d)]);
 				} else {
-					board.setDirection(agent, agent.getDirection().nextCCW());
+					board.setDirection(agent, DIRECTIONS[ccw(d)]);
 				}
+			} else if (isJammed(board, agent, report)) {
+				agent.setBlockedStamp(stamp);
 			}
 		}
 	}
 
+	/**
+	 * @return indeks pola <code>(x, y)</code>, na które agent próbuje wejść,
+	 *         lub <code>-1</code> (poza planszą)
+	 */
+	private static int wantedCell(Board board, int x, int y) {
+		return board.isOnBoard(x, y) ? board.toIndex(x, y) : -1;
+	}
+
+	/**
+	 * Wyznacza stan otoczenia agenta, od którego zależą kroki (2)-(6):
+	 * pozycję i kierunek agenta oraz liczniki zmian pola przed nim i pól po
+	 * przekątnej.
+	 */
+	private static long neighbourhoodStamp(Board board, Agent agent) {
+		int d = agent.getDirection().ordinal();
+		int fx = agent.getX() + DX[d];
+		int fy = agent.getY() + DY[d];
+
+		int versions = board.getVersion(fx, fy)
+				+ board.getVersion(fx + DX[ccw(d)], fy + DY[ccw(d)])
+				+ board.getVersion(fx + DX[cw(d)], fy + DY[cw(d)]);
+
+		return ((long) board.toIndex(agent.getX(), agent.getY()) << 34)
+				| ((long) d << 32) | (versions & 0xffffffffL);
+	}
+
+	/**
+	 * Czy agent (któremu nie udało się wykonać ruchu) nie ma żadnego
+	 * kandydata do zamiany, niezależnie od punktów ruchu pozostałych agentów?
+	 * Wówczas w krokach (2)-(6) nie jest wykonywane żadne losowanie, a wynik
+	 * zależy jedynie od otoczenia agenta.
+	 */
+	private boolean isJammed(Board board, Agent agent, int report) {
+		if (orientationOf(report) == Orientation.OPP)
+			return false;
+
+		if (diagonalCandidates(board, agent, null, false) != 0
+				|| diagonalCandidates(board, agent, null, true) != 0)
+			return false;
+
+		int d = agent.getDirection().ordinal();
+		int fx = agent.getX() + DX[d];
+		int fy = agent.getY() + DY[d];
+		Agent front = isFree(board, fx, fy) ? board.getAgent(fx, fy) : null;
+
+		return front == null
+				|| getRelativeOrientation(d, front.getDirection()
+						.ordinal()) != Orientation.ORTHO;
+	}
+
+	/**
+	 * Wyznacza pola po przekątnej przed agentem zajęte przez kandydatów do
+	 * zamiany.
+	 *
+	 * @param mpLeft
+	 *            niewykorzystane punkty ruchu (<code>null</code> - pomijane)
+	 * @param crossing
+	 *            <code>false</code> - krok (4) (kandydaci idący w przeciwnym
+	 *            kierunku), <code>true</code> - krok (5) (kandydaci wchodzący
+	 *            na pole przed agentem)
+	 * @return maska: bit 0 - pole z lewej strony, bit 1 - z prawej
+	 */
+	private int diagonalCandidates(Board board, Agent agent, int[] mpLeft,
+			boolean crossing) {
+		int d = agent.getDirection().ordinal();
+		int fx = agent.getX() + DX[d];
+		int fy = agent.getY() + DY[d];
+
+		int candidates = 0;
+		for (int bit = 0; bit < 2; bit++) {
+			int px = fx + DX[side(d, bit)];
+			int py = fy + DY[side(d, bit)];
+
+			if (!isFree(board, px, py))
+				continue;
+
+			Agent opponent = board.getAgent(px, py);
+			if (opponent == null || mpLeft != null
+					&& mpLeft[opponent.getId()] <= 0)
+				continue;
+
+			int od = opponent.getDirection().ordinal();
+			if (crossing ? (px + DX[od] == fx && py + DY[od] == fy)
+					: getRelativeOrientation(d, od) == Orientation.OPP)
+				candidates |= 1 << bit;
+		}
+		return candidates;
+	}
+
+	/**
+	 * Losuje jednego z kandydatów do zamiany (jak w krokach (4) i (5)) i z
+	 * prawdopodobieństwem zależnym od zwinności obu agentów zamienia ich
+	 * miejscami.
+	 *
+	 * @return <code>true</code>, gdy doszło do zamiany
+	 */
+	private boolean exchange(Board board, Agent agent, int candidates,
+			int[] mpLeft) {
+		int x = agent.getX();
+		int y = agent.getY();
+		int d = agent.getDirection().ordinal();
+
+		int s = side(d,
+				nthSetBit(candidates,
+						Rand.nextInt(agent, Integer.bitCount(candidates))));
+		int dx = x + DX[d] + DX[s];
+		int dy = y + DY[d] + DY[s];
+
+		Agent t = board.getAgent(dx, dy);
+		double p_exchg = (agent.getAgility() + t.getAgility()) / 2;
+
+		if (Rand.nextDouble(agent) < p_exchg) {
+			board.setAgent(agent, dx, dy);
+			board.setAgent(t, x, y);
+			mpLeft[agent.getId()]--;
+			mpLeft[t.getId()]--;
+			agent.incrementFieldsMoved();
+			t.incrementFieldsMoved();
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Czy pole przed agentem oraz oba pola po przekątnej są niedostępne?
+	 */
+	private boolean isBlocked(Board board, Agent agent) {
+		int d = agent.getDirection().ordinal();
+		int fx = agent.getX() + DX[d];
+		int fy = agent.getY() + DY[d];
+
+		return !isFree(board, fx + DX[ccw(d)], fy + DY[ccw(d)])
+				&& !isFree(board, fx, fy)
+				&& !isFree(board, fx + DX[cw(d)], fy + DY[cw(d)]);
+	}
+
+	/**
+	 * Odpowiednik {@link #stepForward(Board, Agent, int[])} dla trybu
+	 * synchronicznego: plansza nie jest modyfikowana, a konflikty o wspólne
+	 * pole (2) rozstrzygane są dopiero przy zatwierdzaniu ruchów.
+	 */
+	private void proposeStep(Board board, Agent agent, int[] mpLeft,
+			MoveProposals proposals) {
+		double p_exchg;
+		int id = agent.getId();
+
+		proposals.none(id);
+
+		if (mpLeft[id] < 1)
+			return;
+
+		int x = agent.getX();
+		int y = agent.getY();
+		int d = agent.getDirection().ordinal();
+		int fx = x + DX[d];
+		int fy = y + DY[d];
+		agent.setWantedCell(wantedCell(board, fx, fy));
+
+		long stamp = neighbourhoodStamp(board, agent);
+		if (agent.getBlockedStamp() == stamp)
+			return;
+
+		// (1)
+		int report = calculateGap(board, x, y, agent);
+
+		if (orientationOf(report) == Orientation.OUT && gapOf(report) == 1) {
+			proposals.exit(id);
+			return;
+		}
+
+		// (2)
+		if (gapOf(report) > 0) {
+			proposals.move(id, board.toIndex(fx, fy));
+			return;
+		}
+
+		// (3) : bi-directional
+		if (orientationOf(report) == Orientation.OPP) {
+			Agent opponent = opponentOf(board, x, y, agent, report);
+			p_exchg = (agent.getAgility() + opponent.getAgility()) / 2;
+			if (mpLeft[opponent.getId()] > 0
+					&& Rand.nextDouble(agent) < p_exchg) {
+				int vacated = MoveProposals.NONE;
+				if (board.getAgent(fx, fy) == null)
+					vacated = board.toIndex(fx + DX[d], fy + DY[d]);
+
+				proposals.exchange(id, opponent.getId(), board.toIndex(fx, fy),
+						vacated, Rand.nextInt(agent, Integer.MAX_VALUE));
+				return;
+			}
+		}
+
+		// (4) : bi-diagonal
+		int candidates = diagonalCandidates(board, agent, mpLeft, false);
+
+		if (proposeExchange(board, agent, candidates, proposals))
+			return;
+
+		// (5) : cross-diagonal
+		candidates |= diagonalCandidates(board, agent, mpLeft, true) << 2;
+
+		if (proposeExchange(board, agent, candidates, proposals))
+			return;
+
+		// (6) : cross-forward-adjacent exchange
+		if (isFree(board, fx, fy)) {
+			Agent opponent = board.getAgent(fx, fy);
+			p_exchg = (opponent != null) ? (agent.getAgility() + opponent
+					.getAgility()) / 2 : 0;
+			if (opponent != null
+					&& getRelativeOrientation(d, opponent.getDirection()
+							.ordinal()) == Orientation.ORTHO
+					&& mpLeft[opponent.getId()] > 0
+					&& Rand.nextDouble(agent) < p_exchg) {
+				proposals.exchange(id, opponent.getId(), board.toIndex(fx, fy),
+						MoveProposals.NONE,
+						Rand.nextInt(agent, Integer.MAX_VALUE));
+				return;
+			}
+		}
+
+		// Żadne z pól nie jest dostępne (same ściany): spróbuj obrócić się
+		// i pójść w bok.
+		if (isBlocked(board, agent)) {
+			// Trzeba pamiętać, że oś OY ma w programie przeciwny zwrot.
+			int u = agent.getTarget().x - x;
+			int v = y - agent.getTarget().y;
+
+			proposals.turn(id, DIRECTIONS[turnsClockwise(DIRECTIONS[d], u, v) ? cw(d)
+					: ccw(d)]);
+		} else if (isJammed(board, agent, report)) {
+			agent.setBlockedStamp(stamp);
+		}
+	}
+
+	/**
+	 * Losuje jednego z kandydatów do zamiany (jak w krokach (4) i (5)).
+	 *
+	 * @return <code>true</code>, gdy zaproponowano zamianę
+	 */
+	private boolean proposeExchange(Board board, Agent agent, int candidates,
+			MoveProposals proposals) {
+		if (candidates == 0)
+			return false;
+
+		int d = agent.getDirection().ordinal();
+		int s = side(d,
+				nthSetBit(candidates,
+						Rand.nextInt(agent, Integer.bitCount(candidates))));
+		int dx = agent.getX() + DX[d] + DX[s];
+		int dy = agent.getY() + DY[d] + DY[s];
+
+		Agent t = board.getAgent(dx, dy);
+		double p_exchg = (agent.getAgility() + t.getAgility()) / 2;
+
+		if (Rand.nextDouble(agent) < p_exchg) {
+			proposals.exchange(agent.getId(), t.getId(),
+					board.toIndex(dx, dy), MoveProposals.NONE,
+					Rand.nextInt(agent, Integer.MAX_VALUE));
+			return true;
+		}
+
+		return false;
+	}
+
+	@Override
+	public void nextIterationStep(Board b, Agent a, int[] mpLeft) {
+		stepForward(b, a, mpLeft);
+	}
+
 	@Override
-	public void nextIterationStep(Board b, Agent a, Map<Agent, Integer> mpLeft) {
-		stepForward(b, a.getPosition(), mpLeft);
+	public boolean propose(Board b, Agent a, int[] mpLeft,
+			MoveProposals proposals) {
+		proposeStep(b, a, mpLeft, proposals);
+		return true;
 	}
 
 	@Override
@@ -46,14 +46,15 @@ public class SocialForce implements MovementAlgorithm {
 	}
 
 	@Override
-	public void nextIterationStep(Board b, Agent a, Map<Agent, Integer> mpLeft) {
+	public void nextIterationStep(Board b, Agent a, int[] mpLeft) {
 		final double EXCHANGE_CHANCE = 0.5;
 
 		Point hpt = getHighestPotentialTile(b, a.getPosition());
+		a.setWantedCell((hpt != null) ? b.toIndex(hpt) : -1);
 
 		// Brak możliwości ruchu - agent "drepcze" w miejscu.
-		if (hpt == null || hpt != null && b.getCell(hpt).getAgent() != null
-				&& Math.random() < EXCHANGE_CHANCE) {
+		if (hpt == null || hpt != null && b.getAgent(hpt) != null
+				&& Rand.nextDouble(a) < EXCHANGE_CHANCE) {
 			b.setDirection(a, a.getDirection().nextCW());
 		} else {
 			MyPoint p = a.getPosition();
@@ -63,6 +64,14 @@ public class SocialForce implements MovementAlgorithm {
 		}
 	}
 
+	@Override
+	public boolean propose(Board b, Agent a, int[] mpLeft,
+			MoveProposals proposals) {
+		// Ruch wyznaczany jest na podstawie pola potencjału, które zmienia
+		// się wraz z każdym ruchem - tylko tryb sekwencyjny.
+		return false;
+	}
+
 	/**
 	 * Dostosowuje kierunek dalszego marszu do wykonanego ruchu.
 	 * 
@@ -101,7 +110,7 @@ public class SocialForce implements MovementAlgorithm {
 		if (points.isEmpty())
 			return null;
 
-		Agent a = b.getCell(agentPosition).getAgent();
+		Agent a = b.getAgent(agentPosition);
 
 		// Przy obliczaniu wartości potencjału uwzględniamy potencjał celu.
 		Map<Point, Double> potentialMap = new HashMap<Point, Double>();
@@ -109,9 +118,9 @@ public class SocialForce implements MovementAlgorithm {
 		for (Point p : points) {
 			// TODO: kalibracja
 			final double targetForce = 5 / target.distance(p);
-			final double agentPenalty = (b.getCell(p).getAgent() == null) ? 0.0
+			final double agentPenalty = (b.getAgent(p) == null) ? 0.0
 					: -10.0;
-			potentialMap.put(p, b.getCell(p).getForceValue() + targetForce
+			potentialMap.put(p, b.getForceValue(p) + targetForce
 					+ agentPenalty);
 		}
 
@@ -151,7 +160,7 @@ public class SocialForce implements MovementAlgorithm {
 		// Wybierz płytkę najbliżej celu.
 		List<Point> closestPoints = new ArrayList<Point>();
 		double distMin = Double.MAX_VALUE;
-		target = new MyPoint(b.getCell(agentPosition).getAgent().getTarget());
+		target = new MyPoint(b.getAgent(agentPosition).getTarget());
 		for (Point p : highestPoints) {
 			distMin = Math.min(distMin, target.distance(p));
 		}
@@ -161,7 +170,8 @@ public class SocialForce implements MovementAlgorithm {
 				closestPoints.add(p);
 		}
 
-		return closestPoints.get(Rand.nextInt(closestPoints.size()));
+		return closestPoints.get(Rand.nextInt(b.getAgent(agentPosition),
+				closestPoints.size()));
 	}
 
 	/**
@@ -176,7 +186,7 @@ public class SocialForce implements MovementAlgorithm {
 
 		List<Point> points;
 
-		Agent a = board.getCell(agentPosition).getAgent();
+		Agent a = board.getAgent(agentPosition);
 		Direction d = getTargetDirection(a.getTarget(), agentPosition);
 
 		// Punkty dopuszczalne ze względu na kierunek do celu.
@@ -212,7 +222,7 @@ public class SocialForce implements MovementAlgorithm {
 	}
 
 	private boolean isCellAccessible(Board b, Point p) {
-		return (b.isOnBoard(p) && b.getCell(p).isPassable());
+		return (b.isOnBoard(p) && b.isPassable(p));
 	}
 
 	/**
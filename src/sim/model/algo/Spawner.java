@@ -19,7 +19,7 @@ public class Spawner extends MallFeature {
     public void performAction(Agent a) {
         assert a != null;
         board.setAgent(null, a.getPosition());
-        a.setDead(true);
+        a.release();
     }
 
     public int getPixelValue() {
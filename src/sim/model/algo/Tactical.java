@@ -3,11 +3,10 @@ package sim.model.algo;
 import java.awt.Point;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.logging.Logger;
 
 import sim.control.GuiState;
@@ -39,7 +38,7 @@ public class Tactical {
 	private final static Logger LOGGER = Logger
 			.getLogger(Logger.GLOBAL_LOGGER_NAME);
 
-	interface NeighborLookupAlgorithm {
+	public interface NeighborLookupAlgorithm {
 		boolean isNeighbor(Point a, Point b);
 	}
 
@@ -67,42 +66,121 @@ public class Tactical {
 
 	public static void route(Board board, Agent agent,
 			NeighborLookupAlgorithm algorithm) {
-		int numTargets = MIN_TARGETS + Rand.nextInt(MAX_TARGETS - MIN_TARGETS);
-
 		LOGGER.info(String.format("Initializing targets for %s...", agent));
 
-		Point[] targets = pickTargets(board, agent, numTargets);
+		Point[] targets = pickTargets(board, agent);
 
 		LOGGER.info(String.format("Picked %d target positions.", targets.length));
 		LOGGER.info("Generating paths...");
 
-		computePaths(board, agent, algorithm, targets);
+		for (Point midpoint : computePaths(board, agent.getPosition(),
+				algorithm, targets)) {
+			agent.addTarget(midpoint);
+		}
 
 		LOGGER.info("Paths generated!");
 		LOGGER.info("Targets initialized!");
 	}
 
+	/**
+	 * Compute paths between all targets with A*.
+	 * 
+	 * @see #computePaths(Board, Point, NeighborLookupAlgorithm, Point[],
+	 *      boolean)
+	 */
+	public static List<Point> computePaths(Board board, Point start,
+			NeighborLookupAlgorithm algorithm, Point[] targets) {
+		return computePaths(board, start, algorithm, targets, false);
+	}
+
 	/**
 	 * Compute paths between all targets.
+	 * <p>
+	 * If <code>useDistanceFields</code> is set, paths to targets covered by a
+	 * {@link DistanceField} follow its gradient, other ones are searched with
+	 * A*. A field covers the whole exit, so its gradient is not followed from
+	 * a field of the same exit (the path would end at once) - A* is used
+	 * instead. The agent is not modified, so this method may be called
+	 * outside the simulation thread.
 	 * 
 	 * @param board
-	 * @param agent
+	 * @param start
+	 *            starting position
 	 * @param algorithm
 	 * @param targets
+	 * @param useDistanceFields
+	 *            whether to follow distance fields instead of searching
+	 * @return midpoints of the whole route
 	 */
-	private static void computePaths(Board board, Agent agent,
-			NeighborLookupAlgorithm algorithm, Point[] targets) {
-		Point last = agent.getPosition();
+	public static List<Point> computePaths(Board board, Point start,
+			NeighborLookupAlgorithm algorithm, Point[] targets,
+			boolean useDistanceFields) {
+		List<Point> route = new ArrayList<Point>();
+
+		Point last = start;
 		for (Point target : targets) {
-			List<Point> midpoints = computePath(board, last, target, algorithm);
+			DistanceField field = useDistanceFields ? board
+					.getDistanceField(target) : null;
+			List<Point> path = null;
+
+			if (field != null && field != board.getDistanceField(last)) {
+				List<Point> descent = field.descend(last);
+				if (!descent.isEmpty()) {
+					path = selectMidpoints(board, descent);
+
+					// Zejście kończy się na najbliższym polu wyjścia, a nie
+					// na wybranym celu.
+					last = descent.get(descent.size() - 1);
+				}
+			}
 
-			for (Point midpoint : midpoints) {
-				agent.addTarget(midpoint);
+			if (path == null) {
+				path = computePath(board, last, target, algorithm);
+				last = target;
 			}
 
-			last = target;
+			route.addAll(path);
+		}
+
+		return route;
+	}
+
+	/**
+	 * Checks whether paths to all the targets can be read from distance
+	 * fields (no search is needed) - every target lies in another exit than
+	 * the previous leg ends in.
+	 * 
+	 * @param board
+	 * @param start
+	 *            starting position
+	 * @param targets
+	 * @return
+	 */
+	public static boolean isCoveredByDistanceFields(Board board, Point start,
+			Point[] targets) {
+		DistanceField previous = board.getDistanceField(start);
+		for (Point target : targets) {
+			DistanceField field = board.getDistanceField(target);
+			if (field == null || field == previous)
+				return false;
+
+			previous = field;
 		}
 
+		return true;
+	}
+
+	/**
+	 * Picks a random number of targets for an agent.
+	 * 
+	 * @param board
+	 * @param agent
+	 * @return targets sorted by overall distance
+	 */
+	public static Point[] pickTargets(Board board, Agent agent) {
+		int numTargets = MIN_TARGETS + Rand.nextInt(MAX_TARGETS - MIN_TARGETS);
+
+		return pickTargets(board, agent, numTargets);
 	}
 
 	public static Point[] pickTargets(Board board, Agent agent, int numTargets) {
@@ -146,6 +224,10 @@ public class Tactical {
 
 	/**
 	 * Compute path between two points.
+	 * <p>
+	 * A* on a binary heap with decrease-key. All the per-node data is kept in
+	 * arrays indexed by <code>y * width + x</code>, reused by a thread between
+	 * searches.
 	 * 
 	 * @param board
 	 * @param start
@@ -158,72 +240,81 @@ public class Tactical {
 		int width = board.getWidth();
 		int height = board.getHeight();
 
-		BitSet closed = new BitSet(width * height);
-		PriorityQueue<Node> open = new PriorityQueue<Node>(100,
-				new NodeComparator());
+		SearchScratch s = scratch.get();
+		s.prepare(width * height);
+
+		// Offsets of neighbours allowed by the lookup algorithm.
+		int nOffsets = 0;
+		Point center = new Point(1, 1);
+		Point other = new Point();
+		for (int dy = -1; dy <= 1; ++dy) {
+			for (int dx = -1; dx <= +1; ++dx) {
+				other.setLocation(1 + dx, 1 + dy);
+				if (other.equals(center) || !algorithm.isNeighbor(center, other))
+					continue;
+
+				s.offsetX[nOffsets] = dx;
+				s.offsetY[nOffsets] = dy;
+				nOffsets++;
+			}
+		}
 
-		Node node = new Node(); // Only for lookups.
-		Node current = null;
+		int target = targetPoint.y * width + targetPoint.x;
+		int startNode = start.y * width + start.x;
 
-		Node startNode = new Node(start, 0, heuristicCostEstimate(board, start,
-				targetPoint));
-		open.add(startNode);
+		s.open(startNode, 0, heuristicCostEstimate(board, s.point, start.x,
+				start.y, targetPoint), -1);
 
-		while (!open.isEmpty()) {
-			current = open.poll();
+		int current = -1;
+		while (s.heapSize > 0) {
+			current = s.poll();
 
-			Point currentPoint = current.point;
-			if (currentPoint.equals(targetPoint)) {
+			if (current == target) {
 				break;
 			}
 
-			closed.set(currentPoint.y * width + currentPoint.x);
+			int cx = current % width;
+			int cy = current / width;
 
-			for (Point neighbour : getNeighbours(board, currentPoint, algorithm)) {
-				node.point = neighbour;
+			for (int i = 0; i < nOffsets; i++) {
+				int nx = cx + s.offsetX[i];
+				int ny = cy + s.offsetY[i];
 
-				if (closed.get(neighbour.y * width + neighbour.x)) {
+				s.point.setLocation(nx, ny);
+				if (!board.isOnBoard(s.point)
+						|| !board.isPassable(s.point))
 					continue;
-				}
 
-				int score = current.score
-						+ getScoreDelta(currentPoint, neighbour);
-				int estimate = score
-						+ heuristicCostEstimate(board, neighbour,
-								targetPoint);
+				int neighbour = ny * width + nx;
 
-				Node n = null;
-				if (open.contains(node)) {
-					if (score > node.score)
-						continue;
+				if (s.isClosed(neighbour)) {
+					continue;
+				}
 
-					for (Iterator<Node> iter = open.iterator(); iter.hasNext()
-							&& !n.equals(node);) {
-						n = iter.next();
-					}
+				int score = s.score[current] + SCORE_FACTOR;
 
-					assert n != null;
+				if (s.isOpen(neighbour)) {
+					if (score >= s.score[neighbour])
+						continue;
 
-					n.estimate = estimate;
+					s.decrease(neighbour, score, score
+							+ heuristicCostEstimate(board, s.point, nx, ny,
+									targetPoint), current);
 				} else {
-					n = new Node(neighbour);
-					n.estimate = estimate;
-
-					open.add(n);
+					s.open(neighbour, score, score
+							+ heuristicCostEstimate(board, s.point, nx, ny,
+									targetPoint), current);
 				}
-
-				n.previousNode = current;
-				n.score = score;
 			}
 		}
 
 		// Reconstruct path.
 		List<Point> allpoints = new ArrayList<Point>();
-		if (current != null && current.point.equals(targetPoint)) {
-			while (current != null) {
-				allpoints.add(0, current.point);
-				current = current.previousNode;
+		if (current == target) {
+			for (int n = current; n >= 0; n = s.parent[n]) {
+				allpoints.add(new Point(n % width, n / width));
 			}
+			Collections.reverse(allpoints);
 
 			allpoints = selectMidpoints(board, allpoints);
 		}
@@ -321,7 +412,7 @@ public class Tactical {
 		while (!p.equals(endPoint)) {
 			p.setLocation(x, y);
 
-			if (!board.isOnBoard(p) || !board.getCell(p).isPassable())
+			if (!board.isOnBoard(p) || !board.isPassable(p))
 				return false;
 
 			x += dx;
@@ -331,87 +422,163 @@ public class Tactical {
 		return true;
 	}
 
-	private static int heuristicCostEstimate(Board board, Point p, Point target) {
+	/**
+	 * @param board
+	 * @param p
+	 *            point reused for the lookup of the field at (x, y)
+	 * @param x
+	 * @param y
+	 * @param target
+	 * @return
+	 */
+	private static int heuristicCostEstimate(Board board, Point p, int x,
+			int y, Point target) {
 		// XXX: tu nie powinno być metryki miejskiej?
-		int score = (int) (SCORE_FACTOR * HEURISTIC_FACTOR * p.distance(target));
+		int score = (int) (SCORE_FACTOR * HEURISTIC_FACTOR * Point.distance(x,
+				y, target.x, target.y));
 
-		MallFeature mf = board.getCell(p).getFeature();
+		p.setLocation(x, y);
+		MallFeature mf = board.getFeature(p);
 
 		return (mf != null) ? mf.modifyHeuristicEstimate(score) : score;
 	}
 
-	private static List<Point> getNeighbours(Board board, Point point,
-			NeighborLookupAlgorithm algorithm) {
-		ArrayList<Point> neighbours = new ArrayList<Point>();
-
-		Point p = new Point();
-		for (int dy = -1; dy <= 1; ++dy) {
-			for (int dx = -1; dx <= +1; ++dx) {
-				p.setLocation(point.x + dx, point.y + dy);
+	private static final ThreadLocal<SearchScratch> scratch = new ThreadLocal<SearchScratch>() {
+		@Override
+		protected SearchScratch initialValue() {
+			return new SearchScratch();
+		}
+	};
 
-				if (!algorithm.isNeighbor(point, p) || p.equals(point)
-						|| !board.isOnBoard(p)
-						|| !board.getCell(p).isPassable())
-					continue;
+	/**
+	 * Per-thread memory of A*: scores, parents and the open set (binary heap
+	 * ordered by estimate) indexed by node number.
+	 * <p>
+	 * Nodes are marked with the number of the current search, so the arrays
+	 * need not be cleared between searches.
+	 * 
+	 */
+	private static class SearchScratch {
+		int[] score = new int[0];
+		int[] estimate = new int[0];
+		int[] parent = new int[0];
+
+		/**
+		 * Position of a node in the heap (<code>-1</code> when closed).
+		 */
+		int[] heapIndex = new int[0];
+
+		/**
+		 * Number of the search in which a node was reached.
+		 */
+		int[] searchId = new int[0];
+
+		int[] heap = new int[0];
+		int heapSize = 0;
+		int currentSearch = 0;
+
+		final int[] offsetX = new int[8];
+		final int[] offsetY = new int[8];
+		final Point point = new Point();
+
+		void prepare(int nNodes) {
+			if (score.length < nNodes) {
+				score = new int[nNodes];
+				estimate = new int[nNodes];
+				parent = new int[nNodes];
+				heapIndex = new int[nNodes];
+				searchId = new int[nNodes];
+				heap = new int[nNodes];
+				currentSearch = 0;
+			}
 
-				neighbours.add(new Point(p));
+			if (++currentSearch == Integer.MAX_VALUE) {
+				Arrays.fill(searchId, 0);
+				currentSearch = 1;
 			}
+
+			heapSize = 0;
 		}
 
-		return neighbours;
-	}
+		boolean isOpen(int n) {
+			return searchId[n] == currentSearch && heapIndex[n] >= 0;
+		}
 
-	private static int getScoreDelta(Point a, Point b) {
-		return SCORE_FACTOR;
-	}
+		boolean isClosed(int n) {
+			return searchId[n] == currentSearch && heapIndex[n] < 0;
+		}
 
-	private static class Node {
-		public Point point = null;
-		public int score = 0;
-		public int estimate = 0;
-		public Node previousNode = null;
+		void open(int n, int nScore, int nEstimate, int nParent) {
+			searchId[n] = currentSearch;
+			score[n] = nScore;
+			estimate[n] = nEstimate;
+			parent[n] = nParent;
 
-		public Node() {
-			this(null);
+			heap[heapSize] = n;
+			heapIndex[n] = heapSize;
+			heapSize++;
+			siftUp(heapIndex[n]);
 		}
 
-		public Node(Point point) {
-			this(point, 0, 0);
-		}
+		void decrease(int n, int nScore, int nEstimate, int nParent) {
+			score[n] = nScore;
+			estimate[n] = nEstimate;
+			parent[n] = nParent;
 
-		public Node(Point point, int score, int estimate) {
-			this.point = point;
-			this.score = score;
-			this.estimate = estimate;
+			siftUp(heapIndex[n]);
+			siftDown(heapIndex[n]);
 		}
 
-		public boolean equals(Object o) {
-			if (o instanceof Node) {
-				Node n = (Node) o;
-				return this.point.equals(n.point);
+		/**
+		 * Removes the node with the lowest estimate from the open set and
+		 * closes it.
+		 */
+		int poll() {
+			int n = heap[0];
+			heapIndex[n] = -1;
+
+			heapSize--;
+			if (heapSize > 0) {
+				heap[0] = heap[heapSize];
+				heapIndex[heap[0]] = 0;
+				siftDown(0);
 			}
 
-			return false;
+			return n;
 		}
-	}
 
-	/**
-	 * Sort by estimate in a decreasing order.
-	 * 
-	 * @author Kajetan Rzepecki
-	 * 
-	 */
-	private static class NodeComparator implements Comparator<Node> {
-		public boolean equals(Object o) {
-			if (o instanceof NodeComparator) {
-				return this == o;
+		private void siftUp(int i) {
+			int n = heap[i];
+			while (i > 0) {
+				int p = (i - 1) / 2;
+				if (estimate[heap[p]] <= estimate[n])
+					break;
+
+				heap[i] = heap[p];
+				heapIndex[heap[i]] = i;
+				i = p;
 			}
-			return false;
+			heap[i] = n;
+			heapIndex[n] = i;
 		}
 
-		@Override
-		public int compare(Node n0, Node n1) {
-			return n0.estimate - n1.estimate;
+		private void siftDown(int i) {
+			int n = heap[i];
+			while (true) {
+				int c = 2 * i + 1;
+				if (c >= heapSize)
+					break;
+				if (c + 1 < heapSize && estimate[heap[c + 1]] < estimate[heap[c]])
+					c++;
+				if (estimate[n] <= estimate[heap[c]])
+					break;
+
+				heap[i] = heap[c];
+				heapIndex[heap[i]] = i;
+				i = c;
+			}
+			heap[i] = n;
+			heapIndex[n] = i;
 		}
 	}
 
@@ -432,7 +599,7 @@ public class Tactical {
 		}
 
 		public boolean equals(Object o) {
-			if (o instanceof NodeComparator) {
+			if (o instanceof PointComparator) {
 				return this == o;
 			}
 			return false;
@@ -0,0 +1,163 @@
+package sim.model.helpers;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Zbiór bitów o stałym rozmiarze, który może być modyfikowany jednocześnie
+ * przez wiele wątków (bity tego samego słowa ustawiane są operacją CAS).
+ * <p>
+ * W przeciwieństwie do {@link java.util.BitSet} nie przechowuje liczby
+ * używanych słów, więc równoległe zmiany różnych bitów nie mogą się
+ * nawzajem nadpisać.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class AtomicBitSet {
+
+	private AtomicLongArray words;
+
+	public AtomicBitSet(int nBits) {
+		words = new AtomicLongArray((nBits + 63) >>> 6);
+	}
+
+	public int size() {
+		return words.length() << 6;
+	}
+
+	/**
+	 * Powiększa zbiór (nie może być wywoływana równolegle z innymi
+	 * operacjami).
+	 */
+	public void ensureCapacity(int nBits) {
+		int n = (nBits + 63) >>> 6;
+		if (n <= words.length())
+			return;
+
+		AtomicLongArray w = new AtomicLongArray(Math.max(n,
+				2 * words.length()));
+		for (int i = 0; i < words.length(); i++)
+			w.set(i, words.get(i));
+		words = w;
+	}
+
+	public boolean get(int index) {
+		int w = index >>> 6;
+		return w < words.length() && (words.get(w) & (1L << index)) != 0;
+	}
+
+	public void set(int index) {
+		int w = index >>> 6;
+		long mask = 1L << index;
+		while (true) {
+			long old = words.get(w);
+			if ((old & mask) != 0 || words.compareAndSet(w, old, old | mask))
+				return;
+		}
+	}
+
+	public void clear(int index) {
+		int w = index >>> 6;
+		long mask = 1L << index;
+		while (true) {
+			long old = words.get(w);
+			if ((old & mask) == 0 || words.compareAndSet(w, old, old & ~mask))
+				return;
+		}
+	}
+
+	/**
+	 * Zeruje wszystkie bity.
+	 */
+	public void clear() {
+		for (int i = 0; i < words.length(); i++)
+			words.set(i, 0L);
+	}
+
+	/**
+	 * @return indeks pierwszego ustawionego bitu nie mniejszy niż
+	 *         <code>fromIndex</code> lub <code>-1</code>
+	 */
+	public int nextSetBit(int fromIndex) {
+		int w = fromIndex >>> 6;
+		if (w >= words.length())
+			return -1;
+
+		long word = words.get(w) & (-1L << fromIndex);
+		while (true) {
+			if (word != 0)
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			if (++w == words.length())
+				return -1;
+			word = words.get(w);
+		}
+	}
+
+	/**
+	 * Zwraca najmniejszy indeks z przedziału <code>[fromIndex, toIndex)</code>,
+	 * dla którego ustawiony jest bit w zbiorze lub w masce <code>mask</code>
+	 * (słowa o tym samym układzie co zbiór).
+	 *
+	 * @return indeks lub <code>-1</code>
+	 */
+	public int firstSetBit(int fromIndex, int toIndex, long[] mask) {
+		if (fromIndex >= toIndex)
+			return -1;
+
+		int w = fromIndex >>> 6;
+		long word = (words.get(w) | mask[w]) & (-1L << fromIndex);
+		while (true) {
+			if (word != 0) {
+				int i = (w << 6) + Long.numberOfTrailingZeros(word);
+				return (i < toIndex) ? i : -1;
+			}
+			if ((++w << 6) >= toIndex)
+				return -1;
+			word = words.get(w) | mask[w];
+		}
+	}
+
+	/**
+	 * Zwraca największy indeks z przedziału <code>[fromIndex, toIndex)</code>,
+	 * dla którego ustawiony jest bit w zbiorze lub w masce <code>mask</code>.
+	 *
+	 * @return indeks lub <code>-1</code>
+	 */
+	public int lastSetBit(int fromIndex, int toIndex, long[] mask) {
+		if (fromIndex >= toIndex)
+			return -1;
+
+		int w = (toIndex - 1) >>> 6;
+		long word = (words.get(w) | mask[w]) & (-1L >>> -toIndex);
+		while (true) {
+			if (word != 0) {
+				int i = (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+				return (i >= fromIndex) ? i : -1;
+			}
+			if ((w << 6) <= fromIndex)
+				return -1;
+			word = words.get(--w) | mask[w];
+		}
+	}
+
+	/**
+	 * Liczba ustawionych bitów w przedziale <code>[fromIndex, toIndex)</code>.
+	 */
+	public int cardinality(int fromIndex, int toIndex) {
+		if (fromIndex >= toIndex)
+			return 0;
+
+		int first = fromIndex >>> 6;
+		int last = (toIndex - 1) >>> 6;
+		int count = 0;
+		for (int w = first; w <= last; w++) {
+			long word = words.get(w);
+			if (w == first)
+				word &= -1L << fromIndex;
+			if (w == last)
+				word &= -1L >>> -toIndex;
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+}
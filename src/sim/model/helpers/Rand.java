@@ -1,28 +1,130 @@
 package sim.model.helpers;
 
-import java.util.Random;
+import java.util.List;
+
+import sim.model.Agent;
 
 /*
  * Klasa używana, aby za każdym razem używać tego samego generatora (dzięki czemu wyniki symulacji są powtarzalne).
  *
+ * Liczby losowe dla agentów nie pochodzą ze wspólnego strumienia, lecz są
+ * funkcją klucza (ziarno, krok symulacji, identyfikator agenta, numer
+ * losowania) - wynik nie zależy więc od liczby wątków ani od kolejności, w
+ * jakiej przetwarzani są agenci. Strumień globalny (bez klucza) służy do
+ * losowań wykonywanych sekwencyjnie, poza ruchem agentów.
  */
 public class Rand {
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
 	public static long seed = 0L;
-	private static Random r = new Random(seed);
+
+	/**
+	 * Stan strumienia globalnego (SplitMix64). Strumień nie jest bezpieczny
+	 * wątkowo - należy go używać jedynie w wątku symulacji.
+	 */
+	private static long state = seed;
+
+	/**
+	 * Numer bieżącego kroku symulacji (część klucza losowań agentów).
+	 */
+	private static long step = 0;
 
 	public static void reseed() {
-		r = new Random(seed);
+		state = seed;
+		step = 0;
 	}
 
 	public static int nextInt(int n) {
-		return r.nextInt(n);
+		return toInt(nextLong(), n);
 	}
-	
+
 	public static double nextDouble() {
-		return r.nextDouble();
+		return toDouble(nextLong());
 	}
-	
+
+	/**
+	 * Ustawia ziarno - zarówno strumienia globalnego, jak i strumieni
+	 * agentów (patrz {@link #hash(int, int)}).
+	 */
 	public static void setSeed(long seed) {
-		r.setSeed(seed);
+		Rand.seed = seed;
+		state = seed;
+	}
+
+	private static long nextLong() {
+		state += GOLDEN_GAMMA;
+		return mix64(state);
+	}
+
+	/**
+	 * Miesza elementy listy (algorytm Fishera-Yatesa) przy użyciu strumienia
+	 * globalnego.
+	 */
+	public static <T> void shuffle(List<T> list) {
+		for (int i = list.size() - 1; i > 0; i--) {
+			int j = nextInt(i + 1);
+			list.set(i, list.set(j, list.get(i)));
+		}
+	}
+
+	public static void setStep(long step) {
+		Rand.step = step;
+	}
+
+	public static long getStep() {
+		return step;
+	}
+
+	/**
+	 * Kolejna liczba z przedziału <code>[0, 1)</code> ze strumienia agenta.
+	 */
+	public static double nextDouble(Agent a) {
+		return toDouble(hash(a.getId(), a.nextDrawIndex()));
+	}
+
+	/**
+	 * Kolejna liczba z przedziału <code>[0, n)</code> ze strumienia agenta.
+	 */
+	public static int nextInt(Agent a, int n) {
+		return toInt(hash(a.getId(), a.nextDrawIndex()), n);
+	}
+
+	/**
+	 * Liczba z przedziału <code>[0, n)</code> wyznaczona przez klucz (ziarno,
+	 * krok, strumień, numer losowania) - dla losowań niezwiązanych z
+	 * pojedynczym agentem.
+	 */
+	public static int nextInt(int stream, int draw, int n) {
+		return toInt(hash(stream, draw), n);
+	}
+
+	/**
+	 * Wartość losowa wyznaczona przez klucz (ziarno, krok, strumień, numer
+	 * losowania).
+	 */
+	public static long hash(int stream, int draw) {
+		long h = mix64(seed + GOLDEN_GAMMA);
+		h = mix64(h ^ step);
+		return mix64(h ^ (((long) stream << 32) | (draw & 0xffffffffL)));
+	}
+
+	/**
+	 * Funkcja mieszająca SplitMix64.
+	 */
+	private static long mix64(long z) {
+		z += GOLDEN_GAMMA;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static double toDouble(long h) {
+		return (h >>> 11) * 0x1.0p-53;
+	}
+
+	private static int toInt(long h, int n) {
+		if (n <= 0)
+			throw new IllegalArgumentException("n must be positive");
+		return (int) (((h >>> 32) * n) >>> 32);
 	}
 }
@@ -0,0 +1,121 @@
+package sim.model.helpers;
+
+import java.util.Arrays;
+
+/**
+ * Liczniki odwiedzin pól przez agenta - tablica mieszająca z adresowaniem
+ * otwartym, której kluczami są upakowane współrzędne pól.
+ * <p>
+ * Agent uznawany jest za zgubionego, gdy odwiedził któreś pole więcej niż
+ * {@link #MAX_VISITS} razy. Stan ten wyznaczany jest przy każdej odwiedzinie,
+ * więc {@link #isLost()} działa w czasie stałym.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class RevisitTracker {
+
+	/**
+	 * Maksymalna liczba odwiedzin pola przez agenta, który się nie zgubił.
+	 */
+	public static final int MAX_VISITS = 2;
+
+	private static final int INITIAL_CAPACITY = 32;
+
+	private static final int NO_KEY = -1;
+
+	private int[] keys;
+
+	/**
+	 * Liczba odwiedzin (nie większa niż <code>MAX_VISITS + 1</code>).
+	 */
+	private byte[] counts;
+
+	private int size = 0;
+
+	private boolean isLost = false;
+
+	public RevisitTracker() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		counts = new byte[capacity];
+		Arrays.fill(keys, NO_KEY);
+	}
+
+	/**
+	 * Odnotowuje odwiedzenie pola.
+	 */
+	public void visit(int x, int y) {
+		assert (x >= 0 && x <= 0x7fff && y >= 0 && y <= 0xffff);
+
+		int key = (x << 16) | y;
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		while (keys[i] != NO_KEY && keys[i] != key)
+			i = (i + 1) & mask;
+
+		if (keys[i] == NO_KEY) {
+			keys[i] = key;
+			counts[i] = 1;
+			if (++size > keys.length / 2)
+				grow();
+			return;
+		}
+
+		if (counts[i] <= MAX_VISITS)
+			counts[i]++;
+		if (counts[i] > MAX_VISITS)
+			isLost = true;
+	}
+
+	/**
+	 * Czy agent odwiedził któreś pole więcej niż {@link #MAX_VISITS} razy?
+	 */
+	public boolean isLost() {
+		return isLost;
+	}
+
+	/**
+	 * Zeruje liczniki (np. po osiągnięciu przez agenta celu).
+	 */
+	public void clear() {
+		if (size == 0)
+			return;
+
+		// Długie trasy nie powinny na stałe powiększać tablicy.
+		if (keys.length > INITIAL_CAPACITY)
+			allocate(INITIAL_CAPACITY);
+		else
+			Arrays.fill(keys, NO_KEY);
+
+		size = 0;
+		isLost = false;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		byte[] oldCounts = counts;
+
+		allocate(2 * oldKeys.length);
+
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == NO_KEY)
+				continue;
+
+			int i = hash(oldKeys[j]) & mask;
+			while (keys[i] != NO_KEY)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			counts[i] = oldCounts[j];
+		}
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+}
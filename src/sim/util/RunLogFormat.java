@@ -0,0 +1,67 @@
+package sim.util;
+
+import java.nio.charset.Charset;
+
+/**
+ * Binarny format logu przebiegu symulacji (wspólne stałe zapisu i odczytu).
+ * <p>
+ * Plik składa się z nagłówka i wierszy o stałej długości (kolejność bajtów
+ * big-endian):
+ *
+ * <pre>
+ * int    MAGIC
+ * short  VERSION
+ * int    liczba parametrów, dla każdego: klucz, wartość (napisy)
+ * int    liczba kolumn, dla każdej: nazwa (napis), byte typ (ColumnType)
+ * wiersze: int numer kroku, wartości kolumn
+ * </pre>
+ *
+ * Napisy zapisywane są jako short długość i bajty UTF-8.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class RunLogFormat {
+
+	/**
+	 * "MSRL" (mall simulation run log).
+	 */
+	public static final int MAGIC = 0x4d53524c;
+
+	public static final short VERSION = 1;
+
+	static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/**
+	 * Typ wartości w kolumnie.
+	 */
+	public static enum ColumnType {
+		INT32(4), FLOAT64(8);
+
+		private final int width;
+
+		private ColumnType(int width) {
+			this.width = width;
+		}
+
+		/**
+		 * @return liczba bajtów zajmowanych przez wartość
+		 */
+		public int getWidth() {
+			return width;
+		}
+	}
+
+	/**
+	 * @return liczba bajtów zajmowanych przez wiersz (wraz z numerem kroku)
+	 */
+	static int rowWidth(ColumnType[] types) {
+		int width = 4;
+		for (ColumnType t : types)
+			width += t.getWidth();
+		return width;
+	}
+
+	private RunLogFormat() {
+	}
+}
@@ -0,0 +1,198 @@
+package sim.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import sim.util.RunLogFormat.ColumnType;
+
+/**
+ * Odczyt binarnego logu przebiegu symulacji (patrz {@link RunLogFormat}).
+ * <p>
+ * Wiersze mają stałą długość, więc można przejść bezpośrednio do dowolnego
+ * z nich ({@link #seek(long)}).
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class RunLogReader implements AutoCloseable {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+
+	private final Map<String, String> params = new LinkedHashMap<>();
+	private final List<String> columnNames = new ArrayList<>();
+	private final ColumnType[] types;
+
+	private final long dataOffset;
+	private final int rowWidth;
+	private final long rowCount;
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Numer kolejnego wiersza do odczytania.
+	 */
+	private long nextRow = 0;
+
+	// Bieżący wiersz.
+	private int step = -1;
+	private final double[] values;
+
+	public RunLogReader(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		try {
+			ByteBuffer header = ByteBuffer.allocate((int) Math.min(
+					channel.size(), BUFFER_SIZE));
+			readFully(header, 0);
+			header.flip();
+
+			if (header.getInt() != RunLogFormat.MAGIC)
+				throw new IOException("Not a run log: " + file);
+			short version = header.getShort();
+			if (version != RunLogFormat.VERSION)
+				throw new IOException("Unsupported run log version: "
+						+ version);
+
+			int nParams = header.getInt();
+			for (int i = 0; i < nParams; i++)
+				params.put(getString(header), getString(header));
+
+			int nColumns = header.getInt();
+			types = new ColumnType[nColumns];
+			for (int i = 0; i < nColumns; i++) {
+				columnNames.add(getString(header));
+				types[i] = ColumnType.values()[header.get()];
+			}
+
+			dataOffset = header.position();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw (e instanceof IOException) ? (IOException) e
+					: new IOException("Corrupted run log header: " + file, e);
+		}
+
+		rowWidth = RunLogFormat.rowWidth(types);
+		rowCount = (channel.size() - dataOffset) / rowWidth;
+		values = new double[types.length];
+
+		buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, rowWidth));
+		buffer.limit(0);
+	}
+
+	private void readFully(ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			int n = channel.read(dst, position);
+			if (n < 0)
+				throw new EOFException();
+			position += n;
+		}
+	}
+
+	private static String getString(ByteBuffer b) {
+		byte[] bytes = new byte[b.getShort()];
+		b.get(bytes);
+		return new String(bytes, RunLogFormat.CHARSET);
+	}
+
+	/**
+	 * @return parametry przebiegu zapisane w nagłówku
+	 */
+	public Map<String, String> getParams() {
+		return Collections.unmodifiableMap(params);
+	}
+
+	public List<String> getColumnNames() {
+		return Collections.unmodifiableList(columnNames);
+	}
+
+	public ColumnType getColumnType(int column) {
+		return types[column];
+	}
+
+	public int getColumnCount() {
+		return types.length;
+	}
+
+	/**
+	 * @return liczba pełnych wierszy w pliku
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Ustawia wiersz, który zostanie odczytany przez {@link #next()}.
+	 */
+	public void seek(long row) {
+		if (row < 0 || row > rowCount)
+			throw new IndexOutOfBoundsException("Row " + row + " of "
+					+ rowCount);
+
+		nextRow = row;
+		buffer.limit(0);
+	}
+
+	/**
+	 * Odczytuje kolejny wiersz.
+	 *
+	 * @return <code>false</code>, gdy nie ma więcej wierszy
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		if (nextRow >= rowCount)
+			return false;
+
+		if (buffer.remaining() < rowWidth) {
+			long rows = Math.min(rowCount - nextRow, BUFFER_SIZE / rowWidth);
+			buffer.clear();
+			buffer.limit((int) Math.max(1, rows) * rowWidth);
+			readFully(buffer, dataOffset + nextRow * rowWidth);
+			buffer.flip();
+		}
+
+		step = buffer.getInt();
+		for (int i = 0; i < types.length; i++) {
+			switch (types[i]) {
+			case INT32:
+				values[i] = buffer.getInt();
+				break;
+			case FLOAT64:
+				values[i] = buffer.getDouble();
+				break;
+			}
+		}
+
+		nextRow++;
+		return true;
+	}
+
+	/**
+	 * @return numer kroku bieżącego wiersza
+	 */
+	public int getStep() {
+		return step;
+	}
+
+	/**
+	 * @return wartość kolumny w bieżącym wierszu
+	 */
+	public double getValue(int column) {
+		return values[column];
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
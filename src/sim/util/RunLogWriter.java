@@ -0,0 +1,290 @@
+package sim.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import sim.util.RunLogFormat.ColumnType;
+
+/**
+ * Zapis binarnego logu przebiegu symulacji (patrz {@link RunLogFormat}).
+ * <p>
+ * Wiersze przekazywane są przez ograniczoną kolejkę do osobnego wątku, który
+ * koduje je i zapisuje paczkami przez {@link FileChannel} - wywołujący nie
+ * formatuje tekstu ani nie czeka na dysk (chyba że kolejka jest pełna).
+ * <p>
+ * Po pierwszym błędzie zapisu kolejne wiersze są odrzucane (log kończy się na
+ * ostatniej zapisanej paczce), a błąd zgłaszany jest przez {@link #close()}.
+ * Wywołujący nigdy nie czeka na wątek zapisu, który przestał działać.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class RunLogWriter implements AutoCloseable {
+
+	/**
+	 * Domyślna pojemność kolejki wierszy.
+	 */
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Co ile milisekund oczekujący na miejsce w kolejce sprawdza, czy wątek
+	 * zapisu nadal działa.
+	 */
+	private static final long OFFER_TIMEOUT_MS = 100;
+
+	private final static Logger LOGGER = Logger
+			.getLogger(Logger.GLOBAL_LOGGER_NAME);
+
+	private static class Row {
+		final int step;
+		final double[] values;
+
+		Row(int step, double[] values) {
+			this.step = step;
+			this.values = values;
+		}
+	}
+
+	/**
+	 * Znacznik końca zapisu.
+	 */
+	private static final Row EOF = new Row(-1, null);
+
+	private final FileChannel channel;
+	private final ColumnType[] types;
+	private final BlockingQueue<Row> queue;
+	private final ByteBuffer buffer;
+	private final Thread worker;
+
+	private volatile IOException failure = null;
+	private boolean isClosed = false;
+
+	/**
+	 * Tworzy plik logu i zapisuje nagłówek.
+	 *
+	 * @param file
+	 * @param params
+	 *            parametry przebiegu (np. mapa, ziarno)
+	 * @param columnNames
+	 * @param types
+	 *            typy kolejnych kolumn
+	 * @throws IOException
+	 */
+	public RunLogWriter(Path file, Map<String, String> params,
+			String[] columnNames, ColumnType[] types) throws IOException {
+		this(file, params, columnNames, types, DEFAULT_CAPACITY);
+	}
+
+	public RunLogWriter(Path file, Map<String, String> params,
+			String[] columnNames, ColumnType[] types, int capacity)
+			throws IOException {
+		if (columnNames.length != types.length)
+			throw new IllegalArgumentException(
+					"Column names and types differ in length");
+
+		this.types = types.clone();
+		queue = new ArrayBlockingQueue<>(capacity);
+		buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE,
+				RunLogFormat.rowWidth(types)));
+
+		channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			writeHeader(params, columnNames);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+
+		worker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				process();
+			}
+		}, "run-log-writer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	private void writeHeader(Map<String, String> params, String[] columnNames)
+			throws IOException {
+		buffer.putInt(RunLogFormat.MAGIC);
+		buffer.putShort(RunLogFormat.VERSION);
+
+		buffer.putInt(params.size());
+		for (Map.Entry<String, String> e : params.entrySet()) {
+			putString(e.getKey());
+			putString(e.getValue());
+		}
+
+		buffer.putInt(columnNames.length);
+		for (int i = 0; i < columnNames.length; i++) {
+			putString(columnNames[i]);
+			buffer.put((byte) types[i].ordinal());
+		}
+
+		drain();
+	}
+
+	private void putString(String s) {
+		byte[] bytes = s.getBytes(RunLogFormat.CHARSET);
+		if (bytes.length > Short.MAX_VALUE)
+			throw new IllegalArgumentException("String too long: " + s);
+
+		buffer.putShort((short) bytes.length);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Dodaje wiersz (czeka, gdy kolejka jest pełna).
+	 *
+	 * @param step
+	 *            numer kroku
+	 * @param values
+	 *            wartości kolejnych kolumn (kopiowane)
+	 */
+	public void append(int step, double... values) {
+		if (values.length != types.length)
+			throw new IllegalArgumentException("Expected " + types.length
+					+ " values, got " + values.length);
+
+		if (failure != null)
+			return;
+
+		enqueue(new Row(step, values.clone()));
+	}
+
+	/**
+	 * Umieszcza wiersz w kolejce, czekając na miejsce tylko dopóki wątek
+	 * zapisu działa.
+	 *
+	 * @return <code>false</code>, gdy wiersz nie trafił do kolejki
+	 */
+	private boolean enqueue(Row row) {
+		try {
+			while (!queue.offer(row, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				if (!worker.isAlive()) {
+					fail(new IOException("Run log writer thread has stopped"));
+					return false;
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void process() {
+		while (true) {
+			Row row;
+			try {
+				row = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			// Po błędzie kolejka jest jedynie opróżniana.
+			if (failure != null) {
+				if (row == EOF)
+					return;
+				continue;
+			}
+
+			try {
+				// Koduj wiersze dopóki są dostępne, zapisuj pełne paczki.
+				while (row != null && row != EOF) {
+					encode(row);
+					row = queue.poll();
+				}
+				drain();
+
+				if (row == EOF) {
+					channel.force(false);
+					return;
+				}
+			} catch (IOException | RuntimeException e) {
+				fail(e);
+				buffer.clear();
+
+				if (row == EOF)
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Zapamiętuje pierwszy błąd zapisu.
+	 */
+	private synchronized void fail(Exception e) {
+		if (failure != null)
+			return;
+
+		failure = (e instanceof IOException) ? (IOException) e
+				: new IOException("Could not write run log", e);
+		LOGGER.severe("Could not write run log: " + e);
+	}
+
+	private void encode(Row row) throws IOException {
+		if (buffer.remaining() < RunLogFormat.rowWidth(types))
+			drain();
+
+		buffer.putInt(row.step);
+		for (int i = 0; i < types.length; i++) {
+			switch (types[i]) {
+			case INT32:
+				buffer.putInt((int) row.values[i]);
+				break;
+			case FLOAT64:
+				buffer.putDouble(row.values[i]);
+				break;
+			}
+		}
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Zapisuje pozostałe wiersze i zamyka plik.
+	 *
+	 * @throws IOException
+	 *             gdy któryś z wierszy nie został zapisany
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (isClosed)
+				return;
+			isClosed = true;
+		}
+
+		try {
+			if (enqueue(EOF))
+				worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			channel.close();
+		}
+
+		if (failure != null)
+			throw failure;
+	}
+}
@@ -0,0 +1,116 @@
+package sim.util.trajectory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Format pliku trajektorii agentów (wspólne stałe i kodowanie liczb).
+ * <p>
+ * Plik składa się z nagłówka, ciągu paczek (ang. chunk) i indeksu paczek:
+ *
+ * <pre>
+ * nagłówek: int MAGIC, short VERSION, napis mapa, int szerokość,
+ *           int wysokość, long ziarno, int liczba kroków w paczce
+ * paczka:   int CHUNK_MAGIC, int pierwszy krok, int liczba kroków,
+ *           int długość danych, dane kolejnych kroków
+ * indeks:   int INDEX_MAGIC, int liczba paczek,
+ *           (int pierwszy krok, int liczba kroków, long pozycja) dla paczek
+ * koniec:   long pozycja indeksu, int TRAILER_MAGIC
+ * </pre>
+ *
+ * Dane kroku to liczba agentów (varint), a następnie, w kolejności
+ * identyfikatorów, dla każdego agenta: odstęp od poprzedniego
+ * identyfikatora (varint), położenie i bajt kierunku i stanu (bity 0-1 -
+ * kierunek, pozostałe - {@link #HELD}, {@link #LOST}, {@link #LEAVING}).
+ * Pierwszy krok paczki zawiera położenia bezwzględne (varint), a kolejne -
+ * dla agentów obecnych w poprzednim kroku - zmiany położenia (zigzag
+ * varint), więc do odtworzenia dowolnego kroku wystarcza jedna paczka.
+ * <p>
+ * Jeśli plik nie został poprawnie zamknięty (brak indeksu), paczki można
+ * odnaleźć, przeglądając je kolejno od końca nagłówka.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class TrajectoryFormat {
+
+	/**
+	 * "MSTR" (mall simulation trajectories).
+	 */
+	public static final int MAGIC = 0x4d535452;
+
+	public static final short VERSION = 1;
+
+	static final int CHUNK_MAGIC = 0x43484e4b;
+	static final int INDEX_MAGIC = 0x494e4458;
+	static final int TRAILER_MAGIC = 0x454e4421;
+
+	/**
+	 * Długość nagłówka paczki.
+	 */
+	static final int CHUNK_HEADER_SIZE = 16;
+
+	/**
+	 * Długość zakończenia pliku.
+	 */
+	static final int TRAILER_SIZE = 12;
+
+	/**
+	 * Agent odczekuje (np. w sklepie).
+	 */
+	public static final int HELD = 1;
+
+	/**
+	 * Agent się zgubił (wielokrotnie odwiedza te same pola).
+	 */
+	public static final int LOST = 2;
+
+	/**
+	 * Agent osiągnął ostatni cel i opuszcza centrum.
+	 */
+	public static final int LEAVING = 4;
+
+	static final Charset CHARSET = Charset.forName("UTF-8");
+
+	static void putVarInt(ByteBuffer b, int value) {
+		while ((value & ~0x7f) != 0) {
+			b.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		b.put((byte) value);
+	}
+
+	static int getVarInt(ByteBuffer b) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte v = b.get();
+			value |= (v & 0x7f) << shift;
+			if (v >= 0)
+				return value;
+		}
+		throw new IllegalStateException("Malformed varint");
+	}
+
+	static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static void putString(ByteBuffer b, String s) {
+		byte[] bytes = s.getBytes(CHARSET);
+		b.putShort((short) bytes.length);
+		b.put(bytes);
+	}
+
+	static String getString(ByteBuffer b) {
+		byte[] bytes = new byte[b.getShort()];
+		b.get(bytes);
+		return new String(bytes, CHARSET);
+	}
+
+	private TrajectoryFormat() {
+	}
+}
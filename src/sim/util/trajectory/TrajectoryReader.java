@@ -0,0 +1,362 @@
+package sim.util.trajectory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import sim.model.helpers.Direction;
+
+/**
+ * Odczyt trajektorii agentów zapisanych przez {@link TrajectoryWriter}.
+ * <p>
+ * Plik odwzorowywany jest w pamięci, a paczka zawierająca dany krok
+ * wyszukiwana w indeksie paczek, więc przejście do dowolnego kroku wymaga
+ * zdekodowania co najwyżej jednej paczki. Przy odczycie kolejnych kroków
+ * dekodowany jest jedynie każdy następny krok.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class TrajectoryReader implements AutoCloseable {
+
+	/**
+	 * Stan agentów w danym kroku (dane agentów w kolejności
+	 * identyfikatorów).
+	 * <p>
+	 * Obiekt jest ponownie wykorzystywany przez kolejne wywołania
+	 * {@link TrajectoryReader#readStep(int)}.
+	 */
+	public static class Frame {
+		private int step = -1;
+		private int nAgents = 0;
+		private int[] ids = new int[0];
+		private int[] xs = new int[0];
+		private int[] ys = new int[0];
+		private byte[] states = new byte[0];
+
+		public int getStep() {
+			return step;
+		}
+
+		public int countAgents() {
+			return nAgents;
+		}
+
+		public int getId(int i) {
+			return ids[i];
+		}
+
+		public int getX(int i) {
+			return xs[i];
+		}
+
+		public int getY(int i) {
+			return ys[i];
+		}
+
+		public Direction getDirection(int i) {
+			return Direction.values()[states[i] & 3];
+		}
+
+		/**
+		 * @return flagi stanu agenta (patrz {@link TrajectoryFormat#HELD},
+		 *         {@link TrajectoryFormat#LOST},
+		 *         {@link TrajectoryFormat#LEAVING})
+		 */
+		public int getState(int i) {
+			return (states[i] & 0xff) >>> 2;
+		}
+
+		private void ensureCapacity(int n) {
+			if (ids.length >= n)
+				return;
+
+			int capacity = Math.max(n, 2 * ids.length);
+			ids = Arrays.copyOf(ids, capacity);
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			states = Arrays.copyOf(states, capacity);
+		}
+	}
+
+	private final FileChannel channel;
+	private final MappedByteBuffer data;
+
+	private final String mapName;
+	private final int width;
+	private final int height;
+	private final long seed;
+	private final int stepsPerChunk;
+
+	// Indeks paczek.
+	private int nChunks = 0;
+	private int[] chunkFirstSteps = new int[64];
+	private int[] chunkStepCounts = new int[64];
+	private long[] chunkOffsets = new long[64];
+
+	private final Frame frame = new Frame();
+
+	// Stan dekodowania - paczka, numer ostatnio zdekodowanego kroku w
+	// paczce i pozycja jego końca.
+	private int currentChunk = -1;
+	private int currentStepInChunk = -1;
+	private ByteBuffer cursor = null;
+
+	/**
+	 * Numer zdekodowanego kroku liczony od początku odczytu.
+	 */
+	private int decoded = 0;
+
+	// Dane agentów (indeksowane identyfikatorem agenta) - numer kroku, w
+	// którym agent był ostatnio obecny, i jego położenie w tym kroku.
+	private int[] lastDecoded = new int[0];
+	private int[] lastX = new int[0];
+	private int[] lastY = new int[0];
+
+	public TrajectoryReader(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		try {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Trajectory file too large: " + file);
+
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+
+			if (data.getInt() != TrajectoryFormat.MAGIC)
+				throw new IOException("Not a trajectory file: " + file);
+			short version = data.getShort();
+			if (version != TrajectoryFormat.VERSION)
+				throw new IOException("Unsupported trajectory file version: "
+						+ version);
+
+			mapName = TrajectoryFormat.getString(data);
+			width = data.getInt();
+			height = data.getInt();
+			seed = data.getLong();
+			stepsPerChunk = data.getInt();
+
+			if (!readIndex())
+				scanChunks(data.position());
+		} catch (BufferUnderflowException e) {
+			channel.close();
+			throw new IOException("Truncated trajectory file: " + file);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Odczytuje indeks paczek zapisany na końcu pliku.
+	 *
+	 * @return <code>false</code>, gdy plik nie zawiera indeksu (nie został
+	 *         poprawnie zamknięty)
+	 */
+	private boolean readIndex() {
+		int size = data.limit();
+		if (size < data.position() + TrajectoryFormat.TRAILER_SIZE
+				|| data.getInt(size - 4) != TrajectoryFormat.TRAILER_MAGIC)
+			return false;
+
+		long indexOffset = data.getLong(size - TrajectoryFormat.TRAILER_SIZE);
+		if (indexOffset < data.position() || indexOffset > size - 8
+				|| data.getInt((int) indexOffset) != TrajectoryFormat.INDEX_MAGIC)
+			return false;
+
+		ByteBuffer index = data.duplicate();
+		index.position((int) indexOffset + 4);
+		int n = index.getInt();
+		for (int i = 0; i < n; i++)
+			addChunk(index.getInt(), index.getInt(), index.getLong());
+
+		return true;
+	}
+
+	/**
+	 * Odtwarza indeks, przeglądając kolejne paczki (pomija niepełną paczkę
+	 * na końcu pliku).
+	 */
+	private void scanChunks(int offset) {
+		ByteBuffer b = data.duplicate();
+		int size = b.limit();
+
+		while (offset + TrajectoryFormat.CHUNK_HEADER_SIZE <= size
+				&& b.getInt(offset) == TrajectoryFormat.CHUNK_MAGIC) {
+			int payload = b.getInt(offset + 12);
+			int end = offset + TrajectoryFormat.CHUNK_HEADER_SIZE + payload;
+			if (payload < 0 || end > size)
+				break;
+
+			addChunk(b.getInt(offset + 4), b.getInt(offset + 8), offset);
+			offset = end;
+		}
+	}
+
+	private void addChunk(int firstStep, int nSteps, long offset) {
+		if (nChunks == chunkOffsets.length) {
+			chunkFirstSteps = Arrays.copyOf(chunkFirstSteps, 2 * nChunks);
+			chunkStepCounts = Arrays.copyOf(chunkStepCounts, 2 * nChunks);
+			chunkOffsets = Arrays.copyOf(chunkOffsets, 2 * nChunks);
+		}
+		chunkFirstSteps[nChunks] = firstStep;
+		chunkStepCounts[nChunks] = nSteps;
+		chunkOffsets[nChunks] = offset;
+		nChunks++;
+	}
+
+	public String getMapName() {
+		return mapName;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public int getStepsPerChunk() {
+		return stepsPerChunk;
+	}
+
+	/**
+	 * @return numer pierwszego zapisanego kroku (-1, gdy plik nie zawiera
+	 *         kroków)
+	 */
+	public int getFirstStep() {
+		return (nChunks == 0) ? -1 : chunkFirstSteps[0];
+	}
+
+	/**
+	 * @return numer ostatniego zapisanego kroku (-1, gdy plik nie zawiera
+	 *         kroków)
+	 */
+	public int getLastStep() {
+		return (nChunks == 0) ? -1 : chunkFirstSteps[nChunks - 1]
+				+ chunkStepCounts[nChunks - 1] - 1;
+	}
+
+	/**
+	 * Czy dany krok został zapisany?
+	 */
+	public boolean hasStep(int step) {
+		return findChunk(step) >= 0;
+	}
+
+	/**
+	 * @return numer paczki zawierającej dany krok (-1, gdy krok nie został
+	 *         zapisany)
+	 */
+	private int findChunk(int step) {
+		int lo = 0;
+		int hi = nChunks - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (chunkFirstSteps[mid] <= step)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+
+		if (hi < 0 || step >= chunkFirstSteps[hi] + chunkStepCounts[hi])
+			return -1;
+		return hi;
+	}
+
+	/**
+	 * Odczytuje stan agentów w danym kroku.
+	 *
+	 * @param step
+	 *            numer kroku symulacji
+	 * @return stan agentów (ważny do kolejnego wywołania)
+	 * @throws IllegalArgumentException
+	 *             gdy krok nie został zapisany
+	 */
+	public Frame readStep(int step) {
+		if (step == frame.step)
+			return frame;
+
+		int chunk = findChunk(step);
+		if (chunk < 0)
+			throw new IllegalArgumentException("Step not recorded: " + step);
+
+		int stepInChunk = step - chunkFirstSteps[chunk];
+		if (chunk != currentChunk || stepInChunk < currentStepInChunk) {
+			// Dekodowanie od początku paczki.
+			int offset = (int) chunkOffsets[chunk];
+			cursor = data.duplicate();
+			cursor.position(offset + TrajectoryFormat.CHUNK_HEADER_SIZE);
+			cursor.limit(offset + TrajectoryFormat.CHUNK_HEADER_SIZE
+					+ data.getInt(offset + 12));
+
+			currentChunk = chunk;
+			currentStepInChunk = -1;
+		}
+
+		while (currentStepInChunk < stepInChunk)
+			decodeStep(currentStepInChunk < 0);
+
+		frame.step = step;
+		return frame;
+	}
+
+	private void decodeStep(boolean isKeyframe) {
+		decoded++;
+		int previous = isKeyframe ? -1 : decoded - 1;
+
+		int n = TrajectoryFormat.getVarInt(cursor);
+		frame.ensureCapacity(n);
+		frame.nAgents = n;
+		frame.step = -1;
+
+		int id = -1;
+		for (int i = 0; i < n; i++) {
+			id += TrajectoryFormat.getVarInt(cursor) + 1;
+			ensureCapacity(id + 1);
+
+			int x = TrajectoryFormat.getVarInt(cursor);
+			int y = TrajectoryFormat.getVarInt(cursor);
+			if (lastDecoded[id] == previous) {
+				x = lastX[id] + TrajectoryFormat.unzigzag(x);
+				y = lastY[id] + TrajectoryFormat.unzigzag(y);
+			}
+
+			frame.ids[i] = id;
+			frame.xs[i] = x;
+			frame.ys[i] = y;
+			frame.states[i] = cursor.get();
+
+			lastDecoded[id] = decoded;
+			lastX[id] = x;
+			lastY[id] = y;
+		}
+
+		currentStepInChunk++;
+	}
+
+	private void ensureCapacity(int idCount) {
+		if (lastDecoded.length >= idCount)
+			return;
+
+		int capacity = Math.max(idCount, 2 * lastDecoded.length);
+		lastDecoded = Arrays.copyOf(lastDecoded, capacity);
+		lastX = Arrays.copyOf(lastX, capacity);
+		lastY = Arrays.copyOf(lastY, capacity);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,313 @@
+package sim.util.trajectory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import sim.model.Agent;
+import sim.model.Board;
+
+/**
+ * Zapis trajektorii agentów (położenia, kierunki i stany w kolejnych
+ * krokach) do pliku w formacie {@link TrajectoryFormat}.
+ * <p>
+ * Kroki kodowane są w wątku symulacji do bufora bieżącej paczki, a pełne
+ * paczki kopiowane są do odwzorowanego w pamięci fragmentu pliku
+ * obejmującego dokładnie tę paczkę (plik nie jest więc nigdy dłuższy niż
+ * zapisane dane i nie trzeba go przycinać - co nie jest możliwe w systemie
+ * Windows, póki fragment pozostaje odwzorowany). Indeks paczek dopisywany
+ * jest przez {@link #close()}.
+ *
+ * @author Pawel Kleczek
+ *
+ */
+public class TrajectoryWriter implements AutoCloseable {
+
+	/**
+	 * Domyślna liczba kroków w paczce.
+	 */
+	public static final int DEFAULT_STEPS_PER_CHUNK = 64;
+
+	private static final int INITIAL_CHUNK_CAPACITY = 64 * 1024;
+
+	/**
+	 * Maksymalna długość danych jednego agenta (identyfikator, dwie
+	 * współrzędne i bajt stanu).
+	 */
+	private static final int MAX_AGENT_BYTES = 3 * 5 + 1;
+
+	private final FileChannel channel;
+	private final int stepsPerChunk;
+
+	/**
+	 * Długość zapisanej części pliku.
+	 */
+	private long length;
+
+	/**
+	 * Dane bieżącej paczki.
+	 */
+	private ByteBuffer chunk = ByteBuffer.allocate(INITIAL_CHUNK_CAPACITY);
+	private int chunkFirstStep = -1;
+	private int chunkSteps = 0;
+
+	// Indeks zapisanych paczek.
+	private int nChunks = 0;
+	private int[] chunkFirstSteps = new int[64];
+	private int[] chunkStepCounts = new int[64];
+	private long[] chunkOffsets = new long[64];
+
+	/**
+	 * Numer bieżącego kroku liczony od początku zapisu.
+	 */
+	private int frame = 0;
+
+	// Dane agentów (indeksowane identyfikatorem agenta) - numer kroku, w
+	// którym agent był ostatnio obecny, i jego położenie w tym kroku.
+	private int[] lastFrame = new int[0];
+	private int[] lastX = new int[0];
+	private int[] lastY = new int[0];
+
+	// Dane agentów w bieżącym kroku.
+	private int[] present = new int[0];
+	private int[] x = new int[0];
+	private int[] y = new int[0];
+	private byte[] state = new byte[0];
+
+	private boolean isClosed = false;
+
+	/**
+	 * Tworzy plik trajektorii i zapisuje nagłówek.
+	 *
+	 * @param file
+	 * @param mapName
+	 *            nazwa mapy centrum handlowego
+	 * @param board
+	 *            plansza, której stan będzie zapisywany
+	 * @param seed
+	 *            ziarno generatora liczb losowych
+	 * @throws IOException
+	 */
+	public TrajectoryWriter(Path file, String mapName, Board board, long seed)
+			throws IOException {
+		this(file, mapName, board, seed, DEFAULT_STEPS_PER_CHUNK);
+	}
+
+	public TrajectoryWriter(Path file, String mapName, Board board,
+			long seed, int stepsPerChunk) throws IOException {
+		if (stepsPerChunk < 1)
+			throw new IllegalArgumentException(
+					"Steps per chunk must be positive");
+
+		this.stepsPerChunk = stepsPerChunk;
+
+		channel = FileChannel.open(file, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(1024);
+			header.putInt(TrajectoryFormat.MAGIC);
+			header.putShort(TrajectoryFormat.VERSION);
+			TrajectoryFormat.putString(header, String.valueOf(mapName));
+			header.putInt(board.getWidth());
+			header.putInt(board.getHeight());
+			header.putLong(seed);
+			header.putInt(stepsPerChunk);
+			header.flip();
+
+			while (header.hasRemaining())
+				channel.write(header);
+			length = channel.position();
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Zapisuje stan agentów po danym kroku (w wątku symulacji).
+	 * <p>
+	 * Kroki powinny być zapisywane kolejno - przerwa w numeracji rozpoczyna
+	 * nową paczkę.
+	 *
+	 * @param board
+	 * @param step
+	 *            numer kroku symulacji
+	 * @throws IOException
+	 */
+	public void record(Board board, int step) throws IOException {
+		if (isClosed)
+			throw new IllegalStateException("Trajectory writer is closed");
+
+		if (chunkSteps > 0
+				&& (chunkSteps == stepsPerChunk || step != chunkFirstStep
+						+ chunkSteps))
+			writeChunk();
+
+		if (chunkSteps == 0) {
+			chunkFirstStep = step;
+			chunk.clear();
+		}
+
+		frame++;
+		ensureCapacity(Agent.getIdCount());
+
+		// Zbierz agentów według identyfikatorów.
+		int width = board.getWidth();
+		int nAgents = 0;
+		int maxId = -1;
+		for (int i = board.nextOccupied(0); i >= 0; i = board
+				.nextOccupied(i + 1)) {
+			Agent a = board.getAgent(i % width, i / width);
+			int id = a.getId();
+
+			present[id] = frame;
+			x[id] = i % width;
+			y[id] = i / width;
+			state[id] = encodeState(a);
+			maxId = Math.max(maxId, id);
+			nAgents++;
+		}
+
+		ensureChunkCapacity(5 + nAgents * MAX_AGENT_BYTES);
+		TrajectoryFormat.putVarInt(chunk, nAgents);
+
+		// Agent obecny w poprzednim kroku tej samej paczki zapisywany jest
+		// względnie.
+		int previousFrame = (chunkSteps == 0) ? -1 : frame - 1;
+		int previousId = -1;
+		for (int id = 0; id <= maxId; id++) {
+			if (present[id] != frame)
+				continue;
+
+			TrajectoryFormat.putVarInt(chunk, id - previousId - 1);
+			if (lastFrame[id] == previousFrame) {
+				TrajectoryFormat.putVarInt(chunk,
+						TrajectoryFormat.zigzag(x[id] - lastX[id]));
+				TrajectoryFormat.putVarInt(chunk,
+						TrajectoryFormat.zigzag(y[id] - lastY[id]));
+			} else {
+				TrajectoryFormat.putVarInt(chunk, x[id]);
+				TrajectoryFormat.putVarInt(chunk, y[id]);
+			}
+			chunk.put(state[id]);
+
+			lastFrame[id] = frame;
+			lastX[id] = x[id];
+			lastY[id] = y[id];
+			previousId = id;
+		}
+
+		chunkSteps++;
+	}
+
+	private static byte encodeState(Agent a) {
+		int flags = 0;
+		if (a.getHoldTime() > 0)
+			flags |= TrajectoryFormat.HELD;
+		if (a.isLost())
+			flags |= TrajectoryFormat.LOST;
+		if (a.getTargetCount() == 0)
+			flags |= TrajectoryFormat.LEAVING;
+
+		return (byte) (a.getDirection().ordinal() | (flags << 2));
+	}
+
+	private void ensureCapacity(int idCount) {
+		if (lastFrame.length >= idCount)
+			return;
+
+		int capacity = Math.max(idCount, 2 * lastFrame.length);
+		lastFrame = Arrays.copyOf(lastFrame, capacity);
+		lastX = Arrays.copyOf(lastX, capacity);
+		lastY = Arrays.copyOf(lastY, capacity);
+		present = Arrays.copyOf(present, capacity);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		state = Arrays.copyOf(state, capacity);
+	}
+
+	private void ensureChunkCapacity(int bytes) {
+		if (chunk.remaining() >= bytes)
+			return;
+
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(chunk.position()
+				+ bytes, 2 * chunk.capacity()));
+		chunk.flip();
+		larger.put(chunk);
+		chunk = larger;
+	}
+
+	/**
+	 * Dopisuje bieżącą paczkę do pliku.
+	 */
+	private void writeChunk() throws IOException {
+		int size = TrajectoryFormat.CHUNK_HEADER_SIZE + chunk.position();
+		MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE,
+				length, size);
+
+		if (nChunks == chunkOffsets.length) {
+			chunkFirstSteps = Arrays.copyOf(chunkFirstSteps, 2 * nChunks);
+			chunkStepCounts = Arrays.copyOf(chunkStepCounts, 2 * nChunks);
+			chunkOffsets = Arrays.copyOf(chunkOffsets, 2 * nChunks);
+		}
+		chunkFirstSteps[nChunks] = chunkFirstStep;
+		chunkStepCounts[nChunks] = chunkSteps;
+		chunkOffsets[nChunks] = length;
+		nChunks++;
+
+		out.putInt(TrajectoryFormat.CHUNK_MAGIC);
+		out.putInt(chunkFirstStep);
+		out.putInt(chunkSteps);
+		out.putInt(chunk.position());
+		chunk.flip();
+		out.put(chunk);
+		chunk.clear();
+
+		length += size;
+		chunkSteps = 0;
+	}
+
+	/**
+	 * Zapisuje ostatnią paczkę oraz indeks paczek i zamyka plik.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if (isClosed)
+			return;
+		isClosed = true;
+
+		try {
+			if (chunkSteps > 0)
+				writeChunk();
+
+			ByteBuffer index = ByteBuffer.allocate(8 + 16 * nChunks
+					+ TrajectoryFormat.TRAILER_SIZE);
+			index.putInt(TrajectoryFormat.INDEX_MAGIC);
+			index.putInt(nChunks);
+			for (int i = 0; i < nChunks; i++) {
+				index.putInt(chunkFirstSteps[i]);
+				index.putInt(chunkStepCounts[i]);
+				index.putLong(chunkOffsets[i]);
+			}
+			index.putLong(length);
+			index.putInt(TrajectoryFormat.TRAILER_MAGIC);
+			index.flip();
+
+			long position = length;
+			while (index.hasRemaining())
+				position += channel.write(index, position);
+
+			// Utrwala również zmiany w odwzorowanych fragmentach.
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+}
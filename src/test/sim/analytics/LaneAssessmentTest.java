@@ -0,0 +1,261 @@
+package test.sim.analytics;
+
+import static org.junit.Assert.*;
+
+import java.awt.Dimension;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sim.analytics.BoardSnapshot;
+import sim.analytics.LaneAssessment;
+import sim.model.Agent;
+import sim.model.Agent.MovementBehavior;
+import sim.model.Board;
+import sim.model.algo.Ped4.LaneDirection;
+import sim.model.helpers.Direction;
+
+/**
+ * Porównanie oceny pasów z sum prefiksowych z pierwotną oceną, w której dla
+ * każdego pola przeglądana była cała ramka.
+ */
+public class LaneAssessmentTest {
+	private static final int FRAME_WIDTH = LaneAssessment.FRAME_WIDTH;
+
+	private Board board;
+	private LaneAssessment assessment;
+
+	@Before
+	public void setUp() {
+		assessment = new LaneAssessment(4);
+	}
+
+	@After
+	public void tearDown() {
+		assessment.shutdown();
+		if (board != null)
+			board.reset();
+	}
+
+	private void place(int x, int y, Direction direction) {
+		Agent a = new Agent(MovementBehavior.AVERAGE);
+		a.setDirection(direction);
+		board.setAgent(a, x, y);
+	}
+
+	private byte[] assess() {
+		assessment.assess(BoardSnapshot.capture(board, 0, 0));
+		return assessment.getLaneDirections();
+	}
+
+	/**
+	 * Pierwotna klasyfikacja pola - przegląd ramki
+	 * <code>[x - FRAME_WIDTH / 2, x - FRAME_WIDTH / 2 + FRAME_WIDTH)</code>
+	 * przyciętej do planszy.
+	 */
+	private LaneDirection referenceRow(int y, int x) {
+		int startCol = Math.max(0, x - FRAME_WIDTH / 2);
+		int endCol = Math.min(board.getWidth(), startCol + FRAME_WIDTH);
+
+		int sumOfDirections = 0;
+		int nAgents = 0;
+		for (int col = startCol; col < endCol; col++) {
+			Agent agent = board.getAgent(col, y);
+			if (agent == null)
+				continue;
+
+			nAgents++;
+			sumOfDirections += agent.getDirection().getVec().x;
+		}
+
+		if (nAgents == 0)
+			return LaneDirection.EMPTY;
+
+		double dominantDirection = sumOfDirections / (double) nAgents;
+		double density = nAgents / (double) FRAME_WIDTH;
+
+		if ((density < 0.6) && (Math.abs(dominantDirection) > 0.6))
+			return (dominantDirection > 0.0) ? LaneDirection.EAST
+					: LaneDirection.WEST;
+		else
+			return LaneDirection.NONE;
+	}
+
+	/**
+	 * Porównuje wynik oceny z oceną pierwotną (kierunki pól, procent pól
+	 * będących pasami i spójność).
+	 */
+	private void assertMatchesReference() {
+		int width = board.getWidth();
+		int height = board.getHeight();
+		byte[] directions = assess();
+
+		LaneDirection[] expected = new LaneDirection[width * height];
+		int lanes = 0;
+		int none = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				LaneDirection dir = referenceRow(y, x);
+				expected[y * width + x] = dir;
+
+				if (dir == LaneDirection.NONE)
+					none++;
+				else if (dir.isDirection())
+					lanes++;
+
+				assertEquals("(" + x + ", " + y + ")", dir,
+						LaneDirection.values()[directions[y * width + x]]);
+			}
+		}
+
+		int coherence = 0;
+		for (int x = 0; x < width; x++) {
+			for (int y = 1; y < height - 1; y++) {
+				LaneDirection dir1 = expected[(y - 1) * width + x];
+				LaneDirection dir2 = expected[y * width + x];
+				LaneDirection dir3 = expected[(y + 1) * width + x];
+
+				if (dir1.isDirection() && dir2.isDirection() && dir1 == dir3
+						&& dir1 != dir2)
+					coherence--;
+			}
+		}
+
+		double all = lanes + none;
+		double perc = (all == 0) ? 100.0 : (all - none) / all * 100.0;
+
+		assertEquals(perc, assessment.getPercentOfFieldsAsLanes(), 1e-9);
+		assertEquals(coherence, assessment.getCoherence());
+	}
+
+	@Test
+	public void randomBoards() {
+		Random random = new Random(17);
+		Direction[] directions = Direction.values();
+		int[] widths = { 1, 7, 14, 15, 16, 31, 80 };
+		double[] densities = { 0.05, 0.2, 0.5, 0.9 };
+
+		for (int width : widths) {
+			for (double density : densities) {
+				board = new Board(new Dimension(width, 40));
+
+				for (int y = 0; y < board.getHeight(); y++)
+					for (int x = 0; x < width; x++)
+						if (random.nextDouble() < density)
+							place(x, y,
+									directions[random.nextInt(directions.length)]);
+
+				assertMatchesReference();
+				board.reset();
+			}
+		}
+	}
+
+	/**
+	 * Wiersze na przemian zajęte przez agentów idących na wschód i na
+	 * zachód - każdy wiersz wewnętrzny jest niespójny.
+	 */
+	@Test
+	public void alternatingRows() {
+		board = new Board(new Dimension(30, 6));
+		for (int y = 0; y < board.getHeight(); y++)
+			for (int x = 0; x < board.getWidth(); x += 3)
+				place(x, y, (y % 2 == 0) ? Direction.E : Direction.W);
+
+		assertMatchesReference();
+		assertEquals(100.0, assessment.getPercentOfFieldsAsLanes(), 1e-9);
+		assertEquals(-(board.getHeight() - 2) * board.getWidth(),
+				assessment.getCoherence());
+	}
+
+	@Test
+	public void emptyBoard() {
+		board = new Board(new Dimension(20, 5));
+		byte[] directions = assess();
+
+		for (byte dir : directions)
+			assertEquals(LaneDirection.EMPTY, LaneDirection.values()[dir]);
+		assertEquals(100.0, assessment.getPercentOfFieldsAsLanes(), 1e-9);
+		assertEquals(0, assessment.getCoherence());
+	}
+
+	@Test
+	public void emptyRow() {
+		board = new Board(new Dimension(20, 3));
+		place(3, 0, Direction.E);
+		place(3, 2, Direction.E);
+
+		byte[] directions = assess();
+		for (int x = 0; x < board.getWidth(); x++)
+			assertEquals(LaneDirection.EMPTY,
+					LaneDirection.values()[directions[board.getWidth() + x]]);
+		assertMatchesReference();
+	}
+
+	/**
+	 * Agent na pierwszym polu wiersza należy jedynie do ramek pól
+	 * <code>[0, FRAME_WIDTH / 2]</code>.
+	 */
+	@Test
+	public void frameClippedAtLeftEdge() {
+		board = new Board(new Dimension(30, 1));
+		place(0, 0, Direction.W);
+
+		byte[] directions = assess();
+		for (int x = 0; x < board.getWidth(); x++)
+			assertEquals("x = " + x, (x <= FRAME_WIDTH / 2) ? LaneDirection.WEST
+					: LaneDirection.EMPTY, LaneDirection.values()[directions[x]]);
+		assertMatchesReference();
+	}
+
+	/**
+	 * Ramka przy prawej krawędzi jest skracana (a nie przesuwana), więc agent
+	 * na ostatnim polu należy jedynie do ramek pól
+	 * <code>[W - 1 - FRAME_WIDTH / 2, W - 1]</code>.
+	 */
+	@Test
+	public void frameClippedAtRightEdge() {
+		int width = 30;
+		board = new Board(new Dimension(width, 1));
+		place(width - 1, 0, Direction.E);
+
+		byte[] directions = assess();
+		for (int x = 0; x < width; x++)
+			assertEquals("x = " + x,
+					(x >= width - 1 - FRAME_WIDTH / 2) ? LaneDirection.EAST
+							: LaneDirection.EMPTY,
+					LaneDirection.values()[directions[x]]);
+		assertMatchesReference();
+	}
+
+	/**
+	 * Agenci idący w pionie zwiększają liczbę agentów w ramce, lecz nie
+	 * sumę kierunków.
+	 */
+	@Test
+	public void mixedVerticalAndHorizontal() {
+		board = new Board(new Dimension(15, 2));
+
+		// 4 x E + 1 x N: 4/5 > 0.6 - pas.
+		place(0, 0, Direction.E);
+		place(2, 0, Direction.E);
+		place(4, 0, Direction.N);
+		place(6, 0, Direction.E);
+		place(8, 0, Direction.E);
+
+		// 3 x W + 2 x S: 3/5 - brak pasa.
+		place(0, 1, Direction.W);
+		place(2, 1, Direction.S);
+		place(4, 1, Direction.W);
+		place(6, 1, Direction.S);
+		place(8, 1, Direction.W);
+
+		byte[] directions = assess();
+		assertEquals(LaneDirection.EAST, LaneDirection.values()[directions[7]]);
+		assertEquals(LaneDirection.NONE,
+				LaneDirection.values()[directions[15 + 7]]);
+		assertMatchesReference();
+	}
+}
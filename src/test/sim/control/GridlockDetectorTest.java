@@ -0,0 +1,265 @@
+package test.sim.control;
+
+import static org.junit.Assert.*;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sim.control.GridlockDetector;
+import sim.model.Agent;
+import sim.model.Agent.MovementBehavior;
+import sim.model.Board;
+import sim.model.Cell;
+import sim.model.helpers.Direction;
+
+/**
+ * Wykrywanie i rozładowywanie zatorów na ręcznie przygotowanej planszy -
+ * agenci nie wykonują ruchu, a pola, na które próbują wejść, ustawiane są
+ * bezpośrednio (jak przez algorytm ruchu).
+ */
+public class GridlockDetectorTest {
+
+	private Board board;
+	private GridlockDetector detector;
+
+	private final List<Agent> agents = new ArrayList<>();
+	private final List<Point> wanted = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		board = new Board(new Dimension(20, 12));
+		detector = new GridlockDetector();
+	}
+
+	@After
+	public void tearDown() {
+		board.reset();
+	}
+
+	/**
+	 * Umieszcza agenta, który w każdym kroku próbuje wejść na pole
+	 * <code>(wx, wy)</code>.
+	 */
+	private Agent place(int x, int y, Direction direction, Point target,
+			int wx, int wy) {
+		Agent a = new Agent(MovementBehavior.AVERAGE);
+		a.setDirection(direction);
+		a.addTarget(target);
+		board.setAgent(a, x, y);
+
+		agents.add(a);
+		wanted.add(new Point(wx, wy));
+		return a;
+	}
+
+	/**
+	 * Jeden krok symulacji, w którym żaden agent nie zmienia pozycji.
+	 *
+	 * @return liczba rozładowanych zatorów
+	 */
+	private int step() {
+		detector.begin(board);
+		for (int i = 0; i < agents.size(); i++) {
+			Point p = wanted.get(i);
+			agents.get(i).setWantedCell(p.y * board.getWidth() + p.x);
+		}
+		return detector.resolve(board);
+	}
+
+	/**
+	 * Kroki, po których agenci uznawani są za utkniętych.
+	 *
+	 * @return liczba zatorów rozładowanych w ostatnim kroku
+	 */
+	private int stall() {
+		for (int i = 1; i < GridlockDetector.STALL_STEPS; i++)
+			assertEquals(0, step());
+		return step();
+	}
+
+	private void assertAt(Agent a, int x, int y) {
+		assertSame(a, board.getAgent(x, y));
+		assertEquals(x, a.getX());
+		assertEquals(y, a.getY());
+	}
+
+	/**
+	 * Dwóch agentów idących naprzeciw siebie zamienia się miejscami.
+	 */
+	@Test
+	public void headOnPairSwaps() {
+		Agent a = place(3, 2, Direction.E, new Point(10, 2), 4, 2);
+		Agent b = place(4, 2, Direction.W, new Point(0, 2), 3, 2);
+
+		assertEquals(1, stall());
+		assertEquals(1, detector.getCycleCount());
+		assertEquals(2, detector.getCycleAgentCount());
+		assertEquals(0, detector.getChainCount());
+
+		assertAt(a, 4, 2);
+		assertAt(b, 3, 2);
+		assertEquals(1, a.getFieldsMoved());
+		assertEquals(1, b.getFieldsMoved());
+		assertEquals(0, a.getStalledSteps());
+		assertEquals(0, b.getStalledSteps());
+
+		// Po zamianie agenci nie są już uznawani za utkniętych.
+		agents.clear();
+		wanted.clear();
+		assertEquals(0, step());
+	}
+
+	/**
+	 * Cykl na planszy o sąsiedztwie von Neumanna ma parzystą długość, więc
+	 * "cykl" trzech agentów zamyka krawędź po przekątnej - taka krawędź nie
+	 * jest uwzględniana, a krótki łańcuch nie jest rozładowywany.
+	 */
+	@Test
+	public void threeCycleIsNotRotated() {
+		Agent a = place(5, 5, Direction.E, new Point(19, 5), 6, 5);
+		Agent b = place(6, 5, Direction.S, new Point(6, 11), 6, 6);
+		Agent c = place(6, 6, Direction.W, new Point(0, 6), 5, 5);
+
+		assertEquals(0, stall());
+		assertEquals(0, detector.getCycleCount());
+		assertAt(a, 5, 5);
+		assertAt(b, 6, 5);
+		assertAt(c, 6, 6);
+		assertEquals(Direction.S, b.getDirection());
+	}
+
+	/**
+	 * Czterech agentów w kwadracie 2x2 przesuwa się o jedno pole wzdłuż
+	 * cyklu - każdy zajmuje pole, na które próbował wejść.
+	 */
+	@Test
+	public void fourCycleRotates() {
+		Agent a = place(10, 4, Direction.E, new Point(19, 4), 11, 4);
+		Agent b = place(11, 4, Direction.S, new Point(11, 11), 11, 5);
+		Agent c = place(11, 5, Direction.W, new Point(0, 5), 10, 5);
+		Agent d = place(10, 5, Direction.N, new Point(10, 0), 10, 4);
+
+		assertEquals(1, stall());
+		assertEquals(1, detector.getCycleCount());
+		assertEquals(4, detector.getCycleAgentCount());
+
+		assertAt(a, 11, 4);
+		assertAt(b, 11, 5);
+		assertAt(c, 10, 5);
+		assertAt(d, 10, 4);
+	}
+
+	/**
+	 * Kolumna pięciu agentów zablokowana przez ścianę - agent na czele
+	 * obraca się w stronę wolnego pola bliższego jego celowi, reszta stoi.
+	 */
+	@Test
+	public void fiveAgentChainHeadTurnsAside() {
+		board.setCell(new Point(15, 2), Cell.WALL);
+
+		List<Agent> chain = new ArrayList<>();
+		for (int y = 3; y < 3 + GridlockDetector.MIN_CHAIN_LENGTH; y++)
+			chain.add(place(15, y, Direction.N, new Point(12, 0), 15, y - 1));
+
+		assertEquals(1, stall());
+		assertEquals(1, detector.getChainCount());
+		assertEquals(0, detector.getCycleCount());
+
+		Agent head = chain.get(0);
+		assertEquals(Direction.W, head.getDirection());
+		assertEquals(0, head.getStalledSteps());
+		for (int k = 1; k < chain.size(); k++) {
+			assertEquals(Direction.N, chain.get(k).getDirection());
+			assertAt(chain.get(k), 15, 3 + k);
+		}
+		assertAt(head, 15, 3);
+	}
+
+	/**
+	 * Gdy pole bliższe celowi jest zajęte, agent na czele łańcucha obraca się
+	 * w drugą stronę.
+	 */
+	@Test
+	public void chainHeadTurnsToFreeSide() {
+		board.setCell(new Point(15, 2), Cell.WALL);
+		board.setCell(new Point(14, 3), Cell.WALL);
+
+		for (int y = 3; y < 3 + GridlockDetector.MIN_CHAIN_LENGTH; y++)
+			place(15, y, Direction.N, new Point(12, 0), 15, y - 1);
+
+		assertEquals(1, stall());
+		assertEquals(Direction.E, agents.get(0).getDirection());
+	}
+
+	/**
+	 * Łańcuch krótszy niż {@link GridlockDetector#MIN_CHAIN_LENGTH} nie jest
+	 * rozładowywany.
+	 */
+	@Test
+	public void shortChainIsIgnored() {
+		board.setCell(new Point(15, 2), Cell.WALL);
+
+		for (int y = 3; y < 2 + GridlockDetector.MIN_CHAIN_LENGTH; y++)
+			place(15, y, Direction.N, new Point(12, 0), 15, y - 1);
+
+		assertEquals(0, stall());
+		assertEquals(Direction.N, agents.get(0).getDirection());
+	}
+
+	/**
+	 * Łańcuch prowadzący do cyklu - rozładowywany jest jedynie cykl.
+	 */
+	@Test
+	public void chainIntoCycleRotatesOnlyCycle() {
+		Agent a = place(3, 8, Direction.E, new Point(19, 8), 4, 8);
+		Agent b = place(4, 8, Direction.W, new Point(0, 8), 3, 8);
+		List<Agent> tail = new ArrayList<>();
+		for (int y = 9; y < 9 + GridlockDetector.MIN_CHAIN_LENGTH - 2; y++)
+			tail.add(place(3, y, Direction.N, new Point(3, 0), 3, y - 1));
+
+		assertEquals(1, stall());
+		assertEquals(1, detector.getCycleCount());
+		assertEquals(0, detector.getChainCount());
+		assertAt(a, 4, 8);
+		assertAt(b, 3, 8);
+		for (Agent t : tail)
+			assertEquals(Direction.N, t.getDirection());
+	}
+
+	/**
+	 * Wszystkie trzy układy naraz - zatory rozładowywane są niezależnie.
+	 */
+	@Test
+	public void independentGridlocks() {
+		Agent a = place(3, 2, Direction.E, new Point(10, 2), 4, 2);
+		Agent b = place(4, 2, Direction.W, new Point(0, 2), 3, 2);
+		Agent c = place(10, 4, Direction.E, new Point(19, 4), 11, 4);
+		Agent d = place(11, 4, Direction.S, new Point(11, 11), 11, 5);
+		Agent e = place(11, 5, Direction.W, new Point(0, 5), 10, 5);
+		Agent f = place(10, 5, Direction.N, new Point(10, 0), 10, 4);
+
+		board.setCell(new Point(15, 2), Cell.WALL);
+		for (int y = 3; y < 3 + GridlockDetector.MIN_CHAIN_LENGTH; y++)
+			place(15, y, Direction.N, new Point(18, 0), 15, y - 1);
+		Agent head = board.getAgent(15, 3);
+
+		assertEquals(3, stall());
+		assertEquals(2, detector.getCycleCount());
+		assertEquals(6, detector.getCycleAgentCount());
+		assertEquals(1, detector.getChainCount());
+
+		assertAt(a, 4, 2);
+		assertAt(b, 3, 2);
+		assertAt(c, 11, 4);
+		assertAt(d, 11, 5);
+		assertAt(e, 10, 5);
+		assertAt(f, 10, 4);
+		assertEquals(Direction.E, head.getDirection());
+	}
+}
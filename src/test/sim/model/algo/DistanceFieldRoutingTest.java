@@ -0,0 +1,103 @@
+package test.sim.model.algo;
+
+import static org.junit.Assert.*;
+
+import java.awt.Point;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import sim.control.ResourceManager;
+import sim.model.Board;
+import sim.model.Mall;
+import sim.model.algo.DistanceField;
+import sim.model.algo.Tactical;
+
+/**
+ * Porównanie tras wyznaczanych z pól odległości z trasami A* dla wszystkich
+ * par pól I/O planszy gk0 (odległych o co najmniej 10 pól, w różnych
+ * wyjściach).
+ */
+public class DistanceFieldRoutingTest {
+	private static Board board;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		Mall mall = ResourceManager.loadShoppingMall(Paths
+				.get("resources/malls/gk0_map.bmp"));
+		assertNotNull(mall);
+		board = mall.getBoard();
+	}
+
+	/**
+	 * Długość trasy (w ruchach w sąsiedztwie Moore'a) między kolejnymi
+	 * punktami pośrednimi.
+	 */
+	private static int length(Point start, List<Point> route) {
+		int length = 0;
+		Point last = start;
+		for (Point p : route) {
+			length += Math.max(Math.abs(p.x - last.x), Math.abs(p.y - last.y));
+			last = p;
+		}
+		return length;
+	}
+
+	private static int distanceToExit(DistanceField field, Point p) {
+		int min = Integer.MAX_VALUE;
+		for (Point q : field.getExit())
+			min = Math.min(min, Math.max(Math.abs(q.x - p.x),
+					Math.abs(q.y - p.y)));
+		return min;
+	}
+
+	@Test
+	public void routesAreComparable() {
+		List<Double> ratios = new ArrayList<>();
+
+		for (Point start : board.getIoPoints()) {
+			for (Point target : board.getIoPoints()) {
+				DistanceField field = board.getDistanceField(target);
+				if (start.distance(target) < 10
+						|| field == board.getDistanceField(start))
+					continue;
+
+				Point[] targets = { target };
+				List<Point> gradient = Tactical.computePaths(board, start,
+						Tactical.nlaMoore, targets, true);
+				List<Point> aStar = Tactical.computePaths(board, start,
+						Tactical.nlaMoore, targets, false);
+
+				assertFalse(gradient.isEmpty());
+				assertFalse(aStar.isEmpty());
+
+				// Obie trasy kończą się przy wyjściu celu (ostatni punkt
+				// pośredni może nie leżeć na samym wyjściu).
+				assertTrue(distanceToExit(field,
+						gradient.get(gradient.size() - 1)) <= Tactical.MAX_SEGMENT_SIZE);
+				assertTrue(distanceToExit(field,
+						aStar.get(aStar.size() - 1)) <= Tactical.MAX_SEGMENT_SIZE);
+
+				int gradientLength = length(start, gradient);
+				int aStarLength = length(start, aStar);
+				assertTrue(start + " -> " + target,
+						gradientLength <= 2 * aStarLength);
+
+				ratios.add(aStarLength / (double) gradientLength);
+			}
+		}
+
+		assertFalse(ratios.isEmpty());
+
+		// A* z ważoną heurystyką nie zawsze znajduje najkrótszą trasę, ale
+		// typowo trasy są podobnej długości.
+		Collections.sort(ratios);
+		double median = ratios.get(ratios.size() / 2);
+		assertTrue("median A*/gradient length ratio " + median, median >= 0.9
+				&& median <= 1.25);
+	}
+}
@@ -0,0 +1,150 @@
+package test.sim.model.algo;
+
+import static org.junit.Assert.*;
+
+import java.awt.Point;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import sim.control.ResourceManager;
+import sim.model.Agent;
+import sim.model.Agent.MovementBehavior;
+import sim.model.Board;
+import sim.model.Mall;
+import sim.model.helpers.Direction;
+import sim.model.helpers.Rand;
+
+/**
+ * Test regresyjny modelu Ped4 - przebieg z ustalonym ziarnem na planszy gk0
+ * (z pominięciem atrakcji, wyznaczania tras i rozładowywania zatorów)
+ * porównywany jest z przebiegiem wersji sprzed przepisania Ped4 na
+ * współrzędne całkowitoliczbowe.
+ */
+public class Ped4RegressionTest {
+
+	private static final long SEED = 42L;
+	private static final int AGENTS = 400;
+	private static final int STEPS = 60;
+
+	/**
+	 * Skrót stanu planszy po {@link #STEPS} krokach, wyznaczony dla wersji
+	 * sprzed przepisania.
+	 */
+	private static final long EXPECTED_DIGEST = 0x8b21cfcca9b271dbL;
+
+	private Board board;
+
+	@After
+	public void tearDown() {
+		if (board != null)
+			board.reset();
+	}
+
+	@Test
+	public void seededRunMatchesReference() {
+		// Wczytanie planszy rozmieszcza agentów bez celu (strumień globalny).
+		Rand.seed = SEED;
+		Rand.reseed();
+
+		Mall mall = ResourceManager.loadShoppingMall(Paths
+				.get("resources/malls/gk0_map.bmp"));
+		assertNotNull(mall);
+		board = mall.getBoard();
+		placeAgents();
+
+		int[] speedPointsLeft = new int[Agent.getIdCount()];
+		BitSet moved = new BitSet();
+		Point p = new Point();
+
+		for (int step = 0; step < STEPS; step++) {
+			Rand.setStep(step);
+
+			for (int i = board.nextOccupied(0); i >= 0; i = board
+					.nextOccupied(i + 1)) {
+				p.setLocation(i % board.getWidth(), i / board.getWidth());
+				Agent a = board.getAgent(p);
+
+				speedPointsLeft[a.getId()] = a.getvMax();
+				if (a.getTargetCount() > 0 && !a.getTarget().equals(p))
+					board.getAlgorithm(p).prepare(board, a);
+			}
+
+			for (int subStep = 0; subStep < Agent.V_MAX; subStep++) {
+				moved.clear();
+
+				for (int i = board.nextOccupied(0); i >= 0; i = board
+						.nextOccupied(i + 1)) {
+					p.setLocation(i % board.getWidth(), i / board.getWidth());
+					Agent a = board.getAgent(p);
+
+					if (moved.get(a.getId()) || a.getTargetCount() == 0
+							|| a.getTarget().equals(p))
+						continue;
+					moved.set(a.getId());
+
+					if (speedPointsLeft[a.getId()] > 0) {
+						board.getAlgorithm(p).nextIterationStep(board, a,
+								speedPointsLeft);
+						speedPointsLeft[a.getId()]--;
+					}
+				}
+			}
+		}
+
+		long digest = digest();
+		assertEquals("digest " + Long.toHexString(digest) + "L",
+				EXPECTED_DIGEST, digest);
+	}
+
+	/**
+	 * Umieszcza agentów na losowych wolnych polach - cel każdego z nich leży
+	 * po przeciwnej stronie korytarza (w poziomie).
+	 */
+	private void placeAgents() {
+		List<Point> ioPoints = board.getIoPoints();
+		MovementBehavior[] behaviors = MovementBehavior.values();
+		int placed = 0;
+
+		while (placed < AGENTS) {
+			Point p = new Point(Rand.nextInt(board.getWidth()),
+					Rand.nextInt(board.getHeight()));
+			if (!board.isPassable(p) || board.getAgent(p) != null
+					|| ioPoints.contains(p))
+				continue;
+
+			Point target = new Point(p);
+			boolean east = Rand.nextInt(2) == 0;
+			int dx = east ? 1 : -1;
+			for (int k = 0; k < 40 && board.isOnBoard(new Point(target.x + dx,
+					target.y)) && board.isPassable(target.x + dx, target.y); k++)
+				target.x += dx;
+			if (target.equals(p))
+				continue;
+
+			Agent a = new Agent(behaviors[placed % behaviors.length]);
+			a.setDirection(east ? Direction.E : Direction.W);
+			a.addTarget(target);
+			board.setAgent(a, p);
+			placed++;
+		}
+	}
+
+	/**
+	 * Skrót (FNV-1a) pozycji i kierunków agentów w kolejności wierszowej.
+	 */
+	private long digest() {
+		long h = 0xcbf29ce484222325L;
+		for (int i = board.nextOccupied(0); i >= 0; i = board
+				.nextOccupied(i + 1)) {
+			Agent a = board.getAgent(i % board.getWidth(), i / board.getWidth());
+			h = (h ^ i) * 0x100000001b3L;
+			h = (h ^ a.getDirection().ordinal()) * 0x100000001b3L;
+			h = (h ^ a.getFieldsMoved()) * 0x100000001b3L;
+		}
+		return h;
+	}
+}
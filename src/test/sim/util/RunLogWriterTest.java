@@ -0,0 +1,126 @@
+package test.sim.util;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import sim.util.RunLogFormat.ColumnType;
+import sim.util.RunLogReader;
+import sim.util.RunLogWriter;
+
+/**
+ * Zapis logu przebiegu i jego odczyt.
+ */
+public class RunLogWriterTest {
+
+	private static final String[] COLUMNS = { "lanes", "lost" };
+	private static final ColumnType[] TYPES = { ColumnType.FLOAT64,
+			ColumnType.INT32 };
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static double lanes(int step) {
+		return step * 0.25 - 3.5;
+	}
+
+	private static int lost(int step) {
+		return (step * 7919) % 101;
+	}
+
+	/**
+	 * Zapisuje <code>rows</code> wierszy przez kolejkę o podanej pojemności.
+	 */
+	private Path write(int rows, int capacity) throws IOException {
+		Path file = folder.newFile().toPath();
+
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("map", "gk0_map.bmp");
+		params.put("seed", "3");
+
+		try (RunLogWriter writer = new RunLogWriter(file, params, COLUMNS,
+				TYPES, capacity)) {
+			for (int step = 0; step < rows; step++)
+				writer.append(step, lanes(step), lost(step));
+		}
+		return file;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		// Więcej wierszy niż mieści bufor, mała kolejka.
+		int rows = 10000;
+		Path file = write(rows, 4);
+
+		try (RunLogReader reader = new RunLogReader(file)) {
+			assertEquals("gk0_map.bmp", reader.getParams().get("map"));
+			assertEquals("3", reader.getParams().get("seed"));
+			assertEquals(Arrays.asList(COLUMNS), reader.getColumnNames());
+			for (int i = 0; i < TYPES.length; i++)
+				assertEquals(TYPES[i], reader.getColumnType(i));
+			assertEquals(rows, reader.getRowCount());
+
+			for (int step = 0; step < rows; step++) {
+				assertTrue(reader.next());
+				assertEquals(step, reader.getStep());
+				assertEquals(lanes(step), reader.getValue(0), 0.0);
+				assertEquals(lost(step), reader.getValue(1), 0.0);
+			}
+			assertFalse(reader.next());
+
+			reader.seek(1234);
+			assertTrue(reader.next());
+			assertEquals(1234, reader.getStep());
+			assertEquals(lanes(1234), reader.getValue(0), 0.0);
+		}
+	}
+
+	@Test
+	public void emptyLog() throws IOException {
+		Path file = write(0, RunLogWriter.DEFAULT_CAPACITY);
+
+		try (RunLogReader reader = new RunLogReader(file)) {
+			assertEquals(0, reader.getRowCount());
+			assertFalse(reader.next());
+		}
+	}
+
+	/**
+	 * Niepełny ostatni wiersz (np. po przerwaniu zapisu) jest pomijany.
+	 */
+	@Test
+	public void truncatedRowIsIgnored() throws IOException {
+		Path file = write(100, RunLogWriter.DEFAULT_CAPACITY);
+
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.setLength(raf.length() - 3);
+		}
+
+		try (RunLogReader reader = new RunLogReader(file)) {
+			assertEquals(99, reader.getRowCount());
+			reader.seek(98);
+			assertTrue(reader.next());
+			assertEquals(98, reader.getStep());
+			assertFalse(reader.next());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void wrongValueCount() throws IOException {
+		Path file = folder.newFile().toPath();
+
+		try (RunLogWriter writer = new RunLogWriter(file,
+				new LinkedHashMap<String, String>(), COLUMNS, TYPES)) {
+			writer.append(0, 1.0);
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package test.sim.util.trajectory;
+
+import static org.junit.Assert.*;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import sim.model.Agent;
+import sim.model.Agent.MovementBehavior;
+import sim.model.Board;
+import sim.model.helpers.Direction;
+import sim.util.trajectory.TrajectoryFormat;
+import sim.util.trajectory.TrajectoryReader;
+import sim.util.trajectory.TrajectoryReader.Frame;
+import sim.util.trajectory.TrajectoryWriter;
+
+/**
+ * Zapis i odczyt pliku trajektorii: odczyt kolejnych kroków i przejścia do
+ * dowolnego kroku, przerwy w numeracji kroków, agenci znikający z planszy w
+ * obrębie paczki oraz odtwarzanie indeksu niezamkniętego pliku.
+ */
+public class TrajectoryFileTest {
+
+	private static final int STEPS_PER_CHUNK = 8;
+	private static final long SEED = 11L;
+
+	/**
+	 * Kroki 0-49 i 60-99 w paczkach po 8 kroków: 7 + 5 paczek.
+	 */
+	private static final int CHUNKS = 12;
+
+	private static final Comparator<int[]> BY_ID = new Comparator<int[]>() {
+		@Override
+		public int compare(int[] a, int[] b) {
+			return Integer.compare(a[0], b[0]);
+		}
+	};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Random random = new Random(5);
+
+	private Board board;
+	private final List<Agent> agents = new ArrayList<>();
+
+	/**
+	 * Oczekiwany stan zapisanych kroków - dla każdego agenta (w kolejności
+	 * identyfikatorów): identyfikator, x, y, kierunek, flagi stanu.
+	 */
+	private final Map<Integer, List<int[]>> expected = new HashMap<>();
+
+	@Before
+	public void setUp() {
+		board = new Board(new Dimension(20, 15));
+		Direction[] directions = Direction.values();
+
+		for (int i = 0; i < 40; i++) {
+			Agent a = new Agent(MovementBehavior.AVERAGE);
+			a.setDirection(directions[random.nextInt(directions.length)]);
+			if (i % 3 != 0)
+				a.addTarget(new Point(0, 0));
+			placeRandomly(a);
+			agents.add(a);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		board.reset();
+	}
+
+	private void placeRandomly(Agent a) {
+		while (true) {
+			int x = random.nextInt(board.getWidth());
+			int y = random.nextInt(board.getHeight());
+			if (board.getAgent(x, y) == null) {
+				board.setAgent(a, x, y);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Przesuwa agentów na losowe wolne sąsiednie pola (niekiedy dalej, by
+	 * zmiany położenia nie mieściły się w jednym bajcie).
+	 */
+	private void moveAgents() {
+		Direction[] directions = Direction.values();
+
+		for (Agent a : agents) {
+			if (board.getAgent(a.getX(), a.getY()) != a)
+				continue;
+
+			int x = a.getX() + random.nextInt(3) - 1;
+			int y = a.getY() + random.nextInt(3) - 1;
+			if (random.nextInt(10) == 0)
+				x = random.nextInt(board.getWidth());
+			if (x < 0 || y < 0 || x >= board.getWidth()
+					|| y >= board.getHeight() || board.getAgent(x, y) != null)
+				continue;
+
+			// Pole potencjału zależy od kierunku - zmiana poza planszą.
+			board.setAgent(null, a.getX(), a.getY());
+			a.setDirection(directions[random.nextInt(directions.length)]);
+			board.setAgent(a, x, y);
+			a.setHoldTime(random.nextInt(4) == 0 ? 2 : 0);
+		}
+	}
+
+	private void record(TrajectoryWriter writer, int step) throws IOException {
+		writer.record(board, step);
+
+		List<int[]> state = new ArrayList<>();
+		for (int i = board.nextOccupied(0); i >= 0; i = board
+				.nextOccupied(i + 1)) {
+			Agent a = board.getAgent(i % board.getWidth(), i / board.getWidth());
+
+			int flags = 0;
+			if (a.getHoldTime() > 0)
+				flags |= TrajectoryFormat.HELD;
+			if (a.isLost())
+				flags |= TrajectoryFormat.LOST;
+			if (a.getTargetCount() == 0)
+				flags |= TrajectoryFormat.LEAVING;
+
+			state.add(new int[] { a.getId(), a.getX(), a.getY(),
+					a.getDirection().ordinal(), flags });
+		}
+
+		Collections.sort(state, BY_ID);
+		expected.put(step, state);
+	}
+
+	private void assertFrame(int step, Frame frame) {
+		List<int[]> state = expected.get(step);
+		assertNotNull("step " + step, state);
+		assertEquals(step, frame.getStep());
+		assertEquals("step " + step, state.size(), frame.countAgents());
+
+		for (int i = 0; i < state.size(); i++) {
+			int[] s = state.get(i);
+			int[] actual = { frame.getId(i), frame.getX(i), frame.getY(i),
+					frame.getDirection(i).ordinal(), frame.getState(i) };
+			assertArrayEquals("step " + step + ", agent " + s[0], s, actual);
+		}
+	}
+
+	/**
+	 * Zapisuje kroki 0-49 i 60-99 (przerwa w numeracji w połowie paczki);
+	 * w krokach 3-5 jeden agent znika z planszy (w obrębie paczki), a w
+	 * krokach 22-25 - inny (na granicy paczek).
+	 */
+	private Path writeFile() throws IOException {
+		Path file = folder.newFile().toPath();
+		TrajectoryWriter writer = new TrajectoryWriter(file, "test", board,
+				SEED, STEPS_PER_CHUNK);
+
+		Agent hidden1 = agents.get(7);
+		Agent hidden2 = agents.get(0);
+		int hx = 0;
+		int hy = 0;
+
+		for (int step = 0; step < 100; step++) {
+			if (step == 3 || step == 22) {
+				Agent a = (step == 3) ? hidden1 : hidden2;
+				hx = a.getX();
+				hy = a.getY();
+				board.setAgent(null, hx, hy);
+			} else if (step == 6 || step == 26) {
+				Agent a = (step == 6) ? hidden1 : hidden2;
+				if (board.getAgent(hx, hy) == null)
+					board.setAgent(a, hx, hy);
+				else
+					placeRandomly(a);
+			}
+
+			if (step < 50 || step >= 60)
+				record(writer, step);
+
+			moveAgents();
+		}
+
+		writer.close();
+		return file;
+	}
+
+	@Test
+	public void sequentialRead() throws IOException {
+		Path file = writeFile();
+
+		try (TrajectoryReader reader = new TrajectoryReader(file)) {
+			assertEquals("test", reader.getMapName());
+			assertEquals(board.getWidth(), reader.getWidth());
+			assertEquals(board.getHeight(), reader.getHeight());
+			assertEquals(SEED, reader.getSeed());
+			assertEquals(STEPS_PER_CHUNK, reader.getStepsPerChunk());
+			assertEquals(0, reader.getFirstStep());
+			assertEquals(99, reader.getLastStep());
+
+			for (int step = 0; step < 100; step++) {
+				if (expected.containsKey(step))
+					assertFrame(step, reader.readStep(step));
+				else
+					assertFalse(reader.hasStep(step));
+			}
+		}
+	}
+
+	@Test
+	public void randomSeeksMatchSequentialRead() throws IOException {
+		Path file = writeFile();
+
+		List<Integer> steps = new ArrayList<>(expected.keySet());
+		try (TrajectoryReader reader = new TrajectoryReader(file)) {
+			for (int i = 0; i < 500; i++) {
+				int step = steps.get(random.nextInt(steps.size()));
+				assertFrame(step, reader.readStep(step));
+			}
+		}
+	}
+
+	/**
+	 * Przerwa w numeracji rozpoczyna nową paczkę - kroki po przerwie są
+	 * odczytywane poprawnie, a pominiętych kroków nie ma w pliku.
+	 */
+	@Test
+	public void gapInStepNumbering() throws IOException {
+		Path file = writeFile();
+
+		try (TrajectoryReader reader = new TrajectoryReader(file)) {
+			assertTrue(reader.hasStep(49));
+			for (int step = 50; step < 60; step++)
+				assertFalse(reader.hasStep(step));
+			assertTrue(reader.hasStep(60));
+
+			assertFrame(60, reader.readStep(60));
+			assertFrame(49, reader.readStep(49));
+			assertFrame(61, reader.readStep(61));
+
+			try {
+				reader.readStep(55);
+				fail("step 55 was not recorded");
+			} catch (IllegalArgumentException e) {
+				// oczekiwany wyjątek
+			}
+		}
+	}
+
+	/**
+	 * Agent nieobecny w poprzednim kroku tej samej paczki zapisywany jest z
+	 * położeniem bezwzględnym.
+	 */
+	@Test
+	public void agentDisappearsAndReappearsWithinChunk() throws IOException {
+		Path file = writeFile();
+		int id = agents.get(7).getId();
+
+		try (TrajectoryReader reader = new TrajectoryReader(file)) {
+			for (int step = 2; step <= 7; step++) {
+				Frame frame = reader.readStep(step);
+				boolean present = false;
+				for (int i = 0; i < frame.countAgents(); i++)
+					present |= frame.getId(i) == id;
+
+				assertEquals("step " + step, step < 3 || step > 5, present);
+				assertFrame(step, frame);
+			}
+
+			// Przejście bezpośrednio do kroku po powrocie agenta.
+			reader.readStep(40);
+			assertFrame(6, reader.readStep(6));
+			assertFrame(23, reader.readStep(23));
+			assertFrame(26, reader.readStep(26));
+		}
+	}
+
+	/**
+	 * Plik bez indeksu (np. po awarii) - paczki odnajdywane są przez
+	 * przeglądanie pliku, a niepełna ostatnia paczka jest pomijana.
+	 */
+	@Test
+	public void truncatedFileWithoutIndex() throws IOException {
+		Path file = writeFile();
+
+		// Odetnij indeks (wraz z zakończeniem) i końcówkę ostatniej paczki
+		// (kroki 92-99).
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			long indexSize = 8 + 16 * CHUNKS + 12;
+			raf.setLength(raf.length() - indexSize - 5);
+		}
+
+		try (TrajectoryReader reader = new TrajectoryReader(file)) {
+			assertEquals(0, reader.getFirstStep());
+			assertEquals(91, reader.getLastStep());
+			assertFalse(reader.hasStep(92));
+			assertFalse(reader.hasStep(55));
+
+			for (int step = 0; step <= 91; step++)
+				if (expected.containsKey(step))
+					assertFrame(step, reader.readStep(step));
+		}
+	}
+
+	@Test
+	public void emptyFile() throws IOException {
+		Path file = folder.newFile().toPath();
+		new TrajectoryWriter(file, "empty", board, SEED).close();
+
+		try (TrajectoryReader reader = new TrajectoryReader(file)) {
+			assertEquals(-1, reader.getFirstStep());
+			assertEquals(-1, reader.getLastStep());
+			assertFalse(reader.hasStep(0));
+		}
+	}
+}